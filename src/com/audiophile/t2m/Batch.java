@@ -0,0 +1,329 @@
+package com.audiophile.t2m;
+
+import com.audiophile.t2m.io.CSVTools;
+import com.audiophile.t2m.io.FileUtils;
+import com.audiophile.t2m.io.MusicWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Generates the music of many articles in one run.
+ * One {@link Engine} is shared by all articles, so the word database, the resources and the synthesizers are loaded
+ * once. The articles pass an analysis, a composition and an output stage, which have their own workers,
+ * so one article is analysed while another one is rendered.
+ * An article which fails is logged and does not stop the others.
+ * A summary with the timings of every article is written to the output directory.
+ */
+class Batch {
+    /**
+     * The name of the summary file in the output directory
+     */
+    static final String SUMMARY_FILE = "summary.csv";
+    /**
+     * The capacity of the queue in front of a stage per thread of the stage
+     */
+    private static final int QUEUE_FACTOR = 2;
+    /**
+     * The time in milliseconds between logging the metrics of the stages
+     */
+    private static final long METRICS_INTERVAL = 10000;
+
+    /**
+     * Runs the batch mode
+     *
+     * @param args The run parameters without the batch argument:
+     *             the article directory or manifest, the output directory, the database file and the options
+     * @see Main#CLI_USAGE
+     */
+    static void run(String[] args) {
+        if (args.length < 3) {
+            System.err.println("Batch mode needs an article directory or manifest, an output directory and a database file");
+            return;
+        }
+        long start = System.currentTimeMillis();
+        Engine engine = Main.createEngine(args[2]);
+        if (engine == null)
+            return;
+        String[] options = Arrays.copyOfRange(args, 3, args.length);
+
+        File outputDirectory = new File(args[1]);
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            System.err.println("Could not create output directory \"" + outputDirectory + "\"");
+            return;
+        }
+        List<Job> jobs;
+        try {
+            jobs = readJobs(new File(args[0]), outputDirectory, options);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        int[] workers = parseWorkers(Main.extractArgument("w", options, ""));
+        engine.prewarm(Main.parseOptions(options));
+        System.out.println("Processing " + jobs.size() + " articles with " + workers[0] + " analysis, " + workers[1]
+                + " composition and " + workers[2] + " output workers");
+
+        List<Result> results = new ArrayList<>(jobs.size());
+        for (Job job : jobs)
+            results.add(new Result(job));
+        Pipeline<Result> pipeline = new Pipeline<Result>(Result::fail)
+                .addStage("analysis", workers[0], QUEUE_FACTOR * workers[0], result -> analyse(engine, result))
+                .addStage("composition", workers[1], QUEUE_FACTOR * workers[1], result -> compose(engine, result))
+                .addStage("output", workers[2], QUEUE_FACTOR * workers[2], result -> output(engine, result));
+        Thread monitor = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(METRICS_INTERVAL);
+                    System.out.print(pipeline.getMetrics());
+                }
+            } catch (InterruptedException ignored) {
+            }
+        }, "pipeline-metrics");
+        monitor.setDaemon(true);
+        monitor.start();
+        try {
+            pipeline.run(results);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } finally {
+            monitor.interrupt();
+        }
+        long end = System.currentTimeMillis();
+        System.out.print(pipeline.getMetrics());
+        writeSummary(results, new File(outputDirectory, SUMMARY_FILE), workers[2], end - start);
+    }
+
+    /**
+     * Parses the workers argument: one number for all stages or a number for each stage
+     *
+     * @param value The workers argument, e.g. "4" or "2,1,4"
+     * @return The threads of the analysis, composition and output stage
+     */
+    private static int[] parseWorkers(String value) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] workers = {processors, 1, processors};
+        if (value.isEmpty())
+            return workers;
+        String[] parts = value.split(",");
+        try {
+            for (int i = 0; i < workers.length; i++)
+                workers[i] = Math.max(1, Integer.parseInt(parts[parts.length == 1 ? 0 : i].trim()));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Workers \"" + value + "\" is not a number or three numbers separated by commas");
+            return new int[]{processors, 1, processors};
+        }
+        return workers;
+    }
+
+    /**
+     * Lists the articles to process
+     *
+     * @param input           A directory with the articles as .txt files or a manifest file with one article per line
+     * @param outputDirectory The directory for the music, relative output files of the manifest are resolved against it
+     * @param options         The options of the command line
+     * @return The articles with their output file and options
+     * @throws IOException If the directory or manifest could not be read
+     */
+    private static List<Job> readJobs(File input, File outputDirectory, String[] options) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if (input.isDirectory()) {
+            File[] files = input.listFiles((dir, name) -> name.endsWith(".txt"));
+            if (files == null)
+                throw new IOException("Could not read article directory \"" + input + "\"");
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName().substring(0, file.getName().length() - 4);
+                jobs.add(new Job(file.getPath(), new File(outputDirectory, name).getPath(), options));
+            }
+            return jobs;
+        }
+        String[] lines = FileUtils.ReadPlainFile(input.getPath()).split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length < 2) {
+                System.err.println("Line " + (i + 1) + " of manifest \"" + input + "\" needs an article and an output file");
+                continue;
+            }
+            File article = new File(parts[0]), output = new File(parts[1]);
+            if (!article.isAbsolute())
+                article = new File(input.getAbsoluteFile().getParentFile(), parts[0]);
+            if (!output.isAbsolute())
+                output = new File(outputDirectory, parts[1]);
+            // The options of the line come first, so they are found before the options of the command line
+            String[] jobOptions = Arrays.copyOf(Arrays.copyOfRange(parts, 2, parts.length), parts.length - 2 + options.length);
+            System.arraycopy(options, 0, jobOptions, parts.length - 2, options.length);
+            jobs.add(new Job(article.getPath(), output.getPath(), jobOptions));
+        }
+        return jobs;
+    }
+
+    /**
+     * The first stage: reads and analyses the article
+     *
+     * @param engine The engine
+     * @param result The article, which gets the analysis or the error
+     */
+    private static void analyse(Engine engine, Result result) {
+        long start = result.started = System.currentTimeMillis();
+        try {
+            result.analysis = engine.analyse(FileUtils.ReadPlainFile(result.job.article), result.job.options);
+        } catch (Exception e) {
+            result.fail(e);
+        }
+        result.finished = System.currentTimeMillis();
+        result.analysisTime = result.finished - start;
+    }
+
+    /**
+     * The second stage: sets up the composer, which generates the music while it is written
+     *
+     * @param engine The engine
+     * @param result The analysed article, which gets the composition or the error
+     */
+    private static void compose(Engine engine, Result result) {
+        if (result.error != null)
+            return;
+        long start = System.currentTimeMillis();
+        try {
+            result.composition = engine.compose(result.analysis, result.job.options);
+            result.duration = result.composition.getDuration();
+            result.analysis = null;
+        } catch (Exception e) {
+            result.fail(e);
+        }
+        result.finished = System.currentTimeMillis();
+        result.compositionTime = result.finished - start;
+    }
+
+    /**
+     * The last stage: generates, renders and writes the music
+     *
+     * @param engine The engine
+     * @param result The composed article, which gets the error if writing failed
+     */
+    private static void output(Engine engine, Result result) {
+        if (result.error != null)
+            return;
+        long start = System.currentTimeMillis();
+        try {
+            Job job = result.job;
+            Engine.Composition composition = result.composition;
+            Map<String, String> files = new LinkedHashMap<>();
+            boolean audio = false;
+            for (String outputType : job.outputTypes) {
+                if (Main.isAudio(outputType) || outputType.equals(MusicWriter.MIDI)) {
+                    files.put(outputType, MusicWriter.withExtension(job.output, outputType));
+                    audio |= Main.isAudio(outputType);
+                } else System.err.println("Output type \"" + outputType + "\" is not supported in batch mode");
+            }
+            if (audio)
+                engine.render(composition, files, job.options);
+            else if (!files.isEmpty())
+                engine.writeMidi(composition, files.get(MusicWriter.MIDI));
+            System.out.println("Finished \"" + job.article + "\" " + composition.getTitle());
+        } catch (Exception e) {
+            result.fail(e);
+        }
+        result.composition = null;
+        result.finished = System.currentTimeMillis();
+        result.outputTime = result.finished - start;
+    }
+
+    /**
+     * Writes the timings of all articles to the summary file and logs the throughput to the console
+     *
+     * @param results The processed articles
+     * @param file    The summary file
+     * @param workers The amount of output workers
+     * @param time    The time of the whole run in milliseconds
+     */
+    private static void writeSummary(List<Result> results, File file, int workers, long time) {
+        String[][] table = new String[results.size() + 1][];
+        table[0] = new String[]{"article", "status", "analysis ms", "composition ms", "output ms", "total ms",
+                "music s", "error"};
+        int failed = 0;
+        long music = 0;
+        for (int i = 0; i < results.size(); i++) {
+            Result r = results.get(i);
+            if (r.error != null)
+                failed++;
+            else music += r.duration;
+            table[i + 1] = new String[]{r.job.article, r.error == null ? "ok" : "failed", String.valueOf(r.analysisTime),
+                    String.valueOf(r.compositionTime), String.valueOf(r.outputTime), String.valueOf(r.finished - r.started),
+                    String.valueOf(r.duration), r.error == null ? "" : r.error.replace('"', '\'')};
+        }
+        try {
+            CSVTools.WriteFile(file.getPath(), table);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        double seconds = time / 1000.0;
+        System.out.println(String.format(Locale.ROOT,
+                "Processed %d articles (%d failed) in %.1fs with %d output workers: %.1f articles per minute, %.1fs of music per second",
+                results.size(), failed, seconds, workers, results.size() * 60 / seconds, music / seconds));
+        System.out.println("Summary written to \"" + file + "\"");
+    }
+
+    /**
+     * An article with its output file, output types and options
+     */
+    private static class Job {
+        final String article, output;
+        final String[] outputTypes;
+        final Engine.Options options;
+
+        /**
+         * @param article The article file
+         * @param output  The output file, which gets the extension of each output type
+         * @param args    The options of the article
+         */
+        Job(String article, String output, String[] args) {
+            this.article = article;
+            this.output = output;
+            this.outputTypes = Main.extractArgument("o", args, MusicWriter.MP3).split(",");
+            this.options = Main.parseOptions(args);
+        }
+    }
+
+    /**
+     * An article passing the stages: its intermediate results, its timings in milliseconds or the error, if it failed
+     */
+    private static class Result {
+        final Job job;
+        volatile Engine.Analysis analysis;
+        volatile Engine.Composition composition;
+        volatile long analysisTime, compositionTime, outputTime;
+        /**
+         * The time the article entered the first stage and left the last stage it passed,
+         * including the time it waited in the queues
+         */
+        volatile long started, finished;
+        volatile int duration;
+        volatile String error;
+
+        Result(Job job) {
+            this.job = job;
+        }
+
+        /**
+         * Records the error, so the following stages skip the article
+         *
+         * @param e The error
+         */
+        void fail(Throwable e) {
+            error = e.toString();
+            System.err.println("Failed \"" + job.article + "\": " + e);
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.audiophile.t2m;
+
+import com.audiophile.t2m.io.MusicWriter;
+import com.audiophile.t2m.io.RenderSettings;
+import com.audiophile.t2m.music.Composer;
+import com.audiophile.t2m.music.Ensemble;
+import com.audiophile.t2m.text.DatabaseHandler;
+import com.audiophile.t2m.text.Sentence;
+import com.audiophile.t2m.text.TextAnalyser;
+
+import javax.sound.midi.Sequence;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns articles into music. An engine is created once with its word database and can be used by many threads at
+ * once, e.g. by a server or a batch run. Every call gets its own {@link Options}, so requests with different options
+ * do not affect each other, and returns its result with the time it took instead of logging to the console.
+ * <p>
+ * An article passes three steps: {@link Engine#analyse(String, Options)}, {@link Engine#compose(Analysis, Options)}
+ * and one of the render methods, which generate the music while it is written.
+ * </p>
+ * The resources, e.g. the effects and the synthesizers, are shared by all engines and loaded on the first use.
+ */
+public class Engine {
+    /**
+     * The minimum amount of words of an article
+     */
+    public static final int MIN_WORDS = 50;
+
+    /**
+     * The entries of the word database, which are only read
+     */
+    private final List<DatabaseHandler.Entry> database;
+
+    /**
+     * Creates an engine with its own word database
+     *
+     * @param databaseFile The words database file
+     * @throws IOException If the database could not be read or has a wrong format
+     * @see DatabaseHandler#ReadDB(String)
+     */
+    public Engine(String databaseFile) throws IOException {
+        this.database = Collections.unmodifiableList(DatabaseHandler.ReadDB(databaseFile));
+    }
+
+    /**
+     * Opens a synthesizer with the instruments of the ensemble in the background, so the first rendering with these
+     * options does not wait for it
+     *
+     * @param options The options of the following renderings
+     */
+    public void prewarm(Options options) {
+        MusicWriter.prewarm(options.render, options.ensemble.getPrograms());
+    }
+
+    /**
+     * Splits the article into sentences and links the words with the word database
+     *
+     * @param text    The article
+     * @param options The search mode
+     * @return The analysed article
+     * @throws IllegalArgumentException If the article is shorter than {@value #MIN_WORDS} words
+     */
+    public Analysis analyse(String text, Options options) {
+        long start = System.currentTimeMillis();
+        Sentence[] sentences = TextAnalyser.analyseSentences(text, options.precise, database);
+        int words = 0;
+        for (Sentence s : sentences)
+            words += s.getWords().length;
+        if (words < MIN_WORDS)
+            throw new IllegalArgumentException("Article needs to be al least " + MIN_WORDS + " words long");
+        return new Analysis(sentences, words, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Sets up the composer, which generates the music while it is rendered
+     *
+     * @param analysis The analysed article
+     * @param options  The ensemble, the duration and if effects are added
+     * @return The composition
+     */
+    public Composition compose(Analysis analysis, Options options) {
+        long start = System.currentTimeMillis();
+        int duration = options.duration;
+        if (duration == Options.READING_TIME)
+            duration = Math.max(Composer.DEFAULT_DURATION, TextAnalyser.getReadingTime(analysis.sentences));
+        Composer composer = new Composer(analysis.sentences, options.noEffects, options.ensemble, duration);
+        return new Composition(composer, duration, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Generates and renders the music once and writes the audio to several files at once.
+     * A MIDI file is written from the same generated music.
+     *
+     * @param composition The composition, which is rendered by one thread at a time
+     * @param files       The file to write to for every output type ({@link MusicWriter#WAV},
+     *                    {@link MusicWriter#FLAC}, {@link MusicWriter#MP3} or {@link MusicWriter#MIDI})
+     * @param options     The render settings
+     * @return The length of the audio and the time it took
+     * @throws IOException If the synthesizer could not be opened or a file could not be written
+     */
+    public Rendering render(Composition composition, Map<String, String> files, Options options) throws IOException {
+        synchronized (composition) {
+            long start = System.currentTimeMillis();
+            List<String> log = new ArrayList<>();
+            double seconds = MusicWriter.writeAudio(composition.getSegments(), files, options.render, log::add);
+            return new Rendering(seconds, System.currentTimeMillis() - start, log);
+        }
+    }
+
+    /**
+     * Generates and renders the music and streams it as WAV file, e.g. to a client. The stream is not closed.
+     *
+     * @param composition The composition, which is rendered by one thread at a time
+     * @param output      The stream to write to
+     * @param options     The render settings
+     * @return The length of the audio and the time it took
+     * @throws IOException If the synthesizer could not be opened or the stream could not be written
+     */
+    public Rendering render(Composition composition, OutputStream output, Options options) throws IOException {
+        return render(composition, output, MusicWriter.WAV, options);
+    }
+
+    /**
+     * Generates and renders the music and streams it as WAV, FLAC or MP3 file, e.g. to a client.
+     * The stream is not closed.
+     *
+     * @param composition The composition, which is rendered by one thread at a time
+     * @param output      The stream to write to
+     * @param outputType  {@link MusicWriter#WAV}, {@link MusicWriter#FLAC} or {@link MusicWriter#MP3}
+     * @param options     The render settings
+     * @return The length of the audio and the time it took
+     * @throws IOException              If the synthesizer could not be opened or the stream could not be written
+     * @throws IllegalArgumentException If the output type can not be streamed
+     */
+    public Rendering render(Composition composition, OutputStream output, String outputType, Options options)
+            throws IOException {
+        synchronized (composition) {
+            long start = System.currentTimeMillis();
+            List<String> log = new ArrayList<>();
+            double seconds;
+            switch (outputType) {
+                case MusicWriter.WAV:
+                    seconds = MusicWriter.writeWav(composition.getSegments(), Channels.newChannel(output),
+                            options.render, log::add);
+                    break;
+                case MusicWriter.FLAC:
+                    seconds = MusicWriter.writeFlac(composition.getSegments(), output, options.render, log::add);
+                    break;
+                case MusicWriter.MP3:
+                    seconds = MusicWriter.writeMP3(composition.getSegments(), output, options.render, log::add);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Only wav, flac and mp3 can be streamed: " + outputType);
+            }
+            return new Rendering(seconds, System.currentTimeMillis() - start, log);
+        }
+    }
+
+    /**
+     * Generates and renders the music and streams it as WAV file into a channel, e.g. a socket.
+     * The length in the header is updated afterwards if the channel is seekable. The channel is not closed.
+     *
+     * @param composition The composition, which is rendered by one thread at a time
+     * @param channel     The channel to write to
+     * @param options     The render settings
+     * @return The length of the audio and the time it took
+     * @throws IOException If the synthesizer could not be opened or the channel could not be written
+     */
+    public Rendering render(Composition composition, WritableByteChannel channel, Options options) throws IOException {
+        synchronized (composition) {
+            long start = System.currentTimeMillis();
+            List<String> log = new ArrayList<>();
+            double seconds = MusicWriter.writeWav(composition.getSegments(), channel, options.render, log::add);
+            return new Rendering(seconds, System.currentTimeMillis() - start, log);
+        }
+    }
+
+    /**
+     * Generates and renders the music and streams the raw audio into a channel without any header.
+     * The audio is signed PCM in the format of {@link MusicWriter#getAudioFormat(RenderSettings)} for the render
+     * settings of the options. The channel is not closed.
+     *
+     * @param composition The composition, which is rendered by one thread at a time
+     * @param channel     The channel to write to
+     * @param options     The render settings
+     * @return The length of the audio and the time it took
+     * @throws IOException If the synthesizer could not be opened or the channel could not be written
+     */
+    public Rendering renderPcm(Composition composition, WritableByteChannel channel, Options options)
+            throws IOException {
+        synchronized (composition) {
+            long start = System.currentTimeMillis();
+            List<String> log = new ArrayList<>();
+            double seconds = MusicWriter.writePcm(composition.getSegments(), channel, options.render, log::add);
+            return new Rendering(seconds, System.currentTimeMillis() - start, log);
+        }
+    }
+
+    /**
+     * Generates the music and writes it as MIDI file
+     *
+     * @param composition The composition, which is generated by one thread at a time
+     * @param fileName    The file to write to
+     * @throws IOException If the file could not be written
+     */
+    public void writeMidi(Composition composition, String fileName) throws IOException {
+        synchronized (composition) {
+            MusicWriter.writeMidi(composition.composer.getSequence(), fileName);
+        }
+    }
+
+    /**
+     * Generates the music and streams it as MIDI file. The stream is not closed.
+     *
+     * @param composition The composition, which is generated by one thread at a time
+     * @param output      The stream to write to
+     * @throws IOException If the stream could not be written
+     */
+    public void writeMidi(Composition composition, OutputStream output) throws IOException {
+        synchronized (composition) {
+            MusicWriter.writeMidi(composition.composer.getSequence(), output);
+        }
+    }
+
+    /**
+     * Generates the music and plays it on the sound card. Only one playback can be active at once.
+     *
+     * @param composition The composition, which is generated by one thread at a time
+     * @see MusicWriter#play(Iterator)
+     */
+    public void play(Composition composition) {
+        synchronized (composition) {
+            MusicWriter.play(composition.getSegments());
+        }
+    }
+
+    /**
+     * The options of one call. Instances are immutable, the <code>with</code> methods return a copy.
+     */
+    public static final class Options {
+        /**
+         * The value of the duration, which makes the music as long as the reading time of the article,
+         * but at least {@link Composer#DEFAULT_DURATION} seconds
+         */
+        public static final int READING_TIME = 0;
+        /**
+         * No precise search, effects, a piano ensemble, {@link Composer#DEFAULT_DURATION} seconds and
+         * {@link RenderSettings#DEFAULT}
+         */
+        public static final Options DEFAULT = new Options(false, false, Ensemble.Piano, Composer.DEFAULT_DURATION,
+                RenderSettings.DEFAULT);
+
+        private final boolean precise, noEffects;
+        private final Ensemble ensemble;
+        private final int duration;
+        private final RenderSettings render;
+
+        private Options(boolean precise, boolean noEffects, Ensemble ensemble, int duration, RenderSettings render) {
+            this.precise = precise;
+            this.noEffects = noEffects;
+            this.ensemble = ensemble;
+            this.duration = duration;
+            this.render = render;
+        }
+
+        /**
+         * @param precise True to link every word with the closest database entry instead of the first similar one
+         * @return A copy with the given search mode
+         */
+        public Options withPrecise(boolean precise) {
+            return new Options(precise, noEffects, ensemble, duration, render);
+        }
+
+        /**
+         * @param noEffects True to add no effects to the music
+         * @return A copy with the given effects mode
+         */
+        public Options withNoEffects(boolean noEffects) {
+            return new Options(precise, noEffects, ensemble, duration, render);
+        }
+
+        /**
+         * @param ensemble The ensemble playing the music
+         * @return A copy with the given ensemble
+         */
+        public Options withEnsemble(Ensemble ensemble) {
+            return new Options(precise, noEffects, ensemble, duration, render);
+        }
+
+        /**
+         * @param duration The length of the music in seconds or {@link Options#READING_TIME}
+         * @return A copy with the given duration
+         * @throws IllegalArgumentException If the duration is negative
+         */
+        public Options withDuration(int duration) {
+            if (duration < 0)
+                throw new IllegalArgumentException("Duration must not be negative: " + duration);
+            return new Options(precise, noEffects, ensemble, duration, render);
+        }
+
+        /**
+         * @param render The settings for rendering audio
+         * @return A copy with the given render settings
+         */
+        public Options withRender(RenderSettings render) {
+            return new Options(precise, noEffects, ensemble, duration, render);
+        }
+
+        public boolean isPrecise() {
+            return precise;
+        }
+
+        public boolean isNoEffects() {
+            return noEffects;
+        }
+
+        public Ensemble getEnsemble() {
+            return ensemble;
+        }
+
+        public int getDuration() {
+            return duration;
+        }
+
+        public RenderSettings getRender() {
+            return render;
+        }
+    }
+
+    /**
+     * The result of {@link Engine#analyse(String, Options)}
+     */
+    public static final class Analysis {
+        private final Sentence[] sentences;
+        private final int words;
+        private final long time;
+
+        private Analysis(Sentence[] sentences, int words, long time) {
+            this.sentences = sentences;
+            this.words = words;
+            this.time = time;
+        }
+
+        /**
+         * @return A copy of the sentences of the article
+         */
+        public Sentence[] getSentences() {
+            return sentences.clone();
+        }
+
+        public int getWords() {
+            return words;
+        }
+
+        /**
+         * @return The time of the analysis in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * The result of {@link Engine#compose(Analysis, Options)}.
+     * The music is generated when it is rendered, the composition can be rendered several times.
+     */
+    public static final class Composition {
+        private final Composer composer;
+        private final int duration;
+        private final long time;
+
+        private Composition(Composer composer, int duration, long time) {
+            this.composer = composer;
+            this.duration = duration;
+            this.time = time;
+        }
+
+        /**
+         * @return The segments of the music, which may only be iterated by one thread at a time
+         */
+        private Iterator<Sequence> getSegments() {
+            return composer.getSegments();
+        }
+
+        /**
+         * @return The key and the ensemble of the music
+         */
+        public String getTitle() {
+            return composer.title;
+        }
+
+        /**
+         * @return The average tempo in beats per minute
+         */
+        public int getTempo() {
+            return composer.getTempo();
+        }
+
+        /**
+         * @return The resolution in ticks per quarter note
+         */
+        public int getResolution() {
+            return composer.getResolution();
+        }
+
+        /**
+         * @return The words of the article, which have an effect, as "word : effect"
+         */
+        public List<String> getEffects() {
+            return composer.getEffects();
+        }
+
+        /**
+         * @return The length of the music in seconds
+         */
+        public int getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return The time of the composition in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * The result of a render method
+     */
+    public static final class Rendering {
+        private final double seconds;
+        private final long time;
+        private final List<String> log;
+
+        private Rendering(double seconds, long time, List<String> log) {
+            this.seconds = seconds;
+            this.time = time;
+            this.log = Collections.unmodifiableList(log);
+        }
+
+        /**
+         * @return The length of the rendered audio in seconds
+         */
+        public double getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * @return The time of generating, rendering and writing in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return The time needed divided by the length of the audio, below 1 is faster than real time
+         */
+        public double getRealTimeFactor() {
+            return seconds > 0 ? time / 1000.0 / seconds : 0;
+        }
+
+        /**
+         * @return The summary of the renderer, e.g. the time of the synthesizer and the metrics of its pool,
+         * which the caller may log
+         */
+        public List<String> getLog() {
+            return log;
+        }
+    }
+}
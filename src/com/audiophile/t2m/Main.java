@@ -2,37 +2,80 @@ package com.audiophile.t2m;
 
 import com.audiophile.t2m.io.FileUtils;
 import com.audiophile.t2m.io.MusicWriter;
+import com.audiophile.t2m.io.RenderProfile;
+import com.audiophile.t2m.io.RenderSettings;
 import com.audiophile.t2m.music.Composer;
 import com.audiophile.t2m.music.Ensemble;
-import com.audiophile.t2m.text.DatabaseHandler;
-import com.audiophile.t2m.text.Sentence;
-import com.audiophile.t2m.text.TextAnalyser;
 
-import javax.sound.midi.Sequence;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
 
 public class Main {
 
+    /**
+     * Value of the duration argument, which makes the music as long as the reading time of the article
+     */
+    private static final String TEXT_DURATION = "text";
+    /**
+     * The first argument, which processes many articles in one run
+     *
+     * @see Batch
+     */
+    private static final String BATCH = "batch";
+    /**
+     * The first argument, which runs the HTTP server
+     *
+     * @see Server
+     */
+    private static final String SERVE = "serve";
+
     /**
      * Instructions for the T2M CLI usage
      */
     private static final String CLI_USAGE = "Usage:\n\t <articlefile> <outputfile> <databasefile> [-o  {"
             + MusicWriter.MP3 + " | "
             + MusicWriter.WAV + " | "
+            + MusicWriter.FLAC + " | "
             + MusicWriter.MIDI + " | "
             + MusicWriter.PLAY
-            + "}] "
+            + "}[,...]] "
             + "[-i {" + String.join(" | ", Ensemble.stringValues()) + "} "
             + "[-p]\n"
             + "[-noeffects]\n"
+            + "[-d {<seconds> | " + TEXT_DURATION + "}]\n"
+            + "[-r {" + MusicWriter.SEQUENTIAL + " | " + MusicWriter.PARALLEL + " | " + MusicWriter.CHANNELS
+            + " | " + MusicWriter.CACHED + "}]\n"
+            + "[-g <channel>=<gain>[,<channel>=<gain>...]]\n"
+            + "[-q {" + String.join(" | ", RenderProfile.stringValues()) + "}]\n"
+            + "[-e {" + MusicWriter.GERVILL + " | " + MusicWriter.WAVETABLE + "}]\n"
             + "Args:\n"
             + "\t articlefile: The article saved as file\n"
             + "\t outputfile: The file to write the music to\n"
             + "\t databasefile: The words database file\n"
-            + "\t -o: The output type (mp3 is default)\n"
+            + "\t -o: The output type (mp3 is default). Several types separated by commas are generated from the same music,\n"
+            + "\t     the audio is rendered only once and the outputfile gets the extension of each type\n"
             + "\t -i: The ensemble which plays the music (piano is default)\n"
             + "\t -p: Enables precise search\n"
-            + "\t -noeffects: Disables all effects in the music\n";
+            + "\t -noeffects: Disables all effects in the music\n"
+            + "\t -d: The length of the music in seconds or \"" + TEXT_DURATION + "\" for the reading time of the article ("
+            + Composer.DEFAULT_DURATION + " is default)\n"
+            + "\t -r: The render mode for audio output (" + MusicWriter.SEQUENTIAL + " is default)\n"
+            + "\t -g: The gain of MIDI channels 1 to 16 in the " + MusicWriter.CHANNELS + " render mode (1 is default)\n"
+            + "\t -q: The quality of the rendered audio, draft is fastest (" + RenderProfile.Standard + " is default)\n"
+            + "\t -e: The synthesizer for audio output, " + MusicWriter.WAVETABLE + " needs no soundbank and ignores -r ("
+            + MusicWriter.GERVILL + " is default)\n"
+            + "Batch mode:\n\t -" + BATCH + " {<articledirectory> | <manifestfile>} <outputdirectory> <databasefile> [-w <workers>[,<workers>,<workers>]] [options]\n"
+            + "\t     Processes every .txt file of the directory or every line \"<articlefile> <outputfile> [options]\" of the\n"
+            + "\t     manifest in an analysis, composition and output stage with their own workers (number of processors, 1 and\n"
+            + "\t     number of processors is default), one number sets all stages. The options of the command line apply to\n"
+            + "\t     all articles, all options except -w can be set per line. A summary is written to " + Batch.SUMMARY_FILE + "\n"
+            + "Server mode:\n\t -" + SERVE + " <port> <databasefile> [-w <workers>] [-r ...] [-q ...] [-e ...]\n"
+            + "\t     POST an article to /music?o=wav&i=piano&p&noeffects&d=30 to get its music, GET /status shows the load.\n"
+            + "\t     At most <workers> requests are rendered at once (number of processors is default), too many requests get\n"
+            + "\t     status 429\n";
 
     /**
      * T2M start
@@ -41,108 +84,209 @@ public class Main {
     public static void main(String[] args) {
         long startTime = System.currentTimeMillis();
 
+        if (args.length > 0 && args[0].equals("-" + BATCH)) {
+            Batch.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("-" + SERVE)) {
+            Server.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // Check if the given arguments are valid
         if (!checkArguments(args))
             return;
 
-        String dbFile = args[2];
         // Load word database
-        if (!loadDatabase(dbFile))
+        Engine engine = createEngine(args[2]);
+        if (engine == null)
             return;
-
-        // Enable/Disable precise search in database
-        DatabaseHandler.PRECISE_SEARCH = hasArgument("p", args);
+        Engine.Options options = parseOptions(args);
 
         // Load article
         StringBuffer buffer = new StringBuffer();
         if (!loadTextFile(args[0], buffer))
             return;
 
-        long endTime = System.currentTimeMillis();
-        System.out.println("Analyzed \"" + args[0] + "\" in " + (endTime - startTime) + "ms");
-        startTime = System.currentTimeMillis();
-
-        boolean noEffects = hasArgument("noeffects", args);
-        Ensemble ensemble = Ensemble.map(extractArgument("i", args, Ensemble.Piano.name()), Ensemble.Piano);
-        String article = buffer.toString();
+        // Open a synthesizer with the instruments of the ensemble while the music is generated
+        String[] outputTypes = extractArgument("o", args, MusicWriter.MP3).split(",");
+        for (String outputType : outputTypes)
+            if (isAudio(outputType)) {
+                engine.prewarm(options);
+                break;
+            }
+        if (Arrays.asList(outputTypes).contains(MusicWriter.PLAY))
+            MusicWriter.prewarmPlayback();
 
-        Sentence[] sentences = TextAnalyser.analyseSentences(article);
-        int words = 0;
-        for (Sentence s : sentences)
-            words += s.getWords().length;
-        if (words < 50) {
-            System.err.println("Article needs to be al least 50 words long");
+        Engine.Analysis analysis;
+        try {
+            analysis = engine.analyse(buffer.toString(), options);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
             return;
         }
-        Composer composer = new Composer(sentences, noEffects, ensemble);
-        // Generate music
-        Sequence sequence = composer.getSequence();
-        endTime = System.currentTimeMillis();
-        System.out.println("Generated music in " + (endTime - startTime) + "ms");
+        System.out.println("Analyzed \"" + args[0] + "\" in " + analysis.getTime() + "ms");
+
+        Engine.Composition composition = engine.compose(analysis, options);
+        System.out.println("Tempo: " + composition.getTempo() + " BPM");
+        System.out.println("Resolution: " + composition.getResolution() + " PPQ");
+        if (!options.isNoEffects())
+            System.out.println("Effects:" + composition.getEffects());
+        System.out.println("Generated music in " + composition.getTime() + "ms");
 
         // Output music
-        String outputType = extractArgument("o", args, "mp3");
-        outputMusic(outputType, args[1], sequence);
-        System.out.println(args[0].substring(0, args[0].lastIndexOf(".")) + " " + composer.title);
+        outputMusic(outputTypes, args[1], engine, composition, options);
+        System.out.println(args[0].substring(0, args[0].lastIndexOf(".")) + " " + composition.getTitle());
+        System.out.println("Finished in " + (System.currentTimeMillis() - startTime) + "ms");
     }
 
     /**
-     * Outputs the music with the given output type.
+     * Outputs the same music with one or several output types.
+     * All audio files are written from a single rendering while the music is generated segment by segment.
+     * The MIDI file is recorded from the same segments, or written directly from the sequence without audio files.
      *
-     * @param outputType The output form. {@link MusicWriter#MP3} is default.
-     * @param fileName   The file to write to
-     * @param sequence   The MIDI sequence to be written
-     * @see MusicWriter
-     */
-    private static void outputMusic(String outputType, String fileName, Sequence sequence) {
-        switch (outputType) {
-            case MusicWriter.PLAY:
-                System.out.println("Playing generated music");
-                MusicWriter.play(sequence);
-                break;
-            case MusicWriter.MIDI:
-                try {
-                    System.out.println("Writing MIDI file to \"" + fileName + "\"");
-                    MusicWriter.writeMidi(sequence, fileName);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case MusicWriter.WAV:
-                try {
-                    System.out.println("Writing WAV file to \"" + fileName + "\"");
-                    MusicWriter.writeWav(sequence, fileName);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                break;
-            case MusicWriter.MP3:
-            default: // mp3 is default
-                try {
-                    System.out.println("Writing MP3 file to \"" + fileName + "\"");
-                    MusicWriter.writeMP3(sequence, fileName);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+     * @param outputTypes The output forms. A single unknown type is written as {@link MusicWriter#MP3}.
+     * @param fileName    The file to write to, which gets the extension of each output type if there are several
+     * @param engine      The engine generating the music
+     * @param composition The composition of the article
+     * @param options     The render settings
+     * @see Engine#render(Engine.Composition, Map, Engine.Options)
+     */
+    private static void outputMusic(String[] outputTypes, String fileName, Engine engine,
+                                    Engine.Composition composition, Engine.Options options) {
+        if (outputTypes.length == 1 && !isAudio(outputTypes[0]) && !outputTypes[0].equals(MusicWriter.MIDI)
+                && !outputTypes[0].equals(MusicWriter.PLAY))
+            outputTypes = new String[]{MusicWriter.MP3}; // mp3 is default
+        Map<String, String> files = new LinkedHashMap<>();
+        boolean audio = false, play = false;
+        for (String outputType : outputTypes) {
+            String file = outputTypes.length == 1 ? fileName : MusicWriter.withExtension(fileName, outputType);
+            if (isAudio(outputType) || outputType.equals(MusicWriter.MIDI)) {
+                files.put(outputType, file);
+                audio |= isAudio(outputType);
+            } else if (outputType.equals(MusicWriter.PLAY))
+                play = true;
+            else System.err.println("Unknown output type \"" + outputType + "\"");
+        }
+        for (Map.Entry<String, String> file : files.entrySet()) {
+            String name = file.getKey().equals(MusicWriter.MP3) // The mp3 encoder adds its extension
+                    ? MusicWriter.withExtension(file.getValue(), MusicWriter.MP3) : file.getValue();
+            System.out.println("Writing " + file.getKey().toUpperCase() + " file to \"" + name + "\"");
+        }
+        if (!audio && !files.isEmpty())
+            try {
+                engine.writeMidi(composition, files.get(MusicWriter.MIDI));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        else if (audio)
+            try {
+                Engine.Rendering rendering = engine.render(composition, files, options);
+                for (String line : rendering.getLog())
+                    System.out.println(line);
+                System.out.println(String.format(Locale.ROOT,
+                        "Rendered %.1fs of audio with the %s profile in %dms, real-time factor: %.3f",
+                        rendering.getSeconds(), options.getRender().getProfile(), rendering.getTime(),
+                        rendering.getRealTimeFactor()));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        if (play) {
+            System.out.println("Playing generated music");
+            engine.play(composition);
+        }
+    }
+
+    /**
+     * @param outputType The output type
+     * @return True if the output type is rendered to audio
+     */
+    static boolean isAudio(String outputType) {
+        return outputType.equals(MusicWriter.WAV) || outputType.equals(MusicWriter.FLAC)
+                || outputType.equals(MusicWriter.MP3);
+    }
+
+    /**
+     * Converts the run parameters to the options of an engine: the search, composition and render settings
+     *
+     * @param args The run parameters
+     * @return The options
+     */
+    static Engine.Options parseOptions(String[] args) {
+        RenderSettings render = RenderSettings.DEFAULT
+                .withMode(extractArgument("r", args, MusicWriter.SEQUENTIAL))
+                .withProfile(RenderProfile.map(extractArgument("q", args, ""), RenderProfile.Standard))
+                .withEngine(extractArgument("e", args, MusicWriter.GERVILL));
+        return Engine.Options.DEFAULT
+                .withPrecise(hasArgument("p", args))
+                .withNoEffects(hasArgument("noeffects", args))
+                .withEnsemble(Ensemble.map(extractArgument("i", args, Ensemble.Piano.name()), Ensemble.Piano))
+                .withDuration(parseDuration(extractArgument("d", args, String.valueOf(Composer.DEFAULT_DURATION))))
+                .withRender(parseGains(extractArgument("g", args, ""), render));
+    }
 
+    /**
+     * Converts the duration argument to seconds.
+     * Invalid values are logged to the console and replaced by {@link Composer#DEFAULT_DURATION}.
+     *
+     * @param value The duration argument
+     * @return The length of the music in seconds or {@link Engine.Options#READING_TIME}
+     */
+    static int parseDuration(String value) {
+        if (value.equals(TEXT_DURATION))
+            return Engine.Options.READING_TIME;
+        try {
+            int duration = Integer.parseInt(value);
+            if (duration > 0)
+                return duration;
+        } catch (NumberFormatException ignored) {
         }
+        System.err.println("Duration \"" + value + "\" is not a valid number of seconds");
+        return Composer.DEFAULT_DURATION;
     }
 
     /**
-     * Loads the database and logs all errors to the console.
+     * Sets the gains of the MIDI channels for the mixdown.
+     * Invalid values are logged to the console and ignored.
+     *
+     * @param value    The gain argument, e.g. "10=0.5,1=1.2"
+     * @param settings The render settings to change
+     * @return The render settings with the gains
+     * @see RenderSettings#withGain(int, float)
+     */
+    static RenderSettings parseGains(String value, RenderSettings settings) {
+        if (value.isEmpty())
+            return settings;
+        for (String gain : value.split(",")) {
+            String[] parts = gain.split("=");
+            try {
+                int channel = Integer.parseInt(parts[0].trim());
+                float factor = Float.parseFloat(parts[1].trim());
+                if (channel >= 1 && channel <= settings.getGains().length && factor >= 0) {
+                    settings = settings.withGain(channel - 1, factor);
+                    continue;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ignored) {
+            }
+            System.err.println("Gain \"" + gain + "\" is not a valid <channel>=<gain> pair");
+        }
+        return settings;
+    }
+
+    /**
+     * Creates an engine with the database and logs all errors to the console.
      *
      * @param file The database file to load
-     * @return True if no errors occurred during loading
-     * @see DatabaseHandler#LoadDB(String)
+     * @return The engine or null if the database could not be loaded
+     * @see Engine#Engine(String)
      */
-    public static boolean loadDatabase(String file) {
+    static Engine createEngine(String file) {
         try {
-            DatabaseHandler.LoadDB(file);
-            return true;
+            return new Engine(file);
         } catch (IOException e) {
             System.err.println("Error loading database  \"" + file + "\"");
             System.err.println(e.getMessage());
-            return false;
+            return null;
         }
     }
 
@@ -205,7 +349,7 @@ public class Main {
      * @param args  Run parameters from main method
      * @return The argument content.
      */
-    private static String extractArgument(String param, String[] args, String escapeValue) {
+    static String extractArgument(String param, String[] args, String escapeValue) {
         for (int i = 0; i < args.length; i++)
             if (args[i].equals("-" + param))
                 if (i + 1 >= args.length || args[i + 1].startsWith("-")) {
@@ -223,7 +367,7 @@ public class Main {
      * @param args  The run arguments
      * @return True if param is present in args
      */
-    private static boolean hasArgument(String param, String[] args) {
+    static boolean hasArgument(String param, String[] args) {
         for (String arg : args)
             if (arg.equals("-" + param))
                 return true;
@@ -0,0 +1,219 @@
+package com.audiophile.t2m;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Runs items through stages, which have their own threads and are connected by bounded queues.
+ * An item enters the next stage as soon as it leaves the previous one, so the stages of different items overlap.
+ * A full queue blocks the stage in front of it, so fast stages cannot run far ahead of slow ones.
+ *
+ * @param <T> The type of the items, which carry their state from stage to stage
+ */
+class Pipeline<T> {
+    /**
+     * The stages in order
+     */
+    private final List<Stage> stages = new ArrayList<>();
+    /**
+     * Records an error of a stage in the item
+     */
+    private final BiConsumer<T, Throwable> failure;
+    /**
+     * The start of the current run in nanoseconds
+     */
+    private volatile long startTime;
+
+    /**
+     * @param failure Records an error thrown by a stage in the item, e.g. so the following stages skip it
+     */
+    Pipeline(BiConsumer<T, Throwable> failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * Adds a stage after the existing ones
+     *
+     * @param name     The name of the stage for the metrics
+     * @param threads  The amount of items processed at once
+     * @param capacity The maximum amount of items waiting for this stage
+     * @param action   Processes an item. Anything it throws is recorded in the item by the failure handler
+     *                 of the pipeline and the item is passed on anyway.
+     * @return This pipeline
+     */
+    Pipeline<T> addStage(String name, int threads, int capacity, Consumer<T> action) {
+        stages.add(new Stage(name, threads, capacity, action));
+        return this;
+    }
+
+    /**
+     * Processes all items and waits until the last stage is done.
+     * The items are fed into the first stage by the calling thread, which blocks while its queue is full.
+     *
+     * @param items The items to process
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    void run(List<T> items) throws InterruptedException {
+        startTime = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < stages.size(); i++)
+            threads.addAll(stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1) : null));
+        Stage first = stages.get(0);
+        for (T item : items)
+            first.put(item);
+        first.finish();
+        for (Thread thread : threads)
+            thread.join();
+    }
+
+    /**
+     * @return The threads, queue depth, processed items and utilization of every stage.
+     * The utilization is the time spent processing divided by the time the threads of the stage exist.
+     */
+    String getMetrics() {
+        StringBuilder builder = new StringBuilder();
+        for (Stage stage : stages)
+            builder.append(stage.getMetrics()).append('\n');
+        return builder.toString();
+    }
+
+    /**
+     * A step of the pipeline with its own threads and input queue
+     */
+    private class Stage {
+        /**
+         * Marks the end of the items in the queue
+         */
+        private final Object END = new Object();
+        private final String name;
+        private final int threads, capacity;
+        private final Consumer<T> action;
+        private final BlockingQueue<Object> queue;
+        /**
+         * The amount of threads still running, the last one ends the next stage
+         */
+        private final AtomicInteger running = new AtomicInteger();
+        /**
+         * The processed items, the time spent processing in nanoseconds and the deepest queue seen
+         */
+        private final AtomicLong processed = new AtomicLong(), busyTime = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+
+        Stage(String name, int threads, int capacity, Consumer<T> action) {
+            this.name = name;
+            this.threads = threads;
+            this.capacity = capacity;
+            this.action = action;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        /**
+         * Starts the threads of this stage
+         *
+         * @param next The stage receiving the processed items or null if this is the last stage
+         * @return The started threads
+         */
+        List<Thread> start(Stage next) {
+            List<Thread> started = new ArrayList<>();
+            running.set(threads);
+            for (int i = 0; i < threads; i++) {
+                Thread thread = new Thread(() -> work(next), "pipeline-" + name + "-" + i);
+                thread.start();
+                started.add(thread);
+            }
+            return started;
+        }
+
+        /**
+         * Takes items from the queue until the end is reached
+         *
+         * @param next The stage receiving the processed items or null if this is the last stage
+         */
+        @SuppressWarnings("unchecked")
+        private void work(Stage next) {
+            boolean ended = false;
+            try {
+                for (Object item; (item = queue.take()) != END; ) {
+                    long start = System.nanoTime();
+                    try {
+                        action.accept((T) item);
+                    } catch (Throwable e) {
+                        fail((T) item, e);
+                    }
+                    busyTime.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                    if (next != null)
+                        next.put((T) item);
+                }
+                ended = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                // The last thread always ends the next stage, so the pipeline cannot wait for it forever
+                if (running.decrementAndGet() == 0) {
+                    if (next != null)
+                        next.finish();
+                } else if (ended)
+                    finish(); // Let the other threads of this stage end too
+            }
+        }
+
+        /**
+         * Records an error in the item and logs it if it cannot be recorded
+         *
+         * @param item The item
+         * @param e    The error thrown while processing the item
+         */
+        private void fail(T item, Throwable e) {
+            try {
+                failure.accept(item, e);
+            } catch (Throwable failed) {
+                e.printStackTrace();
+                failed.printStackTrace();
+            }
+        }
+
+        /**
+         * Adds an item to the queue and blocks while it is full
+         *
+         * @param item The item to process
+         * @throws InterruptedException If the thread was interrupted while waiting
+         */
+        void put(T item) throws InterruptedException {
+            queue.put(item);
+            maxDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+
+        /**
+         * Ends the threads of this stage after the remaining items.
+         * The end is always queued, an interrupt while waiting is restored afterwards.
+         */
+        void finish() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    queue.put(END);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        String getMetrics() {
+            double elapsed = (System.nanoTime() - startTime) * (double) threads;
+            return String.format(Locale.ROOT, "Stage %s: %d threads, queue %d/%d (max %d), %d processed, %.0f%% busy",
+                    name, threads, queue.size() - (queue.contains(END) ? 1 : 0), capacity, maxDepth.get(),
+                    processed.get(), elapsed > 0 ? 100 * busyTime.get() / elapsed : 0);
+        }
+    }
+}
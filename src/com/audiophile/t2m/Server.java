@@ -0,0 +1,311 @@
+package com.audiophile.t2m;
+
+import com.audiophile.t2m.io.MusicWriter;
+import com.audiophile.t2m.music.Ensemble;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the music of articles over HTTP, so the word database and the synthesizers stay loaded between requests.
+ * <p>
+ * <code>POST /music?o=wav&amp;i=piano&amp;p&amp;noeffects&amp;d=30</code> with the article as UTF-8 body returns the music.
+ * The parameters match the options of the command line. All output types are streamed while the music is
+ * generated. A request failing before the music is sent is answered with 500 Internal Server Error. <code>GET /status</code> returns the load of the server.
+ * </p>
+ * <p>
+ * Requests are read on their own connection threads and then rendered by a fixed amount of workers.
+ * If all workers are busy and the queue is full, the request is answered with 429 Too Many Requests.
+ * </p>
+ */
+class Server {
+    /**
+     * The maximum size of an article in bytes
+     */
+    private static final int MAX_ARTICLE_SIZE = 1 << 20;
+    /**
+     * The capacity of the queue of waiting requests per worker
+     */
+    private static final int QUEUE_FACTOR = 2;
+    /**
+     * The content types of the output types
+     */
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put(MusicWriter.WAV, "audio/wav");
+        CONTENT_TYPES.put(MusicWriter.MIDI, "audio/midi");
+        CONTENT_TYPES.put(MusicWriter.MP3, "audio/mpeg");
+        CONTENT_TYPES.put(MusicWriter.FLAC, "audio/flac");
+    }
+
+    /**
+     * The engine shared by all requests
+     */
+    private final Engine engine;
+    /**
+     * The options of the command line, which the parameters of a request override
+     */
+    private final Engine.Options defaults;
+    /**
+     * The workers rendering the music
+     */
+    private final ThreadPoolExecutor workers;
+    /**
+     * The amount of answered and rejected requests
+     */
+    private final AtomicLong completed = new AtomicLong(), rejected = new AtomicLong();
+
+    /**
+     * @param engine   The engine shared by all requests
+     * @param defaults The options of the command line
+     * @param workers  The amount of requests rendered at once
+     */
+    private Server(Engine engine, Engine.Options defaults, int workers) {
+        this.engine = engine;
+        this.defaults = defaults;
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_FACTOR * workers), new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Runs the server until the process is stopped
+     *
+     * @param args The run parameters without the serve argument: the port, the database file and the options
+     * @see Main#CLI_USAGE
+     */
+    static void run(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Server mode needs a port and a database file");
+            return;
+        }
+        int port;
+        try {
+            port = Integer.parseInt(args[0]);
+        } catch (NumberFormatException e) {
+            System.err.println("Port \"" + args[0] + "\" is not a valid number");
+            return;
+        }
+        Engine engine = Main.createEngine(args[1]);
+        if (engine == null)
+            return;
+        String[] options = Arrays.copyOfRange(args, 2, args.length);
+        Engine.Options defaults = Main.parseOptions(options);
+        int workers = Runtime.getRuntime().availableProcessors();
+        try {
+            workers = Math.max(1, Integer.parseInt(Main.extractArgument("w", options, String.valueOf(workers))));
+        } catch (NumberFormatException e) {
+            System.err.println("Workers \"" + Main.extractArgument("w", options, "") + "\" is not a valid number");
+        }
+        // Load the instruments of all ensembles, so no request waits for them
+        int[] programs = new int[0];
+        for (Ensemble ensemble : Ensemble.values()) {
+            int[] add = ensemble.getPrograms();
+            programs = Arrays.copyOf(programs, programs.length + add.length);
+            System.arraycopy(add, 0, programs, programs.length - add.length, add.length);
+        }
+        MusicWriter.prewarm(defaults.getRender(), programs);
+
+        Server server = new Server(engine, defaults, workers);
+        try {
+            HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+            http.createContext("/music", server::handleMusic);
+            http.createContext("/status", server::handleStatus);
+            http.setExecutor(Executors.newCachedThreadPool(r -> {
+                Thread thread = new Thread(r, "http-connection");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            http.start();
+            System.out.println("Serving music on port " + port + " with " + workers + " workers");
+        } catch (IOException e) {
+            e.printStackTrace();
+            server.workers.shutdown();
+        }
+    }
+
+    /**
+     * Reads the article and its options and queues it for rendering
+     *
+     * @param exchange The request
+     * @throws IOException If the request could not be read or answered
+     */
+    private void handleMusic(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            respond(exchange, 405, "Send the article with POST");
+            return;
+        }
+        byte[] article = readBody(exchange.getRequestBody());
+        if (article == null) {
+            respond(exchange, 413, "The article is bigger than " + MAX_ARTICLE_SIZE + " bytes");
+            return;
+        }
+        Map<String, String> options = parseQuery(exchange.getRequestURI().getRawQuery());
+        String outputType = options.getOrDefault("o", MusicWriter.WAV);
+        if (!CONTENT_TYPES.containsKey(outputType)) {
+            respond(exchange, 400, "Unknown output type \"" + outputType + "\"");
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    render(exchange, new String(article, StandardCharsets.UTF_8), options, outputType);
+                } catch (Throwable e) {
+                    System.err.println("Request failed: " + e);
+                    if (exchange.getResponseCode() == -1)
+                        fail(exchange);
+                } finally {
+                    exchange.close();
+                    completed.incrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            respond(exchange, 429, "Too many requests, try again later");
+        }
+    }
+
+    /**
+     * Generates the music of an article and streams it to the client
+     *
+     * @param exchange   The request
+     * @param text       The article
+     * @param parameters The parameters of the request
+     * @param outputType The output type
+     * @throws IOException If the music could not be written
+     */
+    private void render(HttpExchange exchange, String text, Map<String, String> parameters, String outputType)
+            throws IOException {
+        Engine.Options options;
+        Engine.Analysis analysis;
+        try {
+            options = parseOptions(parameters);
+            analysis = engine.analyse(text, options);
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage());
+            return;
+        }
+        Engine.Composition composition = engine.compose(analysis, options);
+
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPES.get(outputType));
+        exchange.sendResponseHeaders(200, 0); // Chunked
+        if (outputType.equals(MusicWriter.MIDI))
+            engine.writeMidi(composition, exchange.getResponseBody());
+        else engine.render(composition, exchange.getResponseBody(), outputType, options);
+        exchange.getResponseBody().flush();
+    }
+
+    /**
+     * Applies the parameters of a request to the options of the command line
+     *
+     * @param parameters The parameters of the request
+     * @return The options of the request
+     */
+    private Engine.Options parseOptions(Map<String, String> parameters) {
+        Engine.Options options = defaults;
+        if (parameters.containsKey("p"))
+            options = options.withPrecise(true);
+        if (parameters.containsKey("noeffects"))
+            options = options.withNoEffects(true);
+        if (parameters.containsKey("i"))
+            options = options.withEnsemble(Ensemble.map(parameters.get("i"), options.getEnsemble()));
+        if (parameters.containsKey("d"))
+            options = options.withDuration(Main.parseDuration(parameters.get("d")));
+        return options;
+    }
+
+    /**
+     * Returns the load of the server as plain text
+     *
+     * @param exchange The request
+     * @throws IOException If the request could not be answered
+     */
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, "workers: " + workers.getActiveCount() + "/" + workers.getMaximumPoolSize() + " busy\n"
+                + "queue: " + workers.getQueue().size() + "/" + QUEUE_FACTOR * workers.getMaximumPoolSize() + "\n"
+                + "completed: " + completed.get() + "\n"
+                + "rejected: " + rejected.get() + "\n");
+    }
+
+    /**
+     * Answers a request, which failed before its response was sent, with 500 Internal Server Error
+     *
+     * @param exchange The request
+     */
+    private static void fail(HttpExchange exchange) {
+        try {
+            respond(exchange, 500, "The music could not be generated");
+        } catch (IOException e) {
+            System.err.println("Could not answer the failed request: " + e);
+        }
+    }
+
+    /**
+     * Sends a plain text response and closes the exchange
+     *
+     * @param exchange The request
+     * @param status   The HTTP status code
+     * @param message  The text
+     * @throws IOException If the response could not be sent
+     */
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /**
+     * @param input The request body
+     * @return The body or null if it is bigger than {@link Server#MAX_ARTICLE_SIZE}
+     * @throws IOException If the body could not be read
+     */
+    private static byte[] readBody(InputStream input) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int read; (read = input.read(buffer)) >= 0; ) {
+            body.write(buffer, 0, read);
+            if (body.size() > MAX_ARTICLE_SIZE)
+                return null;
+        }
+        return body.toByteArray();
+    }
+
+    /**
+     * @param query The raw query of the request, e.g. "o=wav&amp;p"
+     * @return The decoded parameters, parameters without value are mapped to an empty string
+     * @throws UnsupportedEncodingException Never, UTF-8 is always supported
+     */
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> options = new HashMap<>();
+        if (query == null)
+            return options;
+        for (String parameter : query.split("&")) {
+            int split = parameter.indexOf('=');
+            String name = split < 0 ? parameter : parameter.substring(0, split);
+            String value = split < 0 ? "" : parameter.substring(split + 1);
+            options.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return options;
+    }
+}
@@ -9,6 +9,8 @@ public class Utils {
     /**
      * Applies a one-dimensional gaussian blur to the array, to remove jumps between values.
      * The original array is not changed.
+     * The blur is approximated with triangular weights, which are calculated as two box filters with running sums,
+     * so the runtime does not depend on the radius.
      *
      * @param data   The source data, which is blurred.
      * @param radius The radius of the blur. Maximum is the half of the data array length
@@ -28,11 +30,21 @@ public class Utils {
             radius = length / 2;
         float[] result = new float[length];
         float s = radius * radius;
+        // boxes[j] is the sum of the values j - radius + 1 to j, values outside of the array are clamped
+        double[] boxes = new double[length + radius - 1];
+        double box = data[0] * radius;
+        for (int j = 0; j < boxes.length; j++) {
+            box += data[Math.min(j, length - 1)] - data[Math.max(j - radius, 0)];
+            boxes[j] = box;
+        }
+        // The sum of radius boxes weights every value by its distance to the center
+        double sum = 0;
+        for (int j = 0; j < radius - 1; j++)
+            sum += boxes[j];
         for (int i = 0; i < length; i++) {
-            float sum = 0;
-            for (int r = -radius; r <= radius; r++)
-                sum += data[clamp(i + r, 0, length - 1)] * (radius - Math.abs(r));
-            result[i] = sum / s;
+            sum += boxes[i + radius - 1];
+            result[i] = (float) (sum / s);
+            sum -= boxes[i];
         }
         return result;
     }
@@ -0,0 +1,17 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+
+/**
+ * Receives the audio of a renderer while it is rendered, e.g. to write it to a file
+ */
+interface AudioSink {
+    /**
+     * Reads the audio until its end
+     *
+     * @param stream The rendered audio, which may have an unknown length
+     * @throws IOException If the audio could not be written
+     */
+    void write(AudioInputStream stream) throws IOException;
+}
@@ -0,0 +1,183 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Passes the rendered audio to several sinks at once, so the music is rendered only once for all audio files.
+ * Every sink runs on its own thread and reads from a bounded buffer. The rendering waits for the slowest sink
+ * when its buffer is full, so the memory usage does not depend on the length of the music.
+ */
+class AudioTee implements AudioSink {
+    /**
+     * The amount of frames in a chunk of the buffers
+     */
+    private static final int CHUNK_FRAMES = 4096;
+    /**
+     * The amount of chunks every sink can fall behind the rendering
+     */
+    private static final int BUFFER_CHUNKS = 32;
+    /**
+     * Marks the end of the audio in the buffers
+     */
+    private static final byte[] END = new byte[0];
+    /**
+     * Marks that the rendering failed
+     */
+    private static final byte[] FAILED = new byte[0];
+    /**
+     * The sinks receiving the audio
+     */
+    private final List<AudioSink> sinks;
+
+    /**
+     * @param sinks The sinks receiving the audio
+     */
+    AudioTee(List<AudioSink> sinks) {
+        this.sinks = sinks;
+    }
+
+    /**
+     * Reads the audio until its end and passes every chunk to all sinks
+     *
+     * @param stream The audio
+     * @throws IOException If the audio could not be read or a sink failed
+     */
+    @Override
+    public void write(AudioInputStream stream) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(sinks.size());
+        List<BlockingQueue<byte[]>> buffers = new ArrayList<>(sinks.size());
+        List<Future<Void>> futures = new ArrayList<>(sinks.size());
+        for (AudioSink sink : sinks) {
+            BlockingQueue<byte[]> buffer = new ArrayBlockingQueue<>(BUFFER_CHUNKS);
+            buffers.add(buffer);
+            BufferStream input = new BufferStream(buffer);
+            futures.add(executor.submit(() -> {
+                try {
+                    sink.write(new AudioInputStream(input, stream.getFormat(), stream.getFrameLength()));
+                } finally {
+                    input.drain(); // Do not block the other sinks if this sink stops early
+                }
+                return null;
+            }));
+        }
+
+        try {
+            byte[] marker = END;
+            try {
+                int chunkSize = CHUNK_FRAMES * stream.getFormat().getFrameSize();
+                for (byte[] chunk; (chunk = readChunk(stream, chunkSize)) != null; )
+                    for (BlockingQueue<byte[]> buffer : buffers)
+                        buffer.put(chunk);
+            } catch (IOException | RuntimeException e) {
+                marker = FAILED;
+                throw e;
+            } finally {
+                for (BlockingQueue<byte[]> buffer : buffers)
+                    buffer.put(marker);
+            }
+            // Wait for all sinks, so a failed sink does not stop the others
+            IOException error = null;
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (error != null)
+                        error.addSuppressed(e.getCause());
+                    else if (e.getCause() instanceof IOException)
+                        error = (IOException) e.getCause();
+                    else error = new IOException("Could not write audio", e.getCause());
+                }
+            }
+            if (error != null)
+                throw error;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing audio", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the next chunk of the audio
+     *
+     * @param stream    The audio
+     * @param chunkSize The size of a chunk in bytes
+     * @return The chunk, which is only smaller at the end of the audio, or null if the audio ended
+     * @throws IOException If the audio could not be read
+     */
+    private static byte[] readChunk(AudioInputStream stream, int chunkSize) throws IOException {
+        byte[] chunk = new byte[chunkSize];
+        int length = 0;
+        for (int read; length < chunk.length && (read = stream.read(chunk, length, chunk.length - length)) >= 0; )
+            length += read;
+        if (length == 0)
+            return null;
+        return length < chunk.length ? Arrays.copyOf(chunk, length) : chunk;
+    }
+
+    /**
+     * Reads the chunks from the buffer of one sink
+     */
+    private static class BufferStream extends InputStream {
+        private final BlockingQueue<byte[]> buffer;
+        /**
+         * The current chunk and the read position in it
+         */
+        private byte[] chunk = new byte[0];
+        private int position;
+
+        BufferStream(BlockingQueue<byte[]> buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            while (position >= chunk.length) {
+                if (chunk == END)
+                    return -1;
+                if (chunk == FAILED)
+                    throw new IOException("Rendering failed");
+                try {
+                    chunk = buffer.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading audio", e);
+                }
+                position = 0;
+            }
+            int read = Math.min(len, chunk.length - position);
+            System.arraycopy(chunk, position, b, off, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+        }
+
+        /**
+         * Discards all chunks until the end of the audio
+         *
+         * @throws InterruptedException If the thread was interrupted while waiting for the rendering
+         */
+        void drain() throws InterruptedException {
+            while (chunk != END && chunk != FAILED)
+                chunk = buffer.take();
+        }
+    }
+}
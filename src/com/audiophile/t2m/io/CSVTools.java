@@ -1,8 +1,11 @@
 package com.audiophile.t2m.io;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Simon Niedermayr
@@ -17,6 +20,10 @@ public class CSVTools {
      * Default quote characters for csv files
      */
     private static final char DEFAULT_QUOTE = '"';
+    /**
+     * The tables read by {@link CSVTools#ReadCachedFile(String)} with the modification time of their file
+     */
+    private static final Map<String, CachedTable> cache = new ConcurrentHashMap<>();
 
     /**
      * Reads a CSV (Comma-separated values) file and converts it to a table.
@@ -57,6 +64,37 @@ public class CSVTools {
         return table;
     }
 
+    /**
+     * Reads a CSV file like {@link CSVTools#ReadFile(String)}, but parses it only again if the file was modified.
+     * Useful for resources, which are read for every article. The returned table is shared and must not be modified.
+     *
+     * @param fileName String Path of the file to be read
+     * @return The CSV table as two-dimensional string array
+     * @throws IOException Throws exception if the document could not be read or does not has the expected format
+     */
+    public static String[][] ReadCachedFile(String fileName) throws IOException {
+        long modified = new File(fileName).lastModified();
+        CachedTable cached = cache.get(fileName);
+        if (cached == null || cached.modified != modified) {
+            cached = new CachedTable(modified, ReadFile(fileName));
+            cache.put(fileName, cached);
+        }
+        return cached.table;
+    }
+
+    /**
+     * A parsed CSV file
+     */
+    private static class CachedTable {
+        final long modified;
+        final String[][] table;
+
+        CachedTable(long modified, String[][] table) {
+            this.modified = modified;
+            this.table = table;
+        }
+    }
+
     /**
      * The function takes a line in CSV format and converts it to a column with individual cells.
      *
@@ -0,0 +1,293 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Renders every MIDI channel of a music on its own synthesizer and mixes the audio down.
+ * The channels are rendered block by block, so the memory usage does not depend on the length of the music.
+ */
+class ChannelParallelRenderer implements RenderEngine {
+    /**
+     * The amount of MIDI channels
+     */
+    private static final int CHANNELS = 16;
+    /**
+     * The length of the blocks rendered at once in seconds
+     */
+    private static final int BLOCK_SECONDS = 5;
+    /**
+     * The synthesizers for the channels with the settings of every pool of a profile.
+     * Every used channel keeps its synthesizer during the whole rendering, so these pools need one synthesizer
+     * for every channel.
+     */
+    private static final Map<SynthesizerPool, SynthesizerPool> channelPools = new HashMap<>();
+    /**
+     * A permit for every synthesizer of a channel pool. A rendering takes the permits for all its channels at once,
+     * before it takes the synthesizers, so renderings holding a part of the synthesizers cannot wait for each other.
+     */
+    private static final Map<SynthesizerPool, Semaphore> channelPermits = new HashMap<>();
+    /**
+     * The settings of the synthesizers
+     */
+    private final SynthesizerPool pool;
+    /**
+     * The amount of channels rendered at once
+     */
+    private final int threads;
+    /**
+     * The gain of every channel in the mixdown
+     */
+    private final float[] gains;
+
+    /**
+     * @param pool    The synthesizers whose format and settings are used for the channels
+     * @param threads The amount of channels rendered at once
+     * @param gains   The gain of every channel in the mixdown
+     */
+    ChannelParallelRenderer(SynthesizerPool pool, int threads, float[] gains) {
+        this.pool = pool;
+        this.threads = threads;
+        this.gains = gains;
+    }
+
+    /**
+     * @param pool The synthesizers whose format and settings are used
+     * @return The pool with a synthesizer for every channel
+     */
+    private static synchronized SynthesizerPool getChannelPool(SynthesizerPool pool) {
+        return channelPools.computeIfAbsent(pool, p -> new SynthesizerPool(p.getFormat(), p.getInfo(), CHANNELS));
+    }
+
+    /**
+     * @param channelPool The pool with a synthesizer for every channel
+     * @return The permits for the synthesizers of the pool, which are handed out in the order they are requested
+     */
+    private static synchronized Semaphore getPermits(SynthesizerPool channelPool) {
+        return channelPermits.computeIfAbsent(channelPool, p -> new Semaphore(CHANNELS, true));
+    }
+
+    /**
+     * Renders a Sequence split into segments.
+     * All segments are collected first, so the events can be split by channel.
+     *
+     * @param segments The segments of the sequence in time order with ticks relative to the beginning of the music
+     * @param sink     Receives the audio while it is rendered
+     * @return The time it took and the metrics of the synthesizer pool of the channels
+     * @throws IOException Could not render or write the audio
+     */
+    @Override
+    public String render(final Iterator<Sequence> segments, final AudioSink sink) throws IOException {
+        long start = System.currentTimeMillis();
+        EventTimeline timeline = EventTimeline.of(segments);
+        SynthesizerPool channelPool = getChannelPool(pool);
+        AudioFormat format = channelPool.getFormat();
+        long totalFrames = (long) (format.getFrameRate() * (timeline.endTime / 1000000.0 + 1)); // Add extra second for smooth ending
+
+        // Find the used channels
+        boolean[] used = new boolean[CHANNELS];
+        for (MidiMessage message : timeline.messages)
+            if (message instanceof ShortMessage && message.getStatus() < 0xF0)
+                used[((ShortMessage) message).getChannel()] = true;
+        ArrayList<ChannelRenderer> renderers = new ArrayList<>();
+        for (int channel = 0; channel < CHANNELS; channel++)
+            if (used[channel])
+                renderers.add(new ChannelRenderer(channel, timeline, channelPool));
+
+        Semaphore permits = getPermits(channelPool);
+        try {
+            permits.acquire(renderers.size());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for synthesizers", e);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            MixStream stream = new MixStream(renderers, executor, format, totalFrames);
+            sink.write(new AudioInputStream(stream, format, totalFrames));
+        } finally {
+            executor.shutdownNow();
+            for (ChannelRenderer renderer : renderers)
+                renderer.release();
+            permits.release(renderers.size());
+        }
+        long end = System.currentTimeMillis();
+        return "Rendering " + renderers.size() + " channels on " + threads + " threads took: " + (end - start) + "ms\n"
+                + channelPool.getMetrics();
+    }
+
+    /**
+     * Renders the events of one channel on its own synthesizer.
+     * System messages are sent to all channels.
+     */
+    private static class ChannelRenderer implements Callable<float[]> {
+        /**
+         * The MIDI channel
+         */
+        private final int channel;
+        /**
+         * The events of the music
+         */
+        private final EventTimeline timeline;
+        /**
+         * The pool to take the synthesizer from
+         */
+        private final SynthesizerPool pool;
+        /**
+         * The synthesizer of the channel, which is taken on the first block
+         */
+        private SynthesizerPool.PooledSynthesizer synth;
+        /**
+         * The amount of frames of the next block
+         */
+        private int blockFrames;
+
+        private ChannelRenderer(int channel, EventTimeline timeline, SynthesizerPool pool) {
+            this.channel = channel;
+            this.timeline = timeline;
+            this.pool = pool;
+        }
+
+        /**
+         * Renders the next block
+         *
+         * @return The float samples of the block
+         * @throws Exception If the audio could not be rendered
+         */
+        @Override
+        public float[] call() throws Exception {
+            if (synth == null) {
+                synth = pool.acquire();
+                long offset = synth.getMicrosecondPosition();
+                for (int i = 0; i < timeline.size(); i++) {
+                    MidiMessage message = timeline.messages[i];
+                    if (!(message instanceof ShortMessage) || message.getStatus() >= 0xF0
+                            || ((ShortMessage) message).getChannel() == channel)
+                        synth.receiver.send(message, offset + timeline.times[i]);
+                }
+            }
+            AudioFormat format = synth.stream.getFormat();
+            int channels = format.getChannels(), frameSize = format.getFrameSize();
+            float[] samples = new float[blockFrames * channels];
+            byte[] buffer = new byte[4096 * frameSize];
+            int position = 0;
+            while (position < samples.length) {
+                int read = synth.stream.read(buffer, 0, Math.min(buffer.length, (samples.length - position) / channels * frameSize));
+                if (read < 0)
+                    break;
+                PcmUtils.ToFloats(buffer, read, format, samples, position);
+                position += read / frameSize * channels;
+            }
+            return samples;
+        }
+
+        /**
+         * Gives the synthesizer back to the pool
+         */
+        private void release() {
+            if (synth != null)
+                pool.release(synth);
+            synth = null;
+        }
+    }
+
+    /**
+     * Renders the next block of all channels at once and mixes them down
+     */
+    private class MixStream extends InputStream {
+        /**
+         * The renderers of all used channels
+         */
+        private final ArrayList<ChannelRenderer> renderers;
+        /**
+         * The threads rendering the channels
+         */
+        private final ExecutorService executor;
+        /**
+         * The format of the audio
+         */
+        private final AudioFormat format;
+        /**
+         * The length of the audio in frames and the amount of frames mixed so far
+         */
+        private final long totalFrames;
+        private long position;
+        /**
+         * The mixed audio of the current block and the read position in it
+         */
+        private byte[] block = new byte[0];
+        private int blockPosition;
+
+        MixStream(ArrayList<ChannelRenderer> renderers, ExecutorService executor, AudioFormat format, long totalFrames) {
+            this.renderers = renderers;
+            this.executor = executor;
+            this.format = format;
+            this.totalFrames = totalFrames;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (blockPosition >= block.length) {
+                if (position >= totalFrames)
+                    return -1;
+                mixNext();
+            }
+            int read = Math.min(len, block.length - blockPosition);
+            System.arraycopy(block, blockPosition, b, off, read);
+            blockPosition += read;
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+        }
+
+        /**
+         * Renders the next block of all channels and adds them up with their gain
+         *
+         * @throws IOException If a channel could not be rendered
+         */
+        private void mixNext() throws IOException {
+            int frames = (int) Math.min(totalFrames - position, (long) format.getFrameRate() * BLOCK_SECONDS);
+            ArrayList<Future<float[]>> futures = new ArrayList<>(renderers.size());
+            for (ChannelRenderer renderer : renderers) {
+                renderer.blockFrames = frames;
+                futures.add(executor.submit(renderer));
+            }
+            float[] mix = new float[frames * format.getChannels()];
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    float[] samples = futures.get(i).get();
+                    float gain = gains[renderers.get(i).channel];
+                    for (int n = 0; n < mix.length; n++)
+                        mix[n] += gain * samples[n];
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rendering", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not render channel", e.getCause());
+            }
+            position += frames;
+            block = new byte[frames * format.getFrameSize()];
+            blockPosition = 0;
+            PcmUtils.ToBytes(mix, format, block);
+        }
+    }
+}
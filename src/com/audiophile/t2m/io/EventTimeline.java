@@ -0,0 +1,116 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * All events of a music in time order with their time in microseconds.
+ * Unlike the segments of the composer, a timeline allows to render any part of the music independently.
+ */
+class EventTimeline {
+    /**
+     * The messages of all events except meta messages
+     */
+    final MidiMessage[] messages;
+    /**
+     * The time of every event in microseconds
+     */
+    final long[] times;
+    /**
+     * The time of the last event in microseconds
+     */
+    final long endTime;
+
+    private EventTimeline(MidiMessage[] messages, long[] times, long endTime) {
+        this.messages = messages;
+        this.times = times;
+        this.endTime = endTime;
+    }
+
+    /**
+     * Collects the events of all segments
+     *
+     * @param segments The segments of the music in time order
+     * @return The timeline of the music
+     */
+    static EventTimeline of(Iterator<Sequence> segments) {
+        final ArrayList<MidiMessage> messages = new ArrayList<>();
+        final long[][] times = {new long[1024]};
+        MidiToWavRenderer.EventSender sender = new MidiToWavRenderer.EventSender(0);
+        Receiver collector = new Receiver() {
+            @Override
+            public void send(MidiMessage message, long timeStamp) {
+                if (messages.size() == times[0].length)
+                    times[0] = Arrays.copyOf(times[0], times[0].length * 2);
+                times[0][messages.size()] = timeStamp;
+                messages.add(message);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        long endTime = 0;
+        while (segments.hasNext())
+            endTime = sender.send(segments.next(), collector);
+        return new EventTimeline(messages.toArray(new MidiMessage[messages.size()]),
+                Arrays.copyOf(times[0], messages.size()), endTime);
+    }
+
+    /**
+     * @return The amount of events
+     */
+    int size() {
+        return messages.length;
+    }
+
+    /**
+     * @param index The index of the event
+     * @return True if the event starts a note
+     */
+    boolean isNoteOn(int index) {
+        return messages[index] instanceof ShortMessage
+                && ((ShortMessage) messages[index]).getCommand() == ShortMessage.NOTE_ON
+                && ((ShortMessage) messages[index]).getData2() > 0;
+    }
+
+    /**
+     * @param index The index of the event
+     * @return True if the event stops a note
+     */
+    boolean isNoteOff(int index) {
+        if (!(messages[index] instanceof ShortMessage))
+            return false;
+        ShortMessage message = (ShortMessage) messages[index];
+        return message.getCommand() == ShortMessage.NOTE_OFF
+                || message.getCommand() == ShortMessage.NOTE_ON && message.getData2() == 0;
+    }
+
+    /**
+     * Finds the time every note is stopped. A note is stopped by the next note off on its channel and key.
+     *
+     * @return The time of the note off for every note on and -1 for all other events.
+     * Notes which are never stopped end at {@link EventTimeline#endTime}.
+     */
+    long[] releaseTimes() {
+        long[] releases = new long[times.length];
+        long[] nextOff = new long[16 * 128];
+        Arrays.fill(nextOff, endTime);
+        for (int i = times.length - 1; i >= 0; i--) {
+            releases[i] = -1;
+            if (isNoteOn(i) || isNoteOff(i)) {
+                ShortMessage message = (ShortMessage) messages[i];
+                int key = message.getChannel() * 128 + message.getData1();
+                if (isNoteOn(i))
+                    releases[i] = nextOff[key];
+                else nextOff[key] = times[i];
+            }
+        }
+        return releases;
+    }
+}
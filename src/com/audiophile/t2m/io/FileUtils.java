@@ -59,7 +59,7 @@ public class FileUtils {
      */
     public static Sequence LoadMidiFile(String file) {
         try {
-            return MidiSystem.getSequence(new FileInputStream(file));
+            return MidiSystem.getSequence(new File(file));
         } catch (InvalidMidiDataException | IOException e) {
             System.err.println("Midi file '"+file+"' not found");
             return null;
@@ -0,0 +1,651 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Encodes audio to a lossless FLAC file while it is rendered, without an external process.
+ * The audio is split into blocks of a fixed size, which are encoded on several threads and written in order.
+ * Every channel of a block is predicted with the best fixed polynomial predictor and the residual is rice coded.
+ * Stereo audio additionally uses the best of the four FLAC channel decorrelation modes.
+ */
+class FlacEncoder {
+    /**
+     * The amount of frames in a block
+     */
+    private static final int BLOCK_SIZE = 4096;
+    /**
+     * The highest order of the fixed predictors
+     */
+    private static final int MAX_ORDER = 4;
+    /**
+     * The highest order of the partitions of the residual
+     */
+    private static final int MAX_PARTITION_ORDER = 6;
+    /**
+     * The channel assignments of stereo blocks
+     */
+    private static final int LEFT_SIDE = 8, SIDE_RIGHT = 9, MID_SIDE = 10;
+    /**
+     * The sample rates with their own code in the frame header
+     */
+    private static final int[] SAMPLE_RATES = {0, 88200, 176400, 192000, 8000, 16000, 22050, 24000,
+            32000, 44100, 48000, 96000};
+    /**
+     * The sample sizes with their own code in the frame header
+     */
+    private static final int[] SAMPLE_SIZES = {0, 8, 12, 0, 16, 20, 24};
+    /**
+     * The tables of the checksums of the frame header and the frame
+     */
+    private static final int[] CRC8 = new int[256], CRC16 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i, crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8[i] = crc8 & 0xFF;
+            CRC16[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    /**
+     * Reads the audio until its end and encodes it to the given FLAC file.
+     * The length, the frame sizes and the MD5 signature in the header are written when the audio is complete.
+     *
+     * @param stream  The audio in signed PCM with 8 to 24 bits, which may have an unknown length
+     * @param flac    The file to write to
+     * @param threads The amount of blocks encoded at once
+     * @throws IOException If the audio could not be read or written
+     */
+    static void Encode(AudioInputStream stream, File flac, int threads) throws IOException {
+        AudioFormat format = checkFormat(stream.getFormat());
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 is not available", e);
+        }
+        try (RandomAccessFile file = new RandomAccessFile(flac, "rw")) {
+            file.setLength(0);
+            file.write(new byte[]{'f', 'L', 'a', 'C'});
+            file.write(streamInfo(format, 0, 0, 0, new byte[16]));
+            long[] info = encodeFrames(stream, file, threads, md5);
+            file.seek(4);
+            file.write(streamInfo(format, info[0], (int) info[1], (int) info[2], md5.digest()));
+        }
+    }
+
+    /**
+     * Reads the audio until its end and streams it as FLAC, e.g. to a client. As the header is sent first,
+     * it leaves the length, the frame sizes and the MD5 signature unknown, which FLAC allows.
+     * The stream is not closed.
+     *
+     * @param stream  The audio in signed PCM with 8 to 24 bits, which may have an unknown length
+     * @param output  The stream to write to
+     * @param threads The amount of blocks encoded at once
+     * @throws IOException If the audio could not be read or written
+     */
+    static void Encode(AudioInputStream stream, OutputStream output, int threads) throws IOException {
+        AudioFormat format = checkFormat(stream.getFormat());
+        DataOutputStream data = new DataOutputStream(output);
+        data.write(new byte[]{'f', 'L', 'a', 'C'});
+        data.write(streamInfo(format, 0, 0, 0, new byte[16]));
+        encodeFrames(stream, data, threads, null);
+        data.flush();
+    }
+
+    /**
+     * @param format The format of the audio
+     * @return The format, if it can be encoded
+     * @throws IOException If the format can not be encoded
+     */
+    private static AudioFormat checkFormat(AudioFormat format) throws IOException {
+        int bitsPerSample = format.getSampleSizeInBits(), channels = format.getChannels();
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || bitsPerSample % 8 != 0
+                || bitsPerSample < 8 || bitsPerSample > 24 || channels < 1 || channels > 8)
+            throw new IOException("Only signed PCM audio with 8 to 24 bits and up to 8 channels can be encoded to flac");
+        return format;
+    }
+
+    /**
+     * Reads the audio until its end, encodes it in blocks and writes the frames in order
+     *
+     * @param stream  The audio
+     * @param output  Receives the encoded frames
+     * @param threads The amount of blocks encoded at once
+     * @param md5     Receives the audio for the MD5 signature or null
+     * @return The length of the audio in frames, the size of the smallest and of the biggest encoded frame
+     * @throws IOException If the audio could not be read or written
+     */
+    private static long[] encodeFrames(AudioInputStream stream, DataOutput output, int threads, MessageDigest md5)
+            throws IOException {
+        AudioFormat format = stream.getFormat();
+        int bitsPerSample = format.getSampleSizeInBits(), channels = format.getChannels();
+        int sampleRate = (int) format.getSampleRate();
+        // The MD5 signature is calculated over little endian samples
+        AudioFormat littleEndian = new AudioFormat(format.getSampleRate(), bitsPerSample, channels, true, false);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayDeque<Future<byte[]>> encoding = new ArrayDeque<>();
+            byte[] buffer = new byte[BLOCK_SIZE * format.getFrameSize()];
+            long totalFrames = 0, frameNumber = 0;
+            int minFrameSize = Integer.MAX_VALUE, maxFrameSize = 0;
+            for (int length; (length = readBlock(stream, buffer)) > 0; ) {
+                int[] interleaved = new int[length / format.getFrameSize() * channels];
+                PcmUtils.ToSamples(buffer, length, format, interleaved, 0);
+                if (md5 != null && format.isBigEndian()) {
+                    byte[] bytes = new byte[length];
+                    PcmUtils.ToBytes(interleaved, littleEndian, bytes);
+                    md5.update(bytes);
+                } else if (md5 != null) {
+                    md5.update(buffer, 0, length);
+                }
+
+                final long number = frameNumber++;
+                encoding.add(executor.submit(() -> encodeFrame(interleaved, channels, bitsPerSample, sampleRate, number)));
+                totalFrames += interleaved.length / channels;
+                // Write the oldest block if enough blocks are encoded at once
+                while (encoding.size() >= 2 * threads || !encoding.isEmpty() && encoding.peek().isDone()) {
+                    byte[] frame = take(encoding);
+                    minFrameSize = Math.min(minFrameSize, frame.length);
+                    maxFrameSize = Math.max(maxFrameSize, frame.length);
+                    output.write(frame);
+                }
+            }
+            while (!encoding.isEmpty()) {
+                byte[] frame = take(encoding);
+                minFrameSize = Math.min(minFrameSize, frame.length);
+                maxFrameSize = Math.max(maxFrameSize, frame.length);
+                output.write(frame);
+            }
+            if (totalFrames == 0)
+                minFrameSize = 0;
+            return new long[]{totalFrames, minFrameSize, maxFrameSize};
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Fills the buffer with the next block, unless the audio ends before
+     *
+     * @param stream The audio
+     * @param buffer The buffer for a whole block
+     * @return The amount of bytes read, which is 0 at the end of the audio
+     * @throws IOException If the audio could not be read
+     */
+    private static int readBlock(AudioInputStream stream, byte[] buffer) throws IOException {
+        int length = 0;
+        for (int read; length < buffer.length && (read = stream.read(buffer, length, buffer.length - length)) >= 0; )
+            length += read;
+        return length;
+    }
+
+    /**
+     * Waits for the oldest block to be encoded
+     *
+     * @param encoding The blocks which are encoded in order
+     * @return The encoded frame of the oldest block
+     * @throws IOException If the block could not be encoded
+     */
+    private static byte[] take(ArrayDeque<Future<byte[]>> encoding) throws IOException {
+        try {
+            return encoding.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding flac", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not encode flac", e.getCause());
+        }
+    }
+
+    /**
+     * Creates the STREAMINFO metadata block, which is the only and therefore last metadata block
+     *
+     * @param format        The format of the audio
+     * @param totalFrames   The length of the audio in frames or 0 if it is unknown
+     * @param minFrameSize  The size of the smallest encoded frame in bytes or 0 if it is unknown
+     * @param maxFrameSize  The size of the biggest encoded frame in bytes or 0 if it is unknown
+     * @param md5           The MD5 signature of the audio or zeros if it is unknown
+     * @return The metadata block with its header
+     */
+    private static byte[] streamInfo(AudioFormat format, long totalFrames, int minFrameSize, int maxFrameSize,
+                                     byte[] md5) {
+        BitWriter writer = new BitWriter(38);
+        writer.write(1, 1); // Last metadata block
+        writer.write(0, 7); // STREAMINFO
+        writer.write(34, 24);
+        writer.write(BLOCK_SIZE, 16);
+        writer.write(BLOCK_SIZE, 16);
+        writer.write(minFrameSize, 24);
+        writer.write(maxFrameSize, 24);
+        writer.write((int) format.getSampleRate(), 20);
+        writer.write(format.getChannels() - 1, 3);
+        writer.write(format.getSampleSizeInBits() - 1, 5);
+        writer.write(totalFrames >>> 32, 4);
+        writer.write(totalFrames, 32);
+        for (byte b : md5)
+            writer.write(b, 8);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Encodes a block to a frame
+     *
+     * @param interleaved   The interleaved samples of the block
+     * @param channels      The amount of channels
+     * @param bitsPerSample The size of a sample
+     * @param sampleRate    The sample rate in Hz
+     * @param frameNumber   The index of the block
+     * @return The encoded frame
+     */
+    private static byte[] encodeFrame(int[] interleaved, int channels, int bitsPerSample, int sampleRate,
+                                      long frameNumber) {
+        int length = interleaved.length / channels;
+        int[][] samples = new int[channels][length];
+        for (int i = 0, n = 0; i < length; i++)
+            for (int c = 0; c < channels; c++)
+                samples[c][i] = interleaved[n++];
+
+        // Find the cheapest channel assignment
+        int assignment = channels - 1;
+        Subframe[] subframes = new Subframe[channels];
+        for (int c = 0; c < channels; c++)
+            subframes[c] = Subframe.of(samples[c], bitsPerSample);
+        if (channels == 2) {
+            int[] side = new int[length], mid = new int[length];
+            for (int i = 0; i < length; i++) {
+                side[i] = samples[0][i] - samples[1][i];
+                mid[i] = (samples[0][i] + samples[1][i]) >> 1;
+            }
+            Subframe sideFrame = Subframe.of(side, bitsPerSample + 1), midFrame = Subframe.of(mid, bitsPerSample);
+            long independent = subframes[0].bits + subframes[1].bits;
+            long leftSide = subframes[0].bits + sideFrame.bits;
+            long sideRight = sideFrame.bits + subframes[1].bits;
+            long midSide = midFrame.bits + sideFrame.bits;
+            long best = Math.min(Math.min(independent, leftSide), Math.min(sideRight, midSide));
+            if (best == midSide) {
+                assignment = MID_SIDE;
+                subframes = new Subframe[]{midFrame, sideFrame};
+            } else if (best == leftSide) {
+                assignment = LEFT_SIDE;
+                subframes[1] = sideFrame;
+            } else if (best == sideRight) {
+                assignment = SIDE_RIGHT;
+                subframes[0] = sideFrame;
+            }
+        }
+
+        BitWriter writer = new BitWriter(length * channels * bitsPerSample / 8 + 64);
+        writer.write(0xFFF8, 16); // Sync code and fixed block size
+        writer.write(length == BLOCK_SIZE ? 12 : 7, 4);
+        int rateCode = indexOf(SAMPLE_RATES, sampleRate);
+        if (rateCode <= 0)
+            rateCode = sampleRate % 1000 == 0 && sampleRate / 1000 < 256 ? 12 : sampleRate < 65536 ? 13 : 0;
+        writer.write(rateCode, 4);
+        writer.write(assignment, 4);
+        writer.write(Math.max(0, indexOf(SAMPLE_SIZES, bitsPerSample)), 3);
+        writer.write(0, 1);
+        writer.writeUtf8(frameNumber);
+        if (length != BLOCK_SIZE)
+            writer.write(length - 1, 16);
+        if (rateCode == 12)
+            writer.write(sampleRate / 1000, 8);
+        else if (rateCode == 13)
+            writer.write(sampleRate, 16);
+        writer.write(writer.crc(CRC8, 8), 8);
+
+        for (Subframe subframe : subframes)
+            subframe.write(writer);
+        writer.alignToByte();
+        writer.write(writer.crc(CRC16, 16), 16);
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param values The values to search in
+     * @param value  The value to find
+     * @return The index of the value or -1 if it was not found
+     */
+    private static int indexOf(int[] values, int value) {
+        for (int i = 0; i < values.length; i++)
+            if (values[i] == value)
+                return i;
+        return -1;
+    }
+
+    /**
+     * The encoding of one channel of a block
+     */
+    private static class Subframe {
+        /**
+         * The samples of the channel
+         */
+        private final int[] samples;
+        /**
+         * The size of a sample, which is one bit more for side channels
+         */
+        private final int bitsPerSample;
+        /**
+         * The order of the fixed predictor, -1 for a constant and -2 for verbatim samples
+         */
+        private int order;
+        /**
+         * The residual of the predictor
+         */
+        private long[] residual;
+        /**
+         * The partition order of the residual and the rice parameter of every partition
+         */
+        private int partitionOrder;
+        private int[] parameters;
+        /**
+         * The estimated size of the encoded subframe in bits
+         */
+        private long bits;
+
+        private Subframe(int[] samples, int bitsPerSample) {
+            this.samples = samples;
+            this.bitsPerSample = bitsPerSample;
+        }
+
+        /**
+         * Finds the cheapest encoding of the samples
+         *
+         * @param samples       The samples of the channel
+         * @param bitsPerSample The size of a sample
+         * @return The subframe
+         */
+        static Subframe of(int[] samples, int bitsPerSample) {
+            Subframe subframe = new Subframe(samples, bitsPerSample);
+            boolean constant = true;
+            for (int i = 1; i < samples.length && constant; i++)
+                constant = samples[i] == samples[0];
+            if (constant) {
+                subframe.order = -1;
+                subframe.bits = 8 + bitsPerSample;
+                return subframe;
+            }
+            subframe.order = -2;
+            subframe.bits = 8 + (long) samples.length * bitsPerSample;
+
+            long[] residual = new long[samples.length];
+            for (int order = 0; order <= MAX_ORDER && order < samples.length; order++) {
+                for (int i = order; i < samples.length; i++)
+                    residual[i] = predictionError(samples, i, order);
+                int partitionOrder = bestPartitionOrder(residual, order);
+                int[] parameters = riceParameters(residual, order, partitionOrder);
+                long bits = 8 + (long) order * bitsPerSample + 6
+                        + riceBits(residual, order, partitionOrder, parameters);
+                if (bits < subframe.bits) {
+                    subframe.order = order;
+                    subframe.residual = residual.clone();
+                    subframe.partitionOrder = partitionOrder;
+                    subframe.parameters = parameters;
+                    subframe.bits = bits;
+                }
+            }
+            return subframe;
+        }
+
+        /**
+         * @param samples The samples
+         * @param i       The index of the sample to predict
+         * @param order   The order of the fixed predictor
+         * @return The difference between the sample and its prediction from the previous samples
+         */
+        private static long predictionError(int[] samples, int i, int order) {
+            switch (order) {
+                case 0:
+                    return samples[i];
+                case 1:
+                    return (long) samples[i] - samples[i - 1];
+                case 2:
+                    return (long) samples[i] - 2L * samples[i - 1] + samples[i - 2];
+                case 3:
+                    return (long) samples[i] - 3L * samples[i - 1] + 3L * samples[i - 2] - samples[i - 3];
+                default:
+                    return (long) samples[i] - 4L * samples[i - 1] + 6L * samples[i - 2] - 4L * samples[i - 3]
+                            + samples[i - 4];
+            }
+        }
+
+        /**
+         * @param value A signed residual
+         * @return The residual folded to a positive number
+         */
+        private static long fold(long value) {
+            return value >= 0 ? value << 1 : (-value << 1) - 1;
+        }
+
+        /**
+         * Finds the partition order with the smallest estimated size
+         *
+         * @param residual The residual starting at the index of the order
+         * @param order    The order of the predictor
+         * @return The partition order
+         */
+        private static int bestPartitionOrder(long[] residual, int order) {
+            int best = 0;
+            long bestBits = Long.MAX_VALUE;
+            for (int partitionOrder = 0; partitionOrder <= MAX_PARTITION_ORDER; partitionOrder++) {
+                if (residual.length % (1 << partitionOrder) != 0 || (residual.length >> partitionOrder) <= order)
+                    break;
+                int[] parameters = riceParameters(residual, order, partitionOrder);
+                long bits = riceBits(residual, order, partitionOrder, parameters);
+                if (bits < bestBits) {
+                    best = partitionOrder;
+                    bestBits = bits;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Estimates the best rice parameter of every partition from the mean of the folded residual
+         *
+         * @param residual       The residual starting at the index of the order
+         * @param order          The order of the predictor
+         * @param partitionOrder The partition order
+         * @return The rice parameter of every partition
+         */
+        private static int[] riceParameters(long[] residual, int order, int partitionOrder) {
+            int partitions = 1 << partitionOrder, size = residual.length >> partitionOrder;
+            int[] parameters = new int[partitions];
+            for (int p = 0, i = order; p < partitions; p++) {
+                long sum = 0;
+                int end = (p + 1) * size;
+                int count = end - i;
+                for (; i < end; i++)
+                    sum += fold(residual[i]);
+                int parameter = 0;
+                while (parameter < 30 && ((long) count << (parameter + 1)) < sum)
+                    parameter++;
+                parameters[p] = parameter;
+            }
+            return parameters;
+        }
+
+        /**
+         * @param residual       The residual starting at the index of the order
+         * @param order          The order of the predictor
+         * @param partitionOrder The partition order
+         * @param parameters     The rice parameter of every partition
+         * @return The size of the coded residual in bits
+         */
+        private static long riceBits(long[] residual, int order, int partitionOrder, int[] parameters) {
+            int size = residual.length >> partitionOrder;
+            int parameterBits = maxParameter(parameters) > 14 ? 5 : 4;
+            long bits = 6;
+            for (int p = 0, i = order; p < parameters.length; p++) {
+                int parameter = parameters[p];
+                bits += parameterBits;
+                for (int end = (p + 1) * size; i < end; i++)
+                    bits += (fold(residual[i]) >>> parameter) + 1 + parameter;
+            }
+            return bits;
+        }
+
+        /**
+         * @param parameters The rice parameters
+         * @return The highest rice parameter
+         */
+        private static int maxParameter(int[] parameters) {
+            int max = 0;
+            for (int parameter : parameters)
+                max = Math.max(max, parameter);
+            return max;
+        }
+
+        /**
+         * Writes the subframe
+         *
+         * @param writer The frame to write to
+         */
+        void write(BitWriter writer) {
+            writer.write(0, 1);
+            if (order == -1) {
+                writer.write(0, 6); // Constant
+                writer.write(0, 1);
+                writer.write(samples[0], bitsPerSample);
+                return;
+            }
+            if (order == -2) {
+                writer.write(1, 6); // Verbatim
+                writer.write(0, 1);
+                for (int sample : samples)
+                    writer.write(sample, bitsPerSample);
+                return;
+            }
+            writer.write(8 | order, 6); // Fixed
+            writer.write(0, 1);
+            for (int i = 0; i < order; i++)
+                writer.write(samples[i], bitsPerSample);
+
+            boolean rice2 = maxParameter(parameters) > 14;
+            writer.write(rice2 ? 1 : 0, 2);
+            writer.write(partitionOrder, 4);
+            int size = residual.length >> partitionOrder;
+            for (int p = 0, i = order; p < parameters.length; p++) {
+                int parameter = parameters[p];
+                writer.write(parameter, rice2 ? 5 : 4);
+                for (int end = (p + 1) * size; i < end; i++) {
+                    long folded = fold(residual[i]);
+                    writer.writeUnary(folded >>> parameter);
+                    writer.write(folded, parameter);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes values with any amount of bits to a growing byte array, starting with the most significant bit
+     */
+    private static class BitWriter {
+        private byte[] data;
+        private int length;
+        /**
+         * The bits which do not fill a byte yet
+         */
+        private long buffer;
+        private int bits;
+
+        BitWriter(int capacity) {
+            data = new byte[capacity];
+        }
+
+        /**
+         * Writes the lowest bits of a value
+         *
+         * @param value The value
+         * @param count The amount of bits, at most 32
+         */
+        void write(long value, int count) {
+            buffer = (buffer << count) | (value & ((1L << count) - 1));
+            bits += count;
+            while (bits >= 8) {
+                bits -= 8;
+                if (length == data.length)
+                    data = Arrays.copyOf(data, data.length * 2);
+                data[length++] = (byte) (buffer >>> bits);
+            }
+        }
+
+        /**
+         * Writes a value in unary code, which is the given amount of zeros followed by a one
+         *
+         * @param value The value
+         */
+        void writeUnary(long value) {
+            for (; value > 31; value -= 32)
+                write(0, 32);
+            write(1, (int) value + 1);
+        }
+
+        /**
+         * Writes a value in the variable length code of frame numbers, which is similar to UTF-8
+         *
+         * @param value The value with at most 36 bits
+         */
+        void writeUtf8(long value) {
+            if (value < 0x80) {
+                write(value, 8);
+                return;
+            }
+            int bytes = 2;
+            while (bytes < 7 && value >= 1L << (5 * bytes + 1))
+                bytes++;
+            write(((0xFF00 >> bytes) & 0xFF) | (value >>> (6 * (bytes - 1))), 8);
+            for (int i = bytes - 2; i >= 0; i--)
+                write(0x80 | ((value >>> (6 * i)) & 0x3F), 8);
+        }
+
+        /**
+         * Pads the last byte with zeros
+         */
+        void alignToByte() {
+            if (bits > 0)
+                write(0, 8 - bits);
+        }
+
+        /**
+         * Calculates the checksum of all complete bytes
+         *
+         * @param table The table of the checksum
+         * @param width The width of the checksum in bits
+         * @return The checksum
+         */
+        int crc(int[] table, int width) {
+            int crc = 0, mask = (1 << width) - 1;
+            for (int i = 0; i < length; i++)
+                crc = ((crc << 8) ^ table[((crc >>> (width - 8)) ^ data[i]) & 0xFF]) & mask;
+            return crc;
+        }
+
+        /**
+         * @return The written bytes
+         */
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+    }
+}
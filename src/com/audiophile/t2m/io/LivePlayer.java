@@ -0,0 +1,99 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Synthesizer;
+import java.util.Iterator;
+
+/**
+ * Plays music on the sound card while it is still generated.
+ * The events of every segment are sent with timestamps to a shared synthesizer, which stays open between playbacks,
+ * so playback starts as soon as the first segment is generated. The next segment is generated while the current one
+ * is playing, a bit ahead of the playhead.
+ */
+class LivePlayer {
+    /**
+     * The time in microseconds between sending the first events and playing them, so the first notes are not late
+     */
+    private static final long START_LATENCY = 100000;
+    /**
+     * The time in microseconds of music, which is sent ahead of the playhead
+     */
+    private static final long LOOKAHEAD = 3000000;
+    /**
+     * The time in microseconds played after the last event to avoid a cut off ending
+     */
+    private static final long TAIL = 500000;
+    /**
+     * The synthesizer shared by all playbacks, which is opened on the first use
+     */
+    private static Synthesizer synth;
+
+    /**
+     * Opens the shared synthesizer, if it is not open yet
+     *
+     * @return The opened synthesizer playing on the default audio device
+     * @throws MidiUnavailableException If the synthesizer could not be opened
+     */
+    static synchronized Synthesizer Open() throws MidiUnavailableException {
+        if (synth == null || !synth.isOpen()) {
+            long start = System.currentTimeMillis();
+            synth = MidiSystem.getSynthesizer();
+            synth.open();
+            System.out.println("Opened synthesizer for playback in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        return synth;
+    }
+
+    /**
+     * Plays the segments on the shared synthesizer. Only one playback can be active at once.
+     * Blocks the thread while playing.
+     *
+     * @param segments The segments of the music in time order with ticks relative to the beginning of the music
+     * @throws MidiUnavailableException If the synthesizer could not be opened
+     * @throws InterruptedException     If the thread was interrupted while playing, which stops all notes
+     */
+    static synchronized void Play(Iterator<Sequence> segments) throws MidiUnavailableException, InterruptedException {
+        long start = System.currentTimeMillis();
+        Synthesizer synth = Open();
+        Receiver receiver = synth.getReceiver();
+        long origin = -1, end = 0;
+        MidiToWavRenderer.EventSender sender = null;
+        try {
+            while (segments.hasNext()) {
+                Sequence segment = segments.next();
+                if (sender == null) {
+                    origin = synth.getMicrosecondPosition() + START_LATENCY;
+                    sender = new MidiToWavRenderer.EventSender(origin);
+                    System.out.println("First sound after " + (System.currentTimeMillis() - start + START_LATENCY / 1000) + "ms");
+                }
+                end = sender.send(segment, receiver);
+                waitUntil(synth, origin + end - LOOKAHEAD);
+            }
+            if (sender != null)
+                waitUntil(synth, origin + end + TAIL);
+        } finally {
+            for (MidiChannel channel : synth.getChannels()) {
+                channel.allSoundOff();
+                channel.resetAllControllers();
+                channel.programChange(0);
+            }
+        }
+    }
+
+    /**
+     * Waits until the synthesizer has played up to the given time
+     *
+     * @param synth The playing synthesizer
+     * @param time  The time of the synthesizer in microseconds
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    private static void waitUntil(Synthesizer synth, long time) throws InterruptedException {
+        long remaining;
+        while ((remaining = time - synth.getMicrosecondPosition()) > 0)
+            Thread.sleep(Math.min(100, remaining / 1000 + 1));
+    }
+}
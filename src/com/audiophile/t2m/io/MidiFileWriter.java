@@ -0,0 +1,255 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Track;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Writes Standard MIDI Files without the file writer lookup of {@link javax.sound.midi.MidiSystem}.
+ * Every track is encoded into one reused buffer with delta times and running status and then written as a chunk.
+ * A sequence with one track is written as type 0, every other sequence as type 1, like {@link MusicWriter#writeMidi}
+ * did with the type chosen by the MidiSystem.
+ */
+class MidiFileWriter {
+    /**
+     * Type of the meta message marking the end of a track
+     */
+    private static final int END_OF_TRACK = 0x2F;
+    /**
+     * The encoded events of the current track
+     */
+    private byte[] buffer = new byte[8192];
+    private int length;
+    /**
+     * The tick and the status of the last encoded event, which are kept when a track is encoded in several parts
+     */
+    private long lastTick;
+    private int runningStatus = -1;
+    /**
+     * The tick of the latest event, which is the tick of the end of the track
+     */
+    private long endTick;
+
+    /**
+     * Writes the sequence as Standard MIDI File. The stream is not closed.
+     *
+     * @param sequence The sequence to write
+     * @param output   The stream to write to, which should be buffered
+     * @throws IOException If the stream could not be written
+     */
+    static void Write(Sequence sequence, OutputStream output) throws IOException {
+        new MidiFileWriter().write(sequence, output);
+    }
+
+    /**
+     * Writes the sequence as Standard MIDI File
+     *
+     * @param sequence The sequence to write
+     * @param output   The stream to write to
+     * @throws IOException If the stream could not be written
+     */
+    private void write(Sequence sequence, OutputStream output) throws IOException {
+        Track[] tracks = sequence.getTracks();
+        int division = sequence.getResolution();
+        if (sequence.getDivisionType() != Sequence.PPQ)
+            division = (-(int) sequence.getDivisionType() << 8 | division) & 0xFFFF;
+
+        length = 0;
+        putBytes('M', 'T', 'h', 'd');
+        putInt(6);
+        putShort(tracks.length == 1 ? 0 : 1);
+        putShort(tracks.length);
+        putShort(division);
+        output.write(buffer, 0, length);
+
+        for (Track track : tracks) {
+            length = 0;
+            lastTick = 0;
+            runningStatus = -1;
+            putBytes('M', 'T', 'r', 'k');
+            putInt(0); // The length is known after the events
+            encode(track, false);
+            int trackLength = length - 8;
+            length = 4;
+            putInt(trackLength);
+            output.write(buffer, 0, trackLength + 8);
+        }
+        output.flush();
+    }
+
+    /**
+     * Appends the events of a track to the buffer
+     *
+     * @param track          The track to encode
+     * @param skipEndOfTrack True to leave out the end of track event, e.g. for a segment of a track
+     */
+    private void encode(Track track, boolean skipEndOfTrack) {
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            MidiMessage message = event.getMessage();
+            byte[] data = message.getMessage();
+            int status = message.getStatus();
+            if (message instanceof ShortMessage && status >= 0xF0)
+                continue; // System messages are not allowed in MIDI files
+            if (skipEndOfTrack && message instanceof MetaMessage && ((MetaMessage) message).getType() == END_OF_TRACK)
+                continue;
+            endTick = Math.max(endTick, event.getTick());
+
+            putVarInt(event.getTick() - lastTick);
+            lastTick = event.getTick();
+            if (message instanceof ShortMessage) {
+                if (status != runningStatus)
+                    putByte(status);
+                runningStatus = status;
+                ensureCapacity(message.getLength() - 1);
+                System.arraycopy(data, 1, buffer, length, message.getLength() - 1);
+                length += message.getLength() - 1;
+            } else if (message instanceof MetaMessage) {
+                byte[] content = ((MetaMessage) message).getData();
+                putByte(0xFF);
+                putByte(((MetaMessage) message).getType());
+                putVarInt(content.length);
+                putBytes(content);
+                runningStatus = -1;
+            } else if (message instanceof SysexMessage) {
+                putByte(status);
+                putVarInt(message.getLength() - 1);
+                ensureCapacity(message.getLength() - 1);
+                System.arraycopy(data, 1, buffer, length, message.getLength() - 1);
+                length += message.getLength() - 1;
+                runningStatus = -1;
+            }
+        }
+    }
+
+    /**
+     * Passes the segments of a music through and encodes their events on the way, so the MIDI file holds the same
+     * events as the audio rendered from the segments. Only the encoded tracks are kept, not the segments.
+     */
+    static class Recorder implements Iterator<Sequence> {
+        private final Iterator<Sequence> segments;
+        /**
+         * The encoded events of every track
+         */
+        private final ArrayList<MidiFileWriter> tracks = new ArrayList<>();
+        private float divisionType;
+        private int resolution;
+
+        /**
+         * @param segments The segments in time order with ticks relative to the beginning of the music
+         */
+        Recorder(Iterator<Sequence> segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return segments.hasNext();
+        }
+
+        @Override
+        public Sequence next() {
+            Sequence segment = segments.next();
+            divisionType = segment.getDivisionType();
+            resolution = segment.getResolution();
+            Track[] segmentTracks = segment.getTracks();
+            for (int i = 0; i < segmentTracks.length; i++) {
+                if (i == tracks.size())
+                    tracks.add(new MidiFileWriter());
+                tracks.get(i).encode(segmentTracks[i], true);
+            }
+            return segment;
+        }
+
+        /**
+         * Records the remaining segments and writes the recorded events as Standard MIDI File.
+         * The stream is not closed.
+         *
+         * @param output The stream to write to, which should be buffered
+         * @throws IOException If the stream could not be written
+         */
+        void finish(OutputStream output) throws IOException {
+            while (hasNext())
+                next();
+            int division = resolution;
+            if (divisionType != Sequence.PPQ)
+                division = (-(int) divisionType << 8 | division) & 0xFFFF;
+            MidiFileWriter header = new MidiFileWriter();
+            header.putBytes('M', 'T', 'h', 'd');
+            header.putInt(6);
+            header.putShort(tracks.size() == 1 ? 0 : 1);
+            header.putShort(tracks.size());
+            header.putShort(division);
+            output.write(header.buffer, 0, header.length);
+            for (MidiFileWriter track : tracks) {
+                track.putVarInt(track.endTick - track.lastTick);
+                track.putBytes(0xFF, END_OF_TRACK, 0);
+                header.length = 0;
+                header.putBytes('M', 'T', 'r', 'k');
+                header.putInt(track.length);
+                output.write(header.buffer, 0, header.length);
+                output.write(track.buffer, 0, track.length);
+            }
+            output.flush();
+        }
+    }
+
+    /**
+     * Appends a number in the variable length format of MIDI files, 7 bits per byte starting with the highest bits
+     *
+     * @param value The positive number with at most 28 bits
+     */
+    private void putVarInt(long value) {
+        int shift = 21;
+        while (shift > 0 && (value >>> shift) == 0)
+            shift -= 7;
+        for (; shift > 0; shift -= 7)
+            putByte((int) (0x80 | (value >>> shift) & 0x7F));
+        putByte((int) (value & 0x7F));
+    }
+
+    private void putInt(int value) {
+        putShort(value >>> 16);
+        putShort(value);
+    }
+
+    private void putShort(int value) {
+        putByte(value >>> 8);
+        putByte(value);
+    }
+
+    private void putBytes(int... values) {
+        for (int value : values)
+            putByte(value);
+    }
+
+    private void putBytes(byte[] values) {
+        ensureCapacity(values.length);
+        System.arraycopy(values, 0, buffer, length, values.length);
+        length += values.length;
+    }
+
+    private void putByte(int value) {
+        ensureCapacity(1);
+        buffer[length++] = (byte) value;
+    }
+
+    /**
+     * Grows the buffer if it cannot take the given amount of bytes
+     *
+     * @param bytes The amount of bytes, which are appended
+     */
+    private void ensureCapacity(int bytes) {
+        if (length + bytes > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + bytes));
+    }
+}
@@ -1,17 +1,12 @@
 package com.audiophile.t2m.io;
 
-import com.sun.media.sound.AudioSynthesizer;
-
 import javax.sound.midi.*;
-import javax.sound.sampled.AudioFileFormat;
-import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
-import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.PriorityQueue;
 
 /**
  * <p>
@@ -27,110 +22,309 @@ import java.util.Map;
  * @author Joren Six
  * @author Simon Niedermayr
  */
-class MidiToWavRenderer {
+class MidiToWavRenderer implements RenderEngine {
     /**
-     * The synthesizer used to render the audio.
+     * The synthesizers used to render the audio.
+     * The synthesizers are opened in pull mode with the format and settings of a {@link RenderProfile}.
      */
-    private final transient AudioSynthesizer synth;
+    private final SynthesizerPool pool;
 
-    MidiToWavRenderer() throws MidiUnavailableException, InvalidMidiDataException, IOException {
-        try {
-            synth = (AudioSynthesizer) MidiSystem.getSynthesizer();
-        } catch (ClassCastException e) {
-            throw new Error("Please make sure Gervill is included in the classpath: "
-                    + "it should be de default synth. These are the currently installed synths: "
-                    + Arrays.toString(MidiSystem.getMidiDeviceInfo()), e);
-        }
+    /**
+     * @param pool The synthesizers used to render the audio
+     */
+    MidiToWavRenderer(SynthesizerPool pool) {
+        this.pool = pool;
     }
 
     /**
-     * Creates a WAV file based on the Sequence, using the default soundbank.
+     * Renders a Sequence split into segments, using the default soundbank.
+     * A segment is only requested, when the rendered audio reaches its first event,
+     * so the memory usage does not depend on the length of the music.
      *
-     * @param sequence   The sequence to write to the file
-     * @param outputFile The file to write to
+     * @param segments The segments of the sequence in time order with ticks relative to the beginning of the music
+     * @param sink     Receives the audio while it is rendered
+     * @return The time it took and the metrics of the synthesizer pool
      * @throws MidiUnavailableException No Midi system available
-     * @throws InvalidMidiDataException Invalid data
-     * @throws IOException              Could not write to file
+     * @throws IOException              Could not render or write the audio
      */
-    void createWavFile(final Sequence sequence, final File outputFile)
-            throws MidiUnavailableException, InvalidMidiDataException, IOException {
-        /*
-         * Open synthesizer in pull mode in the format 96000hz 24 bit stereo
-		 * using Sinc interpolation for highest quality. With 1024 as max
-		 * polyphony.
-		 */
+    @Override
+    public String render(final Iterator<Sequence> segments, final AudioSink sink)
+            throws MidiUnavailableException, IOException {
         long start = System.currentTimeMillis();
-        final AudioFormat format = new AudioFormat(44000, 24, 2, true, false);
-        final Map<String, Object> map = new HashMap<>();
-        map.put("interpolation", "sinc");
-        map.put("max polyphony", "1024");
-        AudioInputStream stream = synth.openStream(format, map);
-
-        // Play Sequence into AudioSynthesizer Receiver.
-        final double total = send(sequence, synth.getReceiver());
-
-        // Calculate how long the WAVE file needs to be.
-        final long len = (long) (stream.getFormat().getFrameRate() * (total + 1)); // Add extra second for smooth ending
-        stream = new AudioInputStream(stream, stream.getFormat(), len);
-
-        // Write WAVE file to disk.
-        AudioSystem.write(stream, AudioFileFormat.Type.WAVE, outputFile);
-        this.synth.close();
+        SynthesizerPool.PooledSynthesizer synth;
+        try {
+            synth = pool.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a synthesizer", e);
+        }
+        try {
+            // Play the segments into the AudioSynthesizer Receiver while the audio is read.
+            SegmentStream segmentStream = new SegmentStream(synth.stream, segments, synth.receiver,
+                    synth.getMicrosecondPosition());
+            sink.write(new AudioInputStream(segmentStream, synth.stream.getFormat(), AudioSystem.NOT_SPECIFIED));
+        } finally {
+            pool.release(synth);
+        }
         long end = System.currentTimeMillis();
-        System.out.println("Writing wav file took: " + (end - start) + "ms");
+        return "Rendering took: " + (end - start) + "ms\n" + pool.getMetrics();
     }
 
     /**
-     * Send entry MIDI Sequence into Receiver using time stamps.
-     *
-     * @return The total length of the sequence.
+     * Sends MIDI sequences into a Receiver using time stamps.
+     * The time is kept between the sequences, so a music split into segments can be sent segment by segment.
+     * The events of all tracks are merged in time order with a heap over the next event of every track. A sequence can
+     * be sent at once or piece by piece, so the events reach the receiver just before they are rendered.
      */
-    private double send(final Sequence seq, final Receiver recv) {
-        assert seq.getDivisionType() == Sequence.PPQ;
-
-        final float divtype = seq.getDivisionType();
-        final Track[] tracks = seq.getTracks();
-
-        final int[] trackspos = new int[tracks.length];
-        int mpq = 500000;
-        final int seqres = seq.getResolution();
-        long lasttick = 0;
-        long curtime = 0;
-        while (true) {
-            MidiEvent selevent = null;
-            int seltrack = -1;
-            for (int i = 0; i < tracks.length; i++) {
-                final int trackpos = trackspos[i];
-                final Track track = tracks[i];
-                if (trackpos < track.size()) {
-                    final MidiEvent event = track.get(trackpos);
-                    if (selevent == null || event.getTick() < selevent.getTick()) {
-                        selevent = event;
-                        seltrack = i;
+    static class EventSender {
+        /**
+         * The time of the receiver in microseconds at the beginning of the music
+         */
+        private final long offset;
+        /**
+         * Microseconds per quarter note
+         */
+        private int mpq = 500000;
+        /**
+         * The tick and time in microseconds of the last tempo change.
+         * The time of an event is calculated from this point, so it does not depend on the order of the events.
+         */
+        private long anchortick = 0, anchortime = 0;
+        /**
+         * The time of the latest event sent so far
+         */
+        private long endtime = 0;
+        /**
+         * The sequence which is sent and its tracks
+         */
+        private Sequence seq;
+        private Track[] tracks;
+        /**
+         * The index of the next event of every track
+         */
+        private int[] trackspos;
+        /**
+         * The tracks with events left, ordered by the tick of their next event and then by their index
+         */
+        private PriorityQueue<Integer> heap;
+
+        EventSender(long offset) {
+            this.offset = offset;
+        }
+
+        /**
+         * Send entry MIDI Sequence into Receiver using time stamps.
+         *
+         * @return The time of the latest event sent so far in microseconds.
+         */
+        long send(final Sequence seq, final Receiver recv) {
+            start(seq);
+            return sendUntil(recv, Long.MAX_VALUE);
+        }
+
+        /**
+         * Starts sending a sequence. The events are sent with {@link EventSender#sendUntil(Receiver, long)}.
+         *
+         * @param seq The sequence to send after the previous one
+         */
+        void start(final Sequence seq) {
+            assert seq.getDivisionType() == Sequence.PPQ;
+            this.seq = seq;
+            tracks = seq.getTracks();
+            trackspos = new int[tracks.length];
+            heap = new PriorityQueue<>(Math.max(1, tracks.length), (a, b) -> {
+                int byTick = Long.compare(nextTick(a), nextTick(b));
+                return byTick != 0 ? byTick : Integer.compare(a, b);
+            });
+            for (int i = 0; i < tracks.length; i++)
+                if (tracks[i].size() > 0)
+                    heap.add(i);
+        }
+
+        /**
+         * @return True if the current sequence has events which were not sent yet
+         */
+        boolean hasPending() {
+            return heap != null && !heap.isEmpty();
+        }
+
+        /**
+         * Sends the events of the current sequence up to the given time
+         *
+         * @param recv The receiver to send the events to or null to only calculate the times
+         * @param time The time in microseconds before which all events are sent
+         * @return The time of the latest event sent so far in microseconds.
+         */
+        long sendUntil(final Receiver recv, final long time) {
+            final float divtype = seq.getDivisionType();
+            while (hasPending()) {
+                final int seltrack = heap.peek();
+                final MidiEvent selevent = tracks[seltrack].get(trackspos[seltrack]);
+                final long tick = selevent.getTick();
+                final long curtime = timeAt(seq, tick);
+                if (curtime >= time)
+                    break;
+                heap.poll();
+                if (++trackspos[seltrack] < tracks[seltrack].size())
+                    heap.add(seltrack);
+                endtime = Math.max(endtime, curtime);
+                final MidiMessage msg = selevent.getMessage();
+                if (msg instanceof MetaMessage) {
+                    if (divtype == Sequence.PPQ && ((MetaMessage) msg).getType() == 0x51) {
+                        final byte[] data = ((MetaMessage) msg).getData();
+                        anchortick = tick;
+                        anchortime = curtime;
+                        mpq = (data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | data[2] & 0xff;
                     }
+                } else if (recv != null) {
+                    recv.send(msg, offset + curtime);
                 }
             }
-            if (seltrack == -1) {
-                break;
-            }
-            trackspos[seltrack]++;
-            final long tick = selevent.getTick();
-            if (divtype == Sequence.PPQ) {
-                curtime += (tick - lasttick) * mpq / seqres;
-            } else {
-                curtime = (long) (tick * 1000000.0 * divtype / seqres);
+            return endtime;
+        }
+
+        /**
+         * @param track The index of a track with events left
+         * @return The tick of the next event of the track
+         */
+        private long nextTick(int track) {
+            return tracks[track].get(trackspos[track]).getTick();
+        }
+
+        /**
+         * Calculates the time of a tick based on the last tempo change
+         *
+         * @param seq  The sequence of the tick
+         * @param tick The tick to get the time for
+         * @return The time in microseconds
+         */
+        private long timeAt(final Sequence seq, final long tick) {
+            final float divtype = seq.getDivisionType();
+            if (divtype == Sequence.PPQ)
+                return anchortime + (tick - anchortick) * mpq / seq.getResolution();
+            return (long) (tick * 1000000.0 * divtype / seq.getResolution());
+        }
+    }
+
+    /**
+     * Reads the audio of a synthesizer and sends the events of the segments just before they are rendered.
+     * Only the events of the next {@value SegmentStream#LOOKAHEAD} microseconds are queued in the synthesizer
+     * and a segment is only requested when the audio reaches it, so the memory usage does not depend on the length
+     * of the music.
+     */
+    private static class SegmentStream extends InputStream {
+        /**
+         * Time in microseconds events are sent before they are rendered.
+         * The synthesizer renders ahead of the read position, so events must not be sent just in time.
+         */
+        private static final long LOOKAHEAD = 1000000;
+        /**
+         * The maximum amount of frames read at once, so events are sent in small steps
+         */
+        private static final int MAX_READ_FRAMES = 4096;
+        /**
+         * The audio of the synthesizer
+         */
+        private final AudioInputStream source;
+        /**
+         * The music split into segments
+         */
+        private final Iterator<Sequence> segments;
+        /**
+         * The receiver of the synthesizer
+         */
+        private final Receiver receiver;
+        /**
+         * Sends the segments with the right time stamps
+         */
+        private final EventSender sender;
+        /**
+         * The amount of frames read and the end of the audio, which is known after the last segment
+         */
+        private long position, limit;
+        /**
+         * The time in microseconds before which all events are sent
+         */
+        private long sent;
+        /**
+         * True if all segments are sent
+         */
+        private boolean finished;
+
+        /**
+         * @param source   The audio of the synthesizer
+         * @param segments The music split into segments
+         * @param receiver The receiver of the synthesizer
+         * @param offset   The time of the synthesizer in microseconds at the beginning of the music
+         */
+        SegmentStream(AudioInputStream source, Iterator<Sequence> segments, Receiver receiver, long offset) {
+            this.source = source;
+            this.segments = segments;
+            this.receiver = receiver;
+            this.sender = new EventSender(offset);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int frameSize = source.getFormat().getFrameSize();
+            int frames = Math.min(len / frameSize, MAX_READ_FRAMES);
+            feed(toTime(position + frames) + LOOKAHEAD);
+            if (finished) {
+                if (position >= limit)
+                    return -1;
+                frames = (int) Math.min(frames, limit - position);
             }
-            lasttick = tick;
-            final MidiMessage msg = selevent.getMessage();
-            if (msg instanceof MetaMessage) {
-                if (divtype == Sequence.PPQ && ((MetaMessage) msg).getType() == 0x51) {
-                    final byte[] data = ((MetaMessage) msg).getData();
-                    mpq = (data[0] & 0xff) << 16 | (data[1] & 0xff) << 8 | data[2] & 0xff;
-                }
-            } else if (recv != null) {
-                recv.send(msg, curtime);
+            if (frames <= 0)
+                return 0;
+            int read = source.read(b, off, frames * frameSize);
+            if (read > 0)
+                position += read / frameSize;
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+        }
+
+        /**
+         * Sends all events before the given time and requests the next segments when they are needed.
+         * After the last segment, the end of the audio is known.
+         *
+         * @param time The time in microseconds
+         */
+        private void feed(long time) {
+            while (!finished && sent < time) {
+                if (sender.hasPending()) {
+                    long end = sender.sendUntil(receiver, time);
+                    if (sender.hasPending())
+                        sent = time;
+                    else if (!segments.hasNext())
+                        finish(end);
+                } else if (segments.hasNext())
+                    sender.start(segments.next());
+                else finish(sender.endtime);
             }
         }
-        return curtime / 1000000.0;
+
+        /**
+         * Ends the audio after the last event
+         *
+         * @param end The time of the last event in microseconds
+         */
+        private void finish(long end) {
+            finished = true;
+            limit = (long) (source.getFormat().getFrameRate() * (end / 1000000.0 + 1)); // Add extra second for smooth ending
+        }
+
+        /**
+         * Converts a frame in the audio to the corresponding time
+         *
+         * @param frames The frame position
+         * @return The time in microseconds
+         */
+        private long toTime(long frames) {
+            return (long) (frames * 1000000.0 / source.getFormat().getFrameRate());
+        }
     }
-}
\ No newline at end of file
+}
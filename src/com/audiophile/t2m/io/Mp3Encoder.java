@@ -0,0 +1,184 @@
+package com.audiophile.t2m.io;
+
+import it.sauronsoftware.jave.DefaultFFMPEGLocator;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes audio to mp3 while it is rendered.
+ * The raw PCM data is piped into the ffmpeg executable shipped with JAVE, so no temporary file is written.
+ * The mp3 is written to a file or read from ffmpeg while it is encoded.
+ */
+class Mp3Encoder {
+    /**
+     * Settings of the mp3 file
+     */
+    private static final String CODEC = "libmp3lame", BIT_RATE = "64000", CHANNELS = "2", SAMPLING_RATE = "22050";
+    /**
+     * The maximum amount of characters of the ffmpeg output kept for error messages
+     */
+    private static final int MAX_LOG = 2000;
+
+    /**
+     * Locates the ffmpeg executable of JAVE
+     */
+    private static class Locator extends DefaultFFMPEGLocator {
+        /**
+         * @return The path of the ffmpeg executable
+         */
+        String getPath() {
+            return getFFMPEGExecutablePath();
+        }
+    }
+
+    /**
+     * The path of the ffmpeg executable, which is extracted on the first use
+     */
+    private static String ffmpeg;
+
+    /**
+     * @return The path of the ffmpeg executable
+     */
+    private static synchronized String getFFMPEG() {
+        if (ffmpeg == null)
+            ffmpeg = new Locator().getPath();
+        return ffmpeg;
+    }
+
+    /**
+     * Reads the audio until its end and encodes it to the given mp3 file
+     *
+     * @param stream The audio in signed PCM, which may have an unknown length
+     * @param mp3    The file to write to
+     * @throws IOException If the audio could not be read or encoded
+     */
+    static void Encode(AudioInputStream stream, File mp3) throws IOException {
+        encode(stream, null, "-y", mp3.getAbsolutePath());
+    }
+
+    /**
+     * Reads the audio until its end and streams it as mp3 while it is encoded, e.g. to a client.
+     * The stream is not closed.
+     *
+     * @param stream The audio in signed PCM, which may have an unknown length
+     * @param output The stream to write to
+     * @throws IOException If the audio could not be read, encoded or written
+     */
+    static void Encode(AudioInputStream stream, OutputStream output) throws IOException {
+        encode(stream, output, "pipe:1");
+    }
+
+    /**
+     * Pipes the audio into ffmpeg while it is rendered
+     *
+     * @param stream The audio in signed PCM, which may have an unknown length
+     * @param output Receives the mp3 written by ffmpeg to its standard output or null if ffmpeg writes a file
+     * @param target The last arguments of ffmpeg, which name the output
+     * @throws IOException If the audio could not be read, encoded or written
+     */
+    private static void encode(AudioInputStream stream, OutputStream output, String... target) throws IOException {
+        AudioFormat format = stream.getFormat();
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)
+            throw new IOException("Only signed PCM audio can be encoded to mp3");
+        List<String> command = new ArrayList<>(Arrays.asList(getFFMPEG(),
+                "-f", "s" + format.getSampleSizeInBits() + (format.isBigEndian() ? "be" : "le"),
+                "-ar", String.valueOf((int) format.getSampleRate()),
+                "-ac", String.valueOf(format.getChannels()),
+                "-i", "-",
+                "-acodec", CODEC,
+                "-ab", BIT_RATE,
+                "-ac", CHANNELS,
+                "-ar", SAMPLING_RATE,
+                "-f", "mp3"));
+        command.addAll(Arrays.asList(target));
+        Process process = new ProcessBuilder(command)
+                .redirectErrorStream(output == null)
+                .start();
+
+        // Keep the end of the output of ffmpeg for error messages, the process blocks if it is not read
+        StringBuilder log = new StringBuilder();
+        InputStream logStream = output == null ? process.getInputStream() : process.getErrorStream();
+        Thread logger = new Thread(() -> {
+            byte[] buffer = new byte[1024];
+            try (InputStream ffmpegLog = logStream) {
+                for (int read; (read = ffmpegLog.read(buffer)) >= 0; ) {
+                    synchronized (log) {
+                        log.append(new String(buffer, 0, read));
+                        if (log.length() > MAX_LOG)
+                            log.delete(0, log.length() - MAX_LOG);
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }, "ffmpeg-output");
+        logger.setDaemon(true);
+        logger.start();
+
+        // Pass the encoded mp3 on while it is written
+        IOException[] writeError = {null};
+        Thread writer = null;
+        if (output != null) {
+            writer = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try (InputStream mp3 = process.getInputStream()) {
+                    for (int read; (read = mp3.read(buffer)) >= 0; )
+                        output.write(buffer, 0, read);
+                    output.flush();
+                } catch (IOException e) {
+                    writeError[0] = e;
+                    process.destroy(); // Nobody receives the mp3 anymore
+                }
+            }, "ffmpeg-mp3");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        // Pipe the audio into ffmpeg while it is rendered
+        OutputStream input = process.getOutputStream();
+        IOException error = null;
+        try {
+            byte[] buffer = new byte[format.getFrameSize() * 4096];
+            for (int read; (read = stream.read(buffer)) >= 0; ) {
+                try {
+                    input.write(buffer, 0, read);
+                } catch (IOException e) {
+                    error = e; // ffmpeg stopped reading, the reason is in its output
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            process.destroy(); // Rendering failed
+            throw e;
+        }
+        try {
+            input.close();
+        } catch (IOException e) {
+            if (error == null)
+                error = e;
+        }
+        try {
+            int exitCode = process.waitFor();
+            logger.join();
+            if (writer != null)
+                writer.join();
+            if (writeError[0] != null)
+                throw new IOException("Could not write the mp3", writeError[0]);
+            if (exitCode != 0 || error != null)
+                synchronized (log) {
+                    throw new IOException("Encoding mp3 failed with exit code " + exitCode + ":\n" + log, error);
+                }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encoding mp3", e);
+        }
+    }
+}
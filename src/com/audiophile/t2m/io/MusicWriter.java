@@ -1,14 +1,28 @@
 package com.audiophile.t2m.io;
 
-import it.sauronsoftware.jave.AudioAttributes;
-import it.sauronsoftware.jave.Encoder;
-import it.sauronsoftware.jave.EncoderException;
-import it.sauronsoftware.jave.EncodingAttributes;
-
 import javax.sound.midi.*;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 
 /**
  * Interface for all classes that convert midi data to music format
@@ -18,7 +32,18 @@ public class MusicWriter {
     /**
      * All available output methods
      */
-    public static final String MP3 = "mp3", WAV = "wav", PLAY = "play", MIDI = "midi";
+    public static final String MP3 = "mp3", WAV = "wav", FLAC = "flac", PLAY = "play", MIDI = "midi";
+
+    /**
+     * All available render modes for audio output
+     */
+    public static final String SEQUENTIAL = "sequential", PARALLEL = "parallel", CHANNELS = "channels",
+            CACHED = "cached";
+
+    /**
+     * All available synthesizers for audio output
+     */
+    public static final String GERVILL = "gervill", WAVETABLE = "wavetable";
 
     /**
      * Writes a given sequence to a midi file.
@@ -26,53 +51,79 @@ public class MusicWriter {
      * @param sequence The sequence to write to the file
      * @param fileName The file to write to
      * @throws IOException Thrown if writing to file was not possible
+     * @see MidiFileWriter
      */
     public static void writeMidi(Sequence sequence, String fileName) throws IOException {
-        int[] allowedTypes = MidiSystem.getMidiFileTypes(sequence);
-        if (allowedTypes.length == 0) {
-            System.err.println("No supported MIDI file types.");
-        } else {
-            MidiSystem.write(sequence, allowedTypes[0], new File(fileName));
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(fileName))) {
+            MidiFileWriter.Write(sequence, output);
         }
     }
 
     /**
-     * Converts the given <code>sequence</code> to a wav file and then to a mp3 file.
-     * The temporary wav file is deleted afterwards.
+     * Writes a given sequence as midi file into the given stream. The stream is not closed.
+     *
+     * @param sequence The sequence to write
+     * @param output   The stream to write to
+     * @throws IOException Thrown if writing to the stream was not possible
+     * @see MidiFileWriter
+     */
+    public static void writeMidi(Sequence sequence, OutputStream output) throws IOException {
+        MidiFileWriter.Write(sequence, output instanceof BufferedOutputStream ? output : new BufferedOutputStream(output));
+    }
+
+    /**
+     * Converts the given <code>sequence</code> to a mp3 file.
      *
      * @param sequence The sequence to write to the file
      * @param fileName The file to write to
      * @throws IOException Thrown if writing to file was not possible
-     * @see MusicWriter#writeWav(Sequence, String)
+     * @see MusicWriter#writeMP3(Iterator, String)
      */
     public static void writeMP3(Sequence sequence, String fileName) throws IOException {
-        String file = fileNameWithoutEnding(fileName);
-        File wav = new File(file + System.currentTimeMillis() + ".wav");
-        File mp3 = new File(file + ".mp3");
-        mp3.delete();
-
-        writeWav(sequence, wav.getPath());
-
-        //Convert wav to mp3
-        AudioAttributes audio = new AudioAttributes();
-        audio.setCodec("libmp3lame");
-        audio.setBitRate(64000);
-        audio.setChannels(2);
-        audio.setSamplingRate(22050);
-        EncodingAttributes attrs = new EncodingAttributes();
-        attrs.setFormat("mp3");
-        attrs.setAudioAttributes(audio);
-        Encoder encoder = new Encoder();
-        try {
-            encoder.encode(wav, mp3, attrs);
-            if (!fileName.equals(mp3.getName()))
-                System.out.println("Wrote mp3 to \"" + mp3.getPath() + "\"");
-        } catch (EncoderException e) {
-            e.printStackTrace();
-        } finally {
-            if (!wav.delete())
-                System.err.println("Could not delete temporary wav file");
-        }
+        writeMP3(Collections.singletonList(sequence).iterator(), fileName);
+    }
+
+    /**
+     * Renders the given segments and encodes the audio to a mp3 file while it is rendered.
+     * No temporary wav file is written.
+     *
+     * @param segments The music split into segments in time order
+     * @param fileName The file to write to
+     * @throws IOException Thrown if writing to file was not possible
+     * @see Mp3Encoder
+     */
+    public static void writeMP3(Iterator<Sequence> segments, String fileName) throws IOException {
+        render(segments, createSink(MP3, fileName));
+    }
+
+    /**
+     * Renders the given segments with the given settings and streams the audio as mp3 into the given output stream
+     * while it is encoded, e.g. to a client. Nothing is logged to the console, so several renderings can run at once.
+     * The stream is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param output   The stream to write to
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering, e.g. the time it took and the synthesizers used
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened, the encoding failed or writing to the stream
+     *                     was not possible
+     * @see Mp3Encoder#Encode(AudioInputStream, OutputStream)
+     */
+    public static double writeMP3(Iterator<Sequence> segments, OutputStream output, RenderSettings settings,
+                                  Consumer<String> log) throws IOException {
+        return render(segments, stream -> Mp3Encoder.Encode(stream, output), settings, log);
+    }
+
+    /**
+     * Replaces the extension of a filename with the extension of an output type
+     *
+     * @param fileName   The filename with or without extension
+     * @param outputType The output type, e.g. {@link MusicWriter#WAV}
+     * @return The filename with the extension of the output type
+     */
+    public static String withExtension(String fileName, String outputType) {
+        return fileNameWithoutEnding(fileName) + "." + (outputType.equals(MIDI) ? "mid" : outputType);
     }
 
     /**
@@ -98,13 +149,401 @@ public class MusicWriter {
      * @see MidiToWavRenderer
      */
     public static void writeWav(Sequence sequence, String fileName) throws IOException {
+        writeWav(Collections.singletonList(sequence).iterator(), fileName);
+    }
+
+    /**
+     * Renders the given segments to a wav file.
+     * The segments are requested while the audio is rendered, so the whole music does not need to be in memory.
+     *
+     * @param segments The music split into segments in time order
+     * @param fileName The file to write to
+     * @throws IOException Thrown if writing to file was not possible
+     * @see MusicWriter#render(Iterator, AudioSink)
+     */
+    public static void writeWav(Iterator<Sequence> segments, String fileName) throws IOException {
+        render(segments, createSink(WAV, fileName));
+    }
+
+    /**
+     * Renders the given segments and streams the audio as a WAV file into the given channel, e.g. a socket.
+     * The length in the header is updated afterwards if the channel is seekable and the length was not known
+     * in advance. The channel is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param channel  The channel to write to
+     * @throws IOException Thrown if writing to the channel was not possible
+     * @see PcmChannelWriter
+     */
+    public static void writeWav(Iterator<Sequence> segments, WritableByteChannel channel) throws IOException {
+        render(segments, new PcmChannelWriter(channel, true));
+    }
+
+    /**
+     * Renders the given segments and streams the audio as WAV file into the given output stream.
+     * The stream is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param output   The stream to write to
+     * @throws IOException Thrown if writing to the stream was not possible
+     * @see MusicWriter#writeWav(Iterator, WritableByteChannel)
+     */
+    public static void writeWav(Iterator<Sequence> segments, OutputStream output) throws IOException {
+        writeWav(segments, Channels.newChannel(output));
+    }
+
+    /**
+     * Renders the given segments with the given settings and streams the audio as WAV file into the given output
+     * stream. Nothing is logged to the console, so several renderings can run at once. The stream is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param output   The stream to write to
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering, e.g. the time it took and the synthesizers used
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened or writing to the stream was not possible
+     */
+    public static double writeWav(Iterator<Sequence> segments, OutputStream output, RenderSettings settings,
+                                  Consumer<String> log) throws IOException {
+        return writeWav(segments, Channels.newChannel(output), settings, log);
+    }
+
+    /**
+     * Renders the given segments with the given settings and streams the audio as WAV file into the given channel.
+     * Nothing is logged to the console, so several renderings can run at once. The channel is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param channel  The channel to write to
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering, e.g. the time it took and the synthesizers used
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened or writing to the channel was not possible
+     * @see MusicWriter#writeWav(Iterator, WritableByteChannel)
+     */
+    public static double writeWav(Iterator<Sequence> segments, WritableByteChannel channel, RenderSettings settings,
+                                  Consumer<String> log) throws IOException {
+        return render(segments, new PcmChannelWriter(channel, true), settings, log);
+    }
+
+    /**
+     * Renders the given segments and streams the raw audio into the given channel without any header.
+     * The audio is signed PCM in the format of {@link MusicWriter#getAudioFormat()}. The channel is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param channel  The channel to write to
+     * @throws IOException Thrown if writing to the channel was not possible
+     */
+    public static void writePcm(Iterator<Sequence> segments, WritableByteChannel channel) throws IOException {
+        render(segments, new PcmChannelWriter(channel, false));
+    }
+
+    /**
+     * Renders the given segments with the given settings and streams the raw audio into the given channel without
+     * any header. The audio is signed PCM in the format of {@link MusicWriter#getAudioFormat(RenderSettings)}.
+     * Nothing is logged to the console, so several renderings can run at once. The channel is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param channel  The channel to write to
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering, e.g. the time it took and the synthesizers used
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened or writing to the channel was not possible
+     */
+    public static double writePcm(Iterator<Sequence> segments, WritableByteChannel channel, RenderSettings settings,
+                                  Consumer<String> log) throws IOException {
+        return render(segments, new PcmChannelWriter(channel, false), settings, log);
+    }
+
+    /**
+     * @return The format of the audio rendered with {@link RenderSettings#DEFAULT}
+     */
+    public static AudioFormat getAudioFormat() {
+        return getAudioFormat(RenderSettings.DEFAULT);
+    }
+
+    /**
+     * @param settings The settings for rendering
+     * @return The format of the audio rendered with the settings
+     */
+    public static AudioFormat getAudioFormat(RenderSettings settings) {
+        return settings.getProfile().getPool().getFormat();
+    }
+
+    /**
+     * Renders the given segments and encodes the audio to a lossless flac file while it is rendered.
+     * The encoding runs in this process and uses all processors.
+     *
+     * @param segments The music split into segments in time order
+     * @param fileName The file to write to
+     * @throws IOException Thrown if writing to file was not possible
+     * @see FlacEncoder
+     */
+    public static void writeFlac(Iterator<Sequence> segments, String fileName) throws IOException {
+        render(segments, createSink(FLAC, fileName));
+    }
+
+    /**
+     * Renders the given segments with the given settings and streams the audio as flac into the given output stream,
+     * e.g. to a client. The header leaves the length and the MD5 signature unknown, as it is sent first.
+     * Nothing is logged to the console, so several renderings can run at once. The stream is not closed.
+     *
+     * @param segments The music split into segments in time order
+     * @param output   The stream to write to
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering, e.g. the time it took and the synthesizers used
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened or writing to the stream was not possible
+     * @see FlacEncoder#Encode(AudioInputStream, OutputStream, int)
+     */
+    public static double writeFlac(Iterator<Sequence> segments, OutputStream output, RenderSettings settings,
+                                   Consumer<String> log) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        return render(segments, stream -> FlacEncoder.Encode(stream, output, threads), settings, log);
+    }
+
+    /**
+     * Renders the given segments once and writes the audio to several files at once.
+     * Every file receives the audio through its own bounded buffer while it is rendered.
+     * A MIDI file is written from the same segments, so it holds the same notes as the audio.
+     *
+     * @param segments The music split into segments in time order
+     * @param files    The file to write to for every output type ({@link MusicWriter#WAV}, {@link MusicWriter#FLAC},
+     *                 {@link MusicWriter#MP3} or {@link MusicWriter#MIDI})
+     * @throws IOException Thrown if writing to any of the files was not possible
+     * @see AudioTee
+     * @see MidiFileWriter.Recorder
+     */
+    public static void writeAudio(Iterator<Sequence> segments, Map<String, String> files) throws IOException {
+        MidiFileWriter.Recorder midi = files.containsKey(MIDI) ? new MidiFileWriter.Recorder(segments) : null;
+        AudioSink sink = createSink(files);
+        if (sink != null)
+            render(midi != null ? midi : segments, sink);
+        if (midi != null)
+            finishMidi(midi, files.get(MIDI));
+    }
+
+    /**
+     * Renders the given segments once with the given settings and writes the audio to several files at once.
+     * Nothing is logged to the console, so several renderings can run at once.
+     *
+     * @param segments The music split into segments in time order
+     * @param files    The file to write to for every output type, including {@link MusicWriter#MIDI}
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering, e.g. the time it took and the synthesizers used
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened or writing to any of the files was not possible
+     * @see MusicWriter#writeAudio(Iterator, Map)
+     */
+    public static double writeAudio(Iterator<Sequence> segments, Map<String, String> files, RenderSettings settings,
+                                    Consumer<String> log) throws IOException {
+        MidiFileWriter.Recorder midi = files.containsKey(MIDI) ? new MidiFileWriter.Recorder(segments) : null;
+        AudioSink sink = createSink(files);
+        double seconds = sink == null ? 0 : render(midi != null ? midi : segments, sink, settings, log);
+        if (midi != null)
+            finishMidi(midi, files.get(MIDI));
+        return seconds;
+    }
+
+    /**
+     * Creates the sink writing the audio to all audio files
+     *
+     * @param files The file to write to for every output type, other types than audio are ignored
+     * @return The sink or null if there is no audio file
+     */
+    private static AudioSink createSink(Map<String, String> files) {
+        List<AudioSink> sinks = new ArrayList<>(files.size());
+        for (Map.Entry<String, String> file : files.entrySet())
+            if (!file.getKey().equals(MIDI))
+                sinks.add(createSink(file.getKey(), file.getValue()));
+        if (sinks.isEmpty())
+            return null;
+        return sinks.size() == 1 ? sinks.get(0) : new AudioTee(sinks);
+    }
+
+    /**
+     * Writes the MIDI file from the events recorded while rendering
+     *
+     * @param midi     The recorder, which records the remaining segments
+     * @param fileName The file to write to
+     * @throws IOException Thrown if writing to file was not possible
+     */
+    private static void finishMidi(MidiFileWriter.Recorder midi, String fileName) throws IOException {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(fileName))) {
+            midi.finish(output);
+        }
+    }
+
+    /**
+     * Creates the sink writing the audio to a file
+     *
+     * @param outputType The audio output type ({@link MusicWriter#WAV}, {@link MusicWriter#FLAC} or {@link MusicWriter#MP3})
+     * @param fileName   The file to write to. Mp3 files always get the extension ".mp3".
+     * @return The sink
+     */
+    private static AudioSink createSink(String outputType, String fileName) {
+        switch (outputType) {
+            case WAV:
+                Path wavFile = Paths.get(fileName);
+                return stream -> {
+                    try (FileChannel channel = FileChannel.open(wavFile, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                        new PcmChannelWriter(channel, true).write(stream);
+                    }
+                };
+            case FLAC:
+                File flacFile = new File(fileName);
+                int threads = Runtime.getRuntime().availableProcessors();
+                return stream -> FlacEncoder.Encode(stream, flacFile, threads);
+            case MP3:
+                File mp3 = new File(withExtension(fileName, MP3));
+                mp3.delete();
+                return stream -> Mp3Encoder.Encode(stream, mp3);
+            default:
+                throw new IllegalArgumentException("Not an audio output type: " + outputType);
+        }
+    }
+
+    /**
+     * Renders the given segments with {@link RenderSettings#DEFAULT}.
+     * The real-time factor, which is the time needed for rendering and writing divided by the length of the audio,
+     * is logged to the console.
+     *
+     * @param segments The music split into segments in time order
+     * @param sink     Receives the audio while it is rendered
+     * @throws IOException Thrown if rendering or writing the audio was not possible
+     */
+    private static void render(Iterator<Sequence> segments, AudioSink sink) throws IOException {
+        RenderSettings settings = RenderSettings.DEFAULT;
+        long start = System.currentTimeMillis();
+        double seconds;
+        try {
+            seconds = render(segments, sink, settings, System.out::println);
+        } catch (IOException e) {
+            if (!(e.getCause() instanceof MidiUnavailableException))
+                throw e;
+            e.getCause().printStackTrace();
+            return;
+        }
+        long end = System.currentTimeMillis();
+        if (seconds > 0)
+            System.out.println(String.format(Locale.ROOT, "Rendered %.1fs of audio with the %s profile, real-time factor: %.3f",
+                    seconds, settings.getProfile(), (end - start) / 1000.0 / seconds));
+    }
+
+    /**
+     * Renders the given segments with the given settings
+     *
+     * @param segments The music split into segments in time order
+     * @param sink     Receives the audio while it is rendered
+     * @param settings The settings for rendering
+     * @param log      Receives the summary of the rendering
+     * @return The length of the rendered audio in seconds
+     * @throws IOException Thrown if the synthesizer could not be opened or rendering or writing the audio was not possible
+     */
+    private static double render(Iterator<Sequence> segments, AudioSink sink, RenderSettings settings,
+                                 Consumer<String> log) throws IOException {
+        SynthesizerPool pool = settings.getProfile().getPool();
+        long[] bytes = {0};
+        AudioSink countingSink = stream -> sink.write(new AudioInputStream(new FilterInputStream(stream) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0)
+                    bytes[0] += read;
+                return read;
+            }
+        }, stream.getFormat(), stream.getFrameLength()));
+        try {
+            log.accept(createEngine(pool, Runtime.getRuntime().availableProcessors(), settings)
+                    .render(segments, countingSink));
+        } catch (MidiUnavailableException e) {
+            throw new IOException("Could not open a synthesizer", e);
+        }
+        AudioFormat format = pool.getFormat();
+        return bytes[0] / (double) format.getFrameSize() / format.getFrameRate();
+    }
+
+    /**
+     * Creates the engine for the synthesizer and render mode of the settings
+     *
+     * @param pool     The synthesizers of the profile of the settings
+     * @param threads  The amount of threads for rendering
+     * @param settings The settings for rendering
+     * @return The render engine
+     */
+    private static RenderEngine createEngine(SynthesizerPool pool, int threads, RenderSettings settings) {
+        if (WAVETABLE.equals(settings.getEngine()))
+            return new WavetableRenderer(pool.getFormat(), threads);
+        switch (settings.getMode()) {
+            case PARALLEL:
+                return new TimeParallelRenderer(pool, threads);
+            case CHANNELS:
+                return new ChannelParallelRenderer(pool, threads, settings.getGains());
+            case CACHED:
+                return new SampleCacheRenderer(pool, threads);
+            case SEQUENTIAL:
+            default:
+                return new MidiToWavRenderer(pool);
+        }
+    }
+
+    /**
+     * Opens a synthesizer for rendering in the background, while the music is still generated.
+     * Only useful before writing an audio file.
+     *
+     * @param programs The MIDI programs of the music, e.g. of the ensemble, which are loaded in advance.
+     *                 The synthesizer loads other instruments when they are first used.
+     */
+    public static void prewarm(int... programs) {
+        prewarm(RenderSettings.DEFAULT, programs);
+    }
+
+    /**
+     * Opens a synthesizer for rendering with the given settings in the background.
+     *
+     * @param settings The settings of the following renderings
+     * @param programs The MIDI programs of the music, which are loaded in advance
+     * @see MusicWriter#prewarm(int...)
+     */
+    public static void prewarm(RenderSettings settings, int... programs) {
+        if (WAVETABLE.equals(settings.getEngine()))
+            return; // Needs no synthesizer
+        SynthesizerPool pool = settings.getProfile().getPool();
+        pool.preload(programs);
+        pool.prewarm(1);
+    }
+
+    /**
+     * Opens the synthesizer for playback in the background, while the music is still generated.
+     * Only useful before playing the music with {@link MusicWriter#play(Iterator)}.
+     */
+    public static void prewarmPlayback() {
+        Thread thread = new Thread(() -> {
+            try {
+                LivePlayer.Open();
+            } catch (MidiUnavailableException e) {
+                e.printStackTrace();
+            }
+        }, "playback-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Plays the music while it is generated segment by segment.
+     * The first segment is played as soon as it is generated on a shared synthesizer, which stays open for the next
+     * playback. Blocks thread while playing.
+     *
+     * @param segments The music split into segments in time order
+     * @see MusicWriter#prewarmPlayback()
+     */
+    public static void play(Iterator<Sequence> segments) {
         try {
-            MidiToWavRenderer renderer = new MidiToWavRenderer();
-            File wavFile = new File(fileName);
-            wavFile.delete();
-            renderer.createWavFile(sequence, wavFile);
-        } catch (MidiUnavailableException | InvalidMidiDataException e) {
+            LivePlayer.Play(segments);
+        } catch (MidiUnavailableException e) {
             e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -0,0 +1,169 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Writes rendered audio as WAV or raw PCM into any channel, e.g. a file, a socket or a memory buffer.
+ * The audio is copied through direct buffers, which are reused for all renderings, so long renderings do not
+ * create garbage for every chunk.
+ */
+class PcmChannelWriter implements AudioSink {
+    /**
+     * The size of the direct buffers in bytes
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * The maximum amount of idle buffers kept for reuse
+     */
+    private static final int MAX_IDLE_BUFFERS = 16;
+    /**
+     * The size of the WAV header in bytes
+     */
+    private static final int HEADER_SIZE = 44;
+    /**
+     * The idle direct buffers
+     */
+    private static final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The channel to write to
+     */
+    private final WritableByteChannel channel;
+    /**
+     * True if a WAV header is written before the audio
+     */
+    private final boolean wav;
+
+    /**
+     * @param channel The channel to write to
+     * @param wav     True to write a WAV file, false to write raw PCM in the format of the audio
+     */
+    PcmChannelWriter(WritableByteChannel channel, boolean wav) {
+        this.channel = channel;
+        this.wav = wav;
+    }
+
+    /**
+     * Writes the audio until its end.
+     * The WAV header is written first with the length of the audio. If the length is unknown, the header is updated
+     * afterwards on seekable channels and contains the maximum length on all other channels.
+     *
+     * @param stream The audio in signed PCM
+     * @throws IOException If the audio could not be read or written
+     */
+    @Override
+    public void write(AudioInputStream stream) throws IOException {
+        AudioFormat format = stream.getFormat();
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)
+            throw new IOException("Only signed PCM audio can be written");
+        int frameSize = format.getFrameSize(), sampleSize = format.getSampleSizeInBits() / 8;
+        // WAV stores little endian samples and unsigned samples with 8 bits
+        boolean swap = wav && format.isBigEndian() && sampleSize > 1, unsigned = wav && sampleSize == 1;
+
+        ByteBuffer buffer = acquire();
+        try {
+            SeekableByteChannel seekable = channel instanceof SeekableByteChannel ? (SeekableByteChannel) channel : null;
+            long headerPosition = seekable != null ? seekable.position() : -1;
+            long expected = stream.getFrameLength() == AudioSystem.NOT_SPECIFIED ? -1
+                    : stream.getFrameLength() * frameSize;
+            if (wav) {
+                putHeader(buffer, format, expected);
+                flush(buffer);
+            }
+
+            byte[] chunk = new byte[BUFFER_SIZE / frameSize * frameSize];
+            long written = 0;
+            for (int read; (read = stream.read(chunk)) >= 0; ) {
+                if (swap)
+                    for (int i = 0; i + sampleSize <= read; i += sampleSize)
+                        for (int a = i, b = i + sampleSize - 1; a < b; a++, b--) {
+                            byte t = chunk[a];
+                            chunk[a] = chunk[b];
+                            chunk[b] = t;
+                        }
+                else if (unsigned)
+                    for (int i = 0; i < read; i++)
+                        chunk[i] ^= (byte) 0x80;
+                buffer.put(chunk, 0, read);
+                flush(buffer);
+                written += read;
+            }
+
+            if (wav && written != expected && seekable != null) {
+                long end = seekable.position();
+                seekable.position(headerPosition);
+                putHeader(buffer, format, written);
+                flush(buffer);
+                seekable.position(end);
+            }
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Writes the content of the buffer to the channel and clears it
+     *
+     * @param buffer The buffer after putting data in it
+     * @throws IOException If the data could not be written
+     */
+    private void flush(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Puts a WAV header into the buffer
+     *
+     * @param buffer     The empty buffer
+     * @param format     The format of the audio
+     * @param dataLength The length of the audio in bytes or -1 if it is unknown
+     */
+    private static void putHeader(ByteBuffer buffer, AudioFormat format, long dataLength) {
+        int sampleSize = format.getSampleSizeInBits() / 8, sampleRate = (int) format.getSampleRate();
+        long maxLength = 0xFFFFFFFFL - (HEADER_SIZE - 8);
+        long length = dataLength < 0 || dataLength > maxLength ? maxLength : dataLength;
+        buffer.order(ByteOrder.BIG_ENDIAN).putInt(0x52494646) // RIFF
+                .order(ByteOrder.LITTLE_ENDIAN).putInt((int) (length + HEADER_SIZE - 8))
+                .order(ByteOrder.BIG_ENDIAN).putInt(0x57415645) // WAVE
+                .putInt(0x666D7420) // fmt
+                .order(ByteOrder.LITTLE_ENDIAN).putInt(16)
+                .putShort((short) 1) // PCM
+                .putShort((short) format.getChannels())
+                .putInt(sampleRate)
+                .putInt(sampleRate * format.getFrameSize())
+                .putShort((short) format.getFrameSize())
+                .putShort((short) (sampleSize * 8))
+                .order(ByteOrder.BIG_ENDIAN).putInt(0x64617461) // data
+                .order(ByteOrder.LITTLE_ENDIAN).putInt((int) length);
+    }
+
+    /**
+     * @return An idle direct buffer or a new one if there is none
+     */
+    private static ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /**
+     * Keeps a buffer for reuse
+     *
+     * @param buffer The buffer which is not used anymore
+     */
+    private static void release(ByteBuffer buffer) {
+        buffer.clear();
+        if (buffers.size() < MAX_IDLE_BUFFERS)
+            buffers.offer(buffer);
+    }
+}
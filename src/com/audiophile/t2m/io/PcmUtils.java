@@ -0,0 +1,93 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.sampled.AudioFormat;
+
+/**
+ * A class that holds a collection of static methods for converting signed PCM audio to integer samples and back.
+ */
+class PcmUtils {
+    /**
+     * Converts signed PCM bytes to samples
+     *
+     * @param data   The audio bytes
+     * @param length The amount of bytes to convert
+     * @param format The format of the audio
+     * @param target The array to write the samples to
+     * @param offset The index of the first sample in the target
+     */
+    static void ToSamples(byte[] data, int length, AudioFormat format, int[] target, int offset) {
+        int bytes = format.getSampleSizeInBits() / 8;
+        boolean bigEndian = format.isBigEndian();
+        for (int i = 0; i + bytes <= length; i += bytes) {
+            int sample = 0;
+            for (int b = 0; b < bytes; b++) {
+                int shift = 8 * (bigEndian ? bytes - 1 - b : b);
+                sample |= (data[i + b] & 0xFF) << shift;
+            }
+            target[offset++] = sample << (32 - 8 * bytes) >> (32 - 8 * bytes); // Restore the sign
+        }
+    }
+
+    /**
+     * Converts signed PCM bytes to float samples between -1 and 1
+     *
+     * @param data   The audio bytes
+     * @param length The amount of bytes to convert
+     * @param format The format of the audio
+     * @param target The array to write the samples to
+     * @param offset The index of the first sample in the target
+     */
+    static void ToFloats(byte[] data, int length, AudioFormat format, float[] target, int offset) {
+        int bytes = format.getSampleSizeInBits() / 8;
+        boolean bigEndian = format.isBigEndian();
+        float scale = 1f / (1L << (8 * bytes - 1));
+        for (int i = 0; i + bytes <= length; i += bytes) {
+            int sample = 0;
+            for (int b = 0; b < bytes; b++) {
+                int shift = 8 * (bigEndian ? bytes - 1 - b : b);
+                sample |= (data[i + b] & 0xFF) << shift;
+            }
+            target[offset++] = (sample << (32 - 8 * bytes) >> (32 - 8 * bytes)) * scale; // Restore the sign
+        }
+    }
+
+    /**
+     * Converts float samples between -1 and 1 to signed PCM bytes. Samples out of the range are clipped.
+     *
+     * @param samples The samples to convert
+     * @param format  The format of the audio
+     * @param target  The array to write the bytes to, which must be big enough for all samples
+     */
+    static void ToBytes(float[] samples, AudioFormat format, byte[] target) {
+        int bytes = format.getSampleSizeInBits() / 8;
+        boolean bigEndian = format.isBigEndian();
+        long max = (1L << (8 * bytes - 1)) - 1, min = -max - 1;
+        for (int i = 0, n = 0; i < samples.length; i++, n += bytes) {
+            long sample = Math.max(min, Math.min(max, Math.round((double) samples[i] * (max + 1))));
+            for (int b = 0; b < bytes; b++) {
+                int shift = 8 * (bigEndian ? bytes - 1 - b : b);
+                target[n + b] = (byte) (sample >> shift);
+            }
+        }
+    }
+
+    /**
+     * Converts samples to signed PCM bytes. Samples out of the range of the format are clipped.
+     *
+     * @param samples The samples to convert
+     * @param format  The format of the audio
+     * @param target  The array to write the bytes to, which must be big enough for all samples
+     */
+    static void ToBytes(int[] samples, AudioFormat format, byte[] target) {
+        int bytes = format.getSampleSizeInBits() / 8;
+        boolean bigEndian = format.isBigEndian();
+        int max = (1 << (8 * bytes - 1)) - 1, min = -max - 1;
+        for (int i = 0, n = 0; i < samples.length; i++, n += bytes) {
+            int sample = Math.max(min, Math.min(max, samples[i]));
+            for (int b = 0; b < bytes; b++) {
+                int shift = 8 * (bigEndian ? bytes - 1 - b : b);
+                target[n + b] = (byte) (sample >> shift);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Renders MIDI music to audio
+ */
+interface RenderEngine {
+    /**
+     * Renders a Sequence split into segments
+     *
+     * @param segments The segments of the sequence in time order with ticks relative to the beginning of the music
+     * @param sink     Receives the audio while it is rendered
+     * @return A summary of the rendering, e.g. the time it took, which the caller may log
+     * @throws MidiUnavailableException No synthesizer available
+     * @throws IOException              Could not render or write the audio
+     */
+    String render(Iterator<Sequence> segments, AudioSink sink) throws MidiUnavailableException, IOException;
+}
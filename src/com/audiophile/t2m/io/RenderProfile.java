@@ -0,0 +1,92 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The quality settings for rendering audio.
+ * Every profile has its own pool of synthesizers, because the settings are fixed when a synthesizer is opened.
+ */
+public enum RenderProfile {
+    /**
+     * Fast previews: 22050hz 16 bit, linear interpolation, 64 voices and no reverb or chorus
+     */
+    Draft("draft", 22050, 16, "linear", 64, false),
+    /**
+     * The default: 44000hz 24 bit, sinc interpolation, 1024 voices with reverb and chorus
+     */
+    Standard("standard", 44000, 24, "sinc", 1024, true),
+    /**
+     * Archival: 48000hz 24 bit, sinc interpolation, 1024 voices with reverb and chorus
+     */
+    Master("master", 48000, 24, "sinc", 1024, true);
+
+    private final String name;
+    private final float sampleRate;
+    private final int sampleSize;
+    private final String interpolation;
+    private final int polyphony;
+    private final boolean effects;
+    /**
+     * The synthesizers of this profile, which are created on the first use
+     */
+    private SynthesizerPool pool;
+
+    RenderProfile(String name, float sampleRate, int sampleSize, String interpolation, int polyphony, boolean effects) {
+        this.name = name;
+        this.sampleRate = sampleRate;
+        this.sampleSize = sampleSize;
+        this.interpolation = interpolation;
+        this.polyphony = polyphony;
+        this.effects = effects;
+    }
+
+    /**
+     * @return The pool with up to one synthesizer per processor opened with the settings of this profile
+     */
+    synchronized SynthesizerPool getPool() {
+        if (pool == null) {
+            Map<String, Object> info = new HashMap<>();
+            info.put("interpolation", interpolation);
+            info.put("max polyphony", String.valueOf(polyphony));
+            info.put("reverb", String.valueOf(effects));
+            info.put("chorus", String.valueOf(effects));
+            pool = new SynthesizerPool(new AudioFormat(sampleRate, sampleSize, 2, true, false), info,
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return pool;
+    }
+
+    /**
+     * Maps the short names to the profiles
+     *
+     * @param key      The short name
+     * @param fallback the fallback if no profile with the given short name exists
+     * @return An corresponding profile
+     */
+    public static RenderProfile map(String key, RenderProfile fallback) {
+        for (RenderProfile p : RenderProfile.values())
+            if (p.name.equals(key))
+                return p;
+        return fallback;
+    }
+
+    /**
+     * Returns all available profiles as array
+     *
+     * @return The short name for every profile
+     */
+    public static String[] stringValues() {
+        RenderProfile[] profiles = RenderProfile.values();
+        String[] values = new String[profiles.length];
+        for (int i = 0; i < values.length; i++)
+            values[i] = profiles[i].name;
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
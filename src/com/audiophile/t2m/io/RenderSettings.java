@@ -0,0 +1,86 @@
+package com.audiophile.t2m.io;
+
+/**
+ * The settings for rendering audio, which are fixed for one rendering,
+ * so several renderings can run at once with different settings.
+ * Instances are immutable, the <code>with</code> methods return a copy.
+ */
+public final class RenderSettings {
+    /**
+     * The settings of a fresh start: {@link MusicWriter#GERVILL} in the {@link MusicWriter#SEQUENTIAL} render mode with
+     * the {@link RenderProfile#Standard} profile and no channel gains
+     */
+    public static final RenderSettings DEFAULT = new RenderSettings(MusicWriter.GERVILL, MusicWriter.SEQUENTIAL,
+            RenderProfile.Standard, new float[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1});
+
+    private final String engine, mode;
+    private final RenderProfile profile;
+    private final float[] gains;
+
+    private RenderSettings(String engine, String mode, RenderProfile profile, float[] gains) {
+        this.engine = engine;
+        this.mode = mode;
+        this.profile = profile;
+        this.gains = gains;
+    }
+
+    /**
+     * @param engine The synthesizer. {@link MusicWriter#GERVILL} plays the soundbank of the Java Sound synthesizer
+     *               with the render mode, {@link MusicWriter#WAVETABLE} plays simple wavetables without soundbank,
+     *               mixing one channel per thread.
+     * @return A copy with the given synthesizer
+     */
+    public RenderSettings withEngine(String engine) {
+        return new RenderSettings(engine, mode, profile, gains);
+    }
+
+    /**
+     * @param mode The render mode. {@link MusicWriter#SEQUENTIAL} renders the music while it is generated on one
+     *             synthesizer, {@link MusicWriter#PARALLEL} splits the music into time segments, which are rendered
+     *             on all processors, {@link MusicWriter#CHANNELS} renders every MIDI channel on its own synthesizer
+     *             and mixes them down, {@link MusicWriter#CACHED} renders every distinct note once and mixes the
+     *             cached notes.
+     * @return A copy with the given render mode
+     */
+    public RenderSettings withMode(String mode) {
+        return new RenderSettings(engine, mode, profile, gains);
+    }
+
+    /**
+     * @param profile The quality of the audio
+     * @return A copy with the given profile
+     */
+    public RenderSettings withProfile(RenderProfile profile) {
+        return new RenderSettings(engine, mode, profile, gains);
+    }
+
+    /**
+     * @param channel The MIDI channel (0 to 15)
+     * @param gain    The gain of the channel in the mixdown of the {@link MusicWriter#CHANNELS} render mode
+     * @return A copy with the given gain
+     */
+    public RenderSettings withGain(int channel, float gain) {
+        float[] gains = this.gains.clone();
+        gains[channel] = gain;
+        return new RenderSettings(engine, mode, profile, gains);
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public String getMode() {
+        return mode;
+    }
+
+    public RenderProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return A copy of the gains of the MIDI channels 0 to 15
+     */
+    public float[] getGains() {
+        return gains.clone();
+    }
+}
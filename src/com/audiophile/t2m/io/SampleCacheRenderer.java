@@ -0,0 +1,506 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders every distinct note of a music only once and mixes the rendered notes at their start times.
+ * <p>
+ * The music uses few instruments, pitches, velocities and note lengths, so most notes are repeated many times.
+ * A note is identified by its pitch, velocity, length and the program and controllers of its channel when it starts.
+ * The distinct notes are rendered on all processors, each on a synthesizer with only this note, and kept in a bounded
+ * cache outside the heap, which is shared by all renderings with the same synthesizer settings.
+ * </p>
+ * <p>
+ * Changes of controllers or pitch bend while a note is playing are not applied, as the note is rendered on its own.
+ * </p>
+ */
+class SampleCacheRenderer implements RenderEngine {
+    /**
+     * The maximum size of the cached samples of every synthesizer setting in bytes
+     */
+    private static final long MAX_CACHE_BYTES = 256L << 20;
+    /**
+     * The maximum time in microseconds a note is rendered after it is released
+     */
+    private static final long MAX_TAIL = 3000000;
+    /**
+     * The time in microseconds a note is faded out, if it is still not silent after {@link SampleCacheRenderer#MAX_TAIL}
+     */
+    private static final long FADE_OUT = 100000;
+    /**
+     * A note is silent after its release, when no sample of a block reaches this level
+     */
+    private static final float SILENCE = 1f / (1 << 15);
+    /**
+     * The amount of frames rendered at once
+     */
+    private static final int BLOCK_FRAMES = 1024;
+    /**
+     * The length of the blocks mixed at once in seconds
+     */
+    private static final int MIX_SECONDS = 5;
+    /**
+     * The MIDI channel of drums
+     */
+    private static final int DRUMS = 9;
+    /**
+     * The cached notes of every pool
+     */
+    private static final Map<SynthesizerPool, SampleCache> caches = new HashMap<>();
+    /**
+     * The synthesizers to render the notes
+     */
+    private final SynthesizerPool pool;
+    /**
+     * The amount of notes rendered at once
+     */
+    private final int threads;
+
+    /**
+     * @param pool    The synthesizers to render the notes
+     * @param threads The amount of notes rendered at once
+     */
+    SampleCacheRenderer(SynthesizerPool pool, int threads) {
+        this.pool = pool;
+        this.threads = threads;
+    }
+
+    /**
+     * @param pool The synthesizers whose notes are cached
+     * @return The cache of the notes rendered with the pool
+     */
+    private static synchronized SampleCache getCache(SynthesizerPool pool) {
+        return caches.computeIfAbsent(pool, p -> new SampleCache());
+    }
+
+    /**
+     * Renders a Sequence split into segments.
+     * All segments are collected first, so the distinct notes are known before mixing.
+     *
+     * @param segments The segments of the sequence in time order with ticks relative to the beginning of the music
+     * @param sink     Receives the audio while it is rendered
+     * @return The time it took and the metrics of the sample cache
+     * @throws IOException Could not render or write the audio
+     */
+    @Override
+    public String render(final Iterator<Sequence> segments, final AudioSink sink) throws IOException {
+        long start = System.currentTimeMillis();
+        EventTimeline timeline = EventTimeline.of(segments);
+        AudioFormat format = pool.getFormat();
+        long totalFrames = (long) (format.getFrameRate() * (timeline.endTime / 1000000.0 + 1)); // Add extra second for smooth ending
+        SampleCache cache = getCache(pool);
+
+        ArrayList<Note> notes = collectNotes(timeline, format);
+        ArrayList<NoteKey> missing = new ArrayList<>();
+        for (Note note : notes)
+            if (!note.key.queued && cache.get(note.key) == null) {
+                note.key.queued = true;
+                missing.add(note.key);
+            }
+        prerender(missing, cache);
+
+        MixStream stream = new MixStream(notes, cache, format, totalFrames);
+        sink.write(new AudioInputStream(stream, format, totalFrames));
+        long end = System.currentTimeMillis();
+        return "Rendering " + notes.size() + " notes with " + missing.size() + " new samples took: " + (end - start)
+                + "ms\n" + cache;
+    }
+
+    /**
+     * Finds all notes with the state of their channel when they start
+     *
+     * @param timeline The events of the music
+     * @param format   The format of the audio
+     * @return The notes in time order
+     */
+    private static ArrayList<Note> collectNotes(EventTimeline timeline, AudioFormat format) {
+        long[] releases = timeline.releaseTimes();
+        int[][] state = new int[16][TimeParallelRenderer.PITCH_BEND + 1];
+        for (int[] channel : state)
+            Arrays.fill(channel, -1);
+        HashMap<NoteKey, NoteKey> keys = new HashMap<>();
+        ArrayList<Note> notes = new ArrayList<>();
+        for (int i = 0; i < timeline.size(); i++) {
+            if (timeline.isNoteOn(i)) {
+                ShortMessage message = (ShortMessage) timeline.messages[i];
+                long startFrame = toFrames(format, timeline.times[i]);
+                int length = (int) (toFrames(format, releases[i]) - startFrame);
+                NoteKey key = new NoteKey(message.getChannel() == DRUMS, state[message.getChannel()].clone(),
+                        message.getData1(), message.getData2(), length);
+                NoteKey known = keys.putIfAbsent(key, key);
+                notes.add(new Note(startFrame, known != null ? known : key));
+            } else TimeParallelRenderer.updateState(state, timeline.messages[i]);
+        }
+        return notes;
+    }
+
+    /**
+     * @param format The format of the audio
+     * @param time   The time in microseconds
+     * @return The frame at the time
+     */
+    private static long toFrames(AudioFormat format, long time) {
+        return (long) (format.getFrameRate() * (time / 1000000.0));
+    }
+
+    /**
+     * Renders the notes on all threads and puts them into the cache
+     *
+     * @param keys  The notes to render
+     * @param cache The cache for the rendered notes
+     * @throws IOException If a note could not be rendered
+     */
+    private void prerender(List<NoteKey> keys, SampleCache cache) throws IOException {
+        if (keys.isEmpty())
+            return;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            ArrayList<Future<Void>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int first = t;
+                futures.add(executor.submit((Callable<Void>) () -> {
+                    SynthesizerPool.PooledSynthesizer synth = pool.acquire();
+                    try {
+                        for (int i = first; i < keys.size(); i += threads)
+                            cache.put(keys.get(i), renderNote(synth, keys.get(i)));
+                    } finally {
+                        pool.release(synth);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> future : futures)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not render note", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Renders a single note until it is silent after its release.
+     * The synthesizer is cleared first, so a note does not depend on the notes rendered before.
+     * A note, which is still not silent after {@link SampleCacheRenderer#MAX_TAIL}, is faded out.
+     *
+     * @param synth A synthesizer of the pool
+     * @param key   The note to render
+     * @return The interleaved float samples of the note outside the heap
+     * @throws IOException If the audio could not be read
+     */
+    private static FloatBuffer renderNote(SynthesizerPool.PooledSynthesizer synth, NoteKey key) throws IOException {
+        synth.clear();
+        AudioFormat format = synth.stream.getFormat();
+        int channel = key.drums ? DRUMS : 0, channels = format.getChannels(), frameSize = format.getFrameSize();
+        long offset = synth.getMicrosecondPosition();
+        ArrayList<MidiMessage> messages = new ArrayList<>();
+        try {
+            TimeParallelRenderer.addSnapshot(channel, key.state, messages);
+            messages.add(new ShortMessage(ShortMessage.NOTE_ON, channel, key.pitch, key.velocity));
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Invalid note", e);
+        }
+        for (MidiMessage message : messages)
+            synth.receiver.send(message, offset);
+        try {
+            synth.receiver.send(new ShortMessage(ShortMessage.NOTE_OFF, channel, key.pitch, 0),
+                    offset + (long) (key.length * 1000000.0 / format.getFrameRate()));
+        } catch (InvalidMidiDataException e) {
+            throw new IOException("Invalid note", e);
+        }
+
+        long maxFrames = key.length + toFrames(format, MAX_TAIL);
+        float[] samples = new float[(key.length + BLOCK_FRAMES) * channels];
+        byte[] buffer = new byte[BLOCK_FRAMES * frameSize];
+        int frames = 0;
+        boolean silent = false;
+        while (frames < maxFrames && !silent) {
+            int read = 0;
+            for (int r; read < buffer.length && (r = synth.stream.read(buffer, read, buffer.length - read)) >= 0; )
+                read += r;
+            if (read == 0)
+                break;
+            if (samples.length < (frames + BLOCK_FRAMES) * channels)
+                samples = Arrays.copyOf(samples, samples.length * 2);
+            PcmUtils.ToFloats(buffer, read, format, samples, frames * channels);
+            float peak = 0;
+            for (int i = frames * channels; i < (frames + read / frameSize) * channels; i++)
+                peak = Math.max(peak, Math.abs(samples[i]));
+            frames += read / frameSize;
+            silent = frames > key.length && peak < SILENCE;
+        }
+        if (!silent) {
+            // Fade out the tail instead of cutting it off with a click
+            int fade = (int) Math.min(frames - key.length, toFrames(format, FADE_OUT));
+            for (int f = 0; f < fade; f++)
+                for (int c = 0; c < channels; c++)
+                    samples[(frames - fade + f) * channels + c] *= (fade - f) / (float) fade;
+        }
+
+        FloatBuffer result = ByteBuffer.allocateDirect(frames * channels * 4).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        result.put(samples, 0, frames * channels);
+        result.clear();
+        return result;
+    }
+
+    /**
+     * A note with everything its sound depends on
+     */
+    private static class NoteKey {
+        /**
+         * True if the note is played on the drum channel
+         */
+        final boolean drums;
+        /**
+         * The controllers, program, pressure and pitch bend of the channel when the note starts
+         */
+        final int[] state;
+        final int pitch, velocity;
+        /**
+         * The length of the note until its release in frames
+         */
+        final int length;
+        private final int hash;
+        /**
+         * True if the note is already rendered in the current rendering
+         */
+        boolean queued;
+
+        NoteKey(boolean drums, int[] state, int pitch, int velocity, int length) {
+            this.drums = drums;
+            this.state = state;
+            this.pitch = pitch;
+            this.velocity = velocity;
+            this.length = length;
+            this.hash = Arrays.hashCode(state) * 31 + Arrays.hashCode(new int[]{drums ? 1 : 0, pitch, velocity, length});
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NoteKey))
+                return false;
+            NoteKey key = (NoteKey) o;
+            return drums == key.drums && pitch == key.pitch && velocity == key.velocity && length == key.length
+                    && Arrays.equals(state, key.state);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A note in the music
+     */
+    private static class Note {
+        /**
+         * The frame at which the note starts
+         */
+        final long startFrame;
+        final NoteKey key;
+
+        Note(long startFrame, NoteKey key) {
+            this.startFrame = startFrame;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The rendered notes, which are removed in least recently used order if the cache is full
+     */
+    private static class SampleCache {
+        private final LinkedHashMap<NoteKey, FloatBuffer> samples = new LinkedHashMap<>(64, 0.75f, true);
+        /**
+         * The size of all cached samples in bytes
+         */
+        private long bytes;
+        /**
+         * The amount of found and missing notes
+         */
+        private long hits, misses;
+
+        /**
+         * @param key The note
+         * @return The samples of the note or null if it is not cached
+         */
+        synchronized FloatBuffer get(NoteKey key) {
+            FloatBuffer result = samples.get(key);
+            if (result != null)
+                hits++;
+            else misses++;
+            return result == null ? null : result.duplicate();
+        }
+
+        /**
+         * Adds a rendered note and removes the least recently used notes if the cache is full
+         *
+         * @param key     The note
+         * @param samples The samples of the note
+         */
+        synchronized void put(NoteKey key, FloatBuffer samples) {
+            FloatBuffer old = this.samples.put(key, samples);
+            if (old != null)
+                bytes -= old.capacity() * 4L;
+            bytes += samples.capacity() * 4L;
+            Iterator<FloatBuffer> eldest = this.samples.values().iterator();
+            while (bytes > MAX_CACHE_BYTES && this.samples.size() > 1) {
+                bytes -= eldest.next().capacity() * 4L;
+                eldest.remove();
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Sample cache: " + samples.size() + " notes, " + (bytes >> 10) + "KB, " + hits + " hits, "
+                    + misses + " misses";
+        }
+    }
+
+    /**
+     * Adds up the cached notes block by block
+     */
+    private class MixStream extends InputStream {
+        /**
+         * All notes in time order
+         */
+        private final ArrayList<Note> notes;
+        private final SampleCache cache;
+        private final AudioFormat format;
+        /**
+         * The length of the audio in frames and the amount of frames mixed so far
+         */
+        private final long totalFrames;
+        private long position;
+        /**
+         * The index of the next note, which was not started yet
+         */
+        private int nextNote;
+        /**
+         * The notes which are still playing with their start and their samples
+         */
+        private final ArrayList<Note> playing = new ArrayList<>();
+        private final ArrayList<FloatBuffer> playingSamples = new ArrayList<>();
+        /**
+         * The mixed audio of the current block and the read position in it
+         */
+        private byte[] block = new byte[0];
+        private int blockPosition;
+
+        MixStream(ArrayList<Note> notes, SampleCache cache, AudioFormat format, long totalFrames) {
+            this.notes = notes;
+            this.cache = cache;
+            this.format = format;
+            this.totalFrames = totalFrames;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (blockPosition >= block.length) {
+                if (position >= totalFrames)
+                    return -1;
+                mixNext();
+            }
+            int read = Math.min(len, block.length - blockPosition);
+            System.arraycopy(block, blockPosition, b, off, read);
+            blockPosition += read;
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+        }
+
+        /**
+         * Adds up all notes playing in the next block.
+         * Notes which were removed from the cache are rendered again.
+         *
+         * @throws IOException If a note could not be rendered
+         */
+        private void mixNext() throws IOException {
+            int channels = format.getChannels();
+            int frames = (int) Math.min(totalFrames - position, (long) format.getFrameRate() * MIX_SECONDS);
+            long end = position + frames;
+            for (; nextNote < notes.size() && notes.get(nextNote).startFrame < end; nextNote++) {
+                Note note = notes.get(nextNote);
+                FloatBuffer samples = cache.get(note.key);
+                if (samples == null)
+                    samples = renderMissing(note.key);
+                playing.add(note);
+                playingSamples.add(samples);
+            }
+
+            float[] mix = new float[frames * channels];
+            for (int n = playing.size() - 1; n >= 0; n--) {
+                Note note = playing.get(n);
+                FloatBuffer samples = playingSamples.get(n);
+                int from = (int) Math.max(0, note.startFrame - position) * channels;
+                int source = (int) Math.max(0, position - note.startFrame) * channels;
+                int count = Math.min(mix.length - from, samples.capacity() - source);
+                for (int i = 0; i < count; i++)
+                    mix[from + i] += samples.get(source + i);
+                if (note.startFrame + samples.capacity() / channels <= end) {
+                    playing.remove(n);
+                    playingSamples.remove(n);
+                }
+            }
+            position = end;
+            block = new byte[frames * format.getFrameSize()];
+            blockPosition = 0;
+            PcmUtils.ToBytes(mix, format, block);
+        }
+
+        /**
+         * Renders a note which is not in the cache anymore
+         *
+         * @param key The note
+         * @return The samples of the note
+         * @throws IOException If the note could not be rendered
+         */
+        private FloatBuffer renderMissing(NoteKey key) throws IOException {
+            SynthesizerPool.PooledSynthesizer synth;
+            try {
+                synth = pool.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a synthesizer", e);
+            } catch (MidiUnavailableException e) {
+                throw new IOException("Could not open a synthesizer", e);
+            }
+            try {
+                FloatBuffer samples = renderNote(synth, key);
+                cache.put(key, samples);
+                return samples.duplicate();
+            } finally {
+                pool.release(synth);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.Patch;
+import javax.sound.midi.Soundbank;
+import javax.sound.midi.Synthesizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Extracts the instruments of the default soundbank, which are needed for some MIDI programs,
+ * so a synthesizer does not load the whole soundbank.
+ * The extracted subsets are cached per set of programs, e.g. per ensemble.
+ * Only the public MIDI API is used: if a program is not found, the whole soundbank is returned.
+ */
+class SoundbankSubset {
+    /**
+     * The program number for the drum kit on channel 10
+     */
+    static final int DRUMS = -1;
+    /**
+     * The extracted instruments for every requested set of programs
+     */
+    private static final Map<String, Instrument[]> subsets = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the instruments of the default soundbank for the programs of all banks
+     *
+     * @param synth    A synthesizer to get the default soundbank from
+     * @param programs The MIDI programs (0 to 127) or {@link SoundbankSubset#DRUMS} for the drum kits
+     * @return The instruments, which may be cached from an earlier call with the same programs,
+     * or all instruments of the soundbank if one of the programs is not found
+     */
+    static Instrument[] Extract(Synthesizer synth, int... programs) {
+        int[] sorted = programs.clone();
+        Arrays.sort(sorted);
+        return subsets.computeIfAbsent(Arrays.toString(sorted), key -> {
+            Soundbank soundbank = synth.getDefaultSoundbank();
+            if (soundbank == null)
+                return new Instrument[0];
+            ArrayList<Instrument> instruments = new ArrayList<>();
+            Set<Integer> found = new HashSet<>();
+            for (Instrument instrument : soundbank.getInstruments()) {
+                int program = getProgram(soundbank, instrument);
+                if (Arrays.binarySearch(sorted, program) >= 0) {
+                    instruments.add(instrument);
+                    found.add(program);
+                }
+            }
+            for (int program : sorted)
+                if (!found.contains(program))
+                    return soundbank.getInstruments();
+            return instruments.toArray(new Instrument[0]);
+        });
+    }
+
+    /**
+     * A soundbank returns only melodic instruments for a plain patch, so an instrument it does not return
+     * for its own bank and program is a drum kit.
+     *
+     * @param soundbank  The soundbank of the instrument
+     * @param instrument An instrument
+     * @return The program of the instrument or {@link SoundbankSubset#DRUMS} if it is a drum kit
+     */
+    private static int getProgram(Soundbank soundbank, Instrument instrument) {
+        Patch patch = instrument.getPatch();
+        if (soundbank.getInstrument(new Patch(patch.getBank(), patch.getProgram())) != instrument)
+            return DRUMS;
+        return patch.getProgram();
+    }
+}
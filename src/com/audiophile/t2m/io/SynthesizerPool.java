@@ -0,0 +1,494 @@
+package com.audiophile.t2m.io;
+
+import com.sun.media.sound.AudioSynthesizer;
+import com.sun.media.sound.AudioSynthesizerPropertyInfo;
+
+import javax.sound.midi.Instrument;
+import javax.sound.midi.MidiChannel;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.MidiUnavailableException;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of opened synthesizers in pull mode.
+ * Opening a synthesizer creates all voices, so synthesizers are reused for several renderings.
+ * A synthesizer is reset, when it is given back to the pool.
+ * <p>
+ * Instead of the whole default soundbank, a synthesizer only loads the instruments of the preloaded programs
+ * and loads every other instrument when it is first selected by the music.
+ * </p>
+ */
+class SynthesizerPool {
+    /**
+     * The maximum time in seconds of audio read after a reset, until the effects of the synthesizer are silent
+     */
+    private static final int MAX_DRAIN_SECONDS = 10;
+    /**
+     * The time in seconds of silence read after a reset with reverb, until the tail of the reverb is below the level,
+     * at which the synthesizer stops processing it. A shorter tail would be added to the next rendering.
+     */
+    private static final int REVERB_SILENCE_SECONDS = 4;
+    /**
+     * The controllers, which are kept by "reset all controllers", with their values on a newly opened synthesizer:
+     * bank select, volume, pan, the effect sends (e.g. reverb and chorus) and the sound controllers 1 and 10.
+     * The last ones set the pitch bend range to two semitones and deselect the parameter.
+     */
+    private static final int[][] CONTROLLER_DEFAULTS = {{0, 0}, {32, 0}, {7, 100}, {10, 64}, {91, 40}, {92, 0},
+            {93, 0}, {94, 0}, {95, 0}, {70, 0}, {79, 0}, {101, 0}, {100, 0}, {6, 2}, {38, 0}, {101, 127}, {100, 127}};
+    /**
+     * The format of the rendered audio
+     */
+    private final AudioFormat format;
+    /**
+     * The settings of the synthesizers, e.g. the interpolation
+     */
+    private final Map<String, Object> info;
+    /**
+     * The maximum amount of synthesizers
+     */
+    private final int maxSize;
+    /**
+     * The synthesizers which are not in use
+     */
+    private final BlockingQueue<PooledSynthesizer> idle = new LinkedBlockingQueue<>();
+    /**
+     * The amount of created synthesizers
+     */
+    private final AtomicInteger size = new AtomicInteger();
+    /**
+     * The amount of synthesizers closed, because they could not be reset
+     */
+    private final AtomicInteger discarded = new AtomicInteger();
+    /**
+     * The amount of acquired synthesizers and the total time in milliseconds waited for them
+     */
+    private final AtomicLong acquisitions = new AtomicLong(), waitTime = new AtomicLong();
+    /**
+     * The programs, which are loaded when a synthesizer is opened.
+     * Program 0 is the default of every channel, the drum kit is used by the rhythm.
+     */
+    private volatile int[] programs = {0, SoundbankSubset.DRUMS};
+    /**
+     * The last synthesizers opened in advance, which a rendering waits for instead of opening another one
+     */
+    private volatile Future<Void> prewarming;
+    /**
+     * The instruments, time and heap usage of the last opening of a synthesizer
+     */
+    private volatile String lastOpened;
+
+    /**
+     * Creates an empty pool. The synthesizers are created when they are needed.
+     *
+     * @param format  The format of the rendered audio
+     * @param info    The settings of the synthesizers
+     * @param maxSize The maximum amount of synthesizers
+     */
+    SynthesizerPool(AudioFormat format, Map<String, Object> info, int maxSize) {
+        this.format = format;
+        this.info = new HashMap<>(info);
+        this.info.put("load default soundbank", "false");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return The format of the rendered audio
+     */
+    AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * @return The settings of the synthesizers
+     */
+    Map<String, Object> getInfo() {
+        return info;
+    }
+
+    /**
+     * Adds programs, which are loaded when a synthesizer is opened, e.g. the instruments of an ensemble.
+     * Synthesizers, which are already opened, load them when they are first used.
+     *
+     * @param programs The MIDI programs (0 to 127) or {@link SoundbankSubset#DRUMS}
+     */
+    void preload(int... programs) {
+        synchronized (this) {
+            int[] current = this.programs;
+            int[] merged = Arrays.copyOf(current, current.length + programs.length);
+            System.arraycopy(programs, 0, merged, current.length, programs.length);
+            this.programs = Arrays.stream(merged).distinct().toArray();
+        }
+    }
+
+    /**
+     * Opens synthesizers in advance in the background, so the first renderings do not have to wait for them.
+     * If a synthesizer could not be opened, the next rendering tries again and reports the error.
+     *
+     * @param count The amount of synthesizers which should be ready
+     */
+    void prewarm(final int count) {
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            while (size.get() < Math.min(count, maxSize)) {
+                PooledSynthesizer synthesizer = create();
+                if (synthesizer == null)
+                    break;
+                idle.offer(synthesizer);
+            }
+            return null;
+        });
+        prewarming = task;
+        Thread thread = new Thread(task, "synthesizer-prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Takes a synthesizer from the pool.
+     * If none is idle, a new one is opened or, if the pool is full, this waits until one is released.
+     *
+     * @return A reset synthesizer
+     * @throws MidiUnavailableException If a synthesizer could not be opened
+     * @throws InterruptedException     If the thread was interrupted while waiting
+     */
+    PooledSynthesizer acquire() throws MidiUnavailableException, InterruptedException {
+        long start = System.currentTimeMillis();
+        PooledSynthesizer synthesizer = idle.poll();
+        if (synthesizer == null)
+            synthesizer = awaitPrewarm();
+        if (synthesizer == null)
+            synthesizer = create();
+        if (synthesizer == null)
+            synthesizer = idle.take();
+        acquisitions.incrementAndGet();
+        waitTime.addAndGet(System.currentTimeMillis() - start);
+        return synthesizer;
+    }
+
+    /**
+     * Waits until the synthesizers opened in advance are ready
+     *
+     * @return An idle synthesizer or null if none is idle after opening them
+     * @throws InterruptedException If the thread was interrupted while waiting
+     */
+    private PooledSynthesizer awaitPrewarm() throws InterruptedException {
+        Future<Void> future = prewarming;
+        if (future == null)
+            return null;
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            return null; // Opened again by the caller, which gets the error
+        }
+        return idle.poll();
+    }
+
+    /**
+     * Resets the synthesizer and gives it back to the pool.
+     * If it could not be reset, it is closed and replaced later.
+     *
+     * @param synthesizer The synthesizer taken from this pool
+     */
+    void release(PooledSynthesizer synthesizer) {
+        try {
+            synthesizer.reset();
+            idle.offer(synthesizer);
+        } catch (IOException e) {
+            synthesizer.synth.close();
+            size.decrementAndGet();
+            discarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return The amount of created synthesizers, the idle and the discarded ones, the average time waited for a
+     * synthesizer and the last opening
+     */
+    String getMetrics() {
+        long count = acquisitions.get();
+        String metrics = "Synthesizer pool: " + size.get() + "/" + maxSize + " opened, " + idle.size() + " idle, "
+                + discarded.get() + " discarded, " + (count == 0 ? 0 : waitTime.get() / count) + "ms average wait";
+        String opened = lastOpened;
+        return opened == null ? metrics : metrics + "\n" + opened;
+    }
+
+    /**
+     * Opens a new synthesizer, if the pool is not full
+     *
+     * @return The synthesizer or null if the pool is full
+     * @throws MidiUnavailableException If the synthesizer could not be opened
+     */
+    private PooledSynthesizer create() throws MidiUnavailableException {
+        int current;
+        do {
+            current = size.get();
+            if (current >= maxSize)
+                return null;
+        } while (!size.compareAndSet(current, current + 1));
+        try {
+            AudioSynthesizer synth;
+            try {
+                synth = (AudioSynthesizer) MidiSystem.getSynthesizer();
+            } catch (ClassCastException e) {
+                throw new Error("Please make sure Gervill is included in the classpath: "
+                        + "it should be de default synth. These are the currently installed synths: "
+                        + Arrays.toString(MidiSystem.getMidiDeviceInfo()), e);
+            }
+            Runtime runtime = Runtime.getRuntime();
+            long start = System.currentTimeMillis(), memory = runtime.totalMemory() - runtime.freeMemory();
+            PooledSynthesizer pooled = new PooledSynthesizer(synth, synth.openStream(format, info));
+            pooled.load(programs);
+            try {
+                pooled.reset(); // starts like a reused synthesizer
+            } catch (IOException e) {
+                MidiUnavailableException unavailable = new MidiUnavailableException("Could not read the synthesizer");
+                unavailable.initCause(e);
+                throw unavailable;
+            }
+            long end = System.currentTimeMillis(), used = runtime.totalMemory() - runtime.freeMemory();
+            lastOpened = String.format(Locale.ROOT, "Opened synthesizer with %d instruments in %dms, heap: %dMB -> %dMB",
+                    synth.getLoadedInstruments().length, end - start, memory >> 20, used >> 20);
+            return pooled;
+        } catch (MidiUnavailableException | RuntimeException | Error e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * An opened synthesizer with its audio stream.
+     * The stream is continued between the renderings, so the events of a rendering
+     * have to be sent relative to {@link PooledSynthesizer#getMicrosecondPosition()}.
+     */
+    static class PooledSynthesizer {
+        /**
+         * The synthesizer
+         */
+        private final AudioSynthesizer synth;
+        /**
+         * The rendered audio of the synthesizer
+         */
+        final AudioInputStream stream;
+        /**
+         * The amount of frames, at which every rendering starts. The synthesizer renders blocks of frames and places
+         * the events by their time in microseconds, so a rendering gets the same audio as on a new synthesizer,
+         * if it starts at the start of a block and at a whole microsecond.
+         */
+        private final int alignFrames;
+        /**
+         * The amount of silent tenths of a second read after a reset
+         */
+        private final int silentTenths;
+        /**
+         * The receiver for the events of the music
+         */
+        final Receiver receiver;
+        /**
+         * True for every loaded program, the last entry for the drum kit
+         */
+        private final boolean[] loaded = new boolean[129];
+        /**
+         * The current program of every channel
+         */
+        private final int[] channelPrograms = new int[16];
+        /**
+         * The amount of frames read from the stream.
+         * The synthesizer renders ahead, so its own position is later than the audio read so far.
+         */
+        private long framesRead;
+
+        private PooledSynthesizer(AudioSynthesizer synth, final AudioInputStream source) throws MidiUnavailableException {
+            this.synth = synth;
+            final Receiver target = synth.getReceiver();
+            this.alignFrames = getAlignFrames(synth, source.getFormat());
+            this.silentTenths = isReverbOn(synth) ? REVERB_SILENCE_SECONDS * 10 : 1;
+            this.receiver = new Receiver() {
+                @Override
+                public void send(MidiMessage message, long timeStamp) {
+                    if (message instanceof ShortMessage)
+                        loadFor((ShortMessage) message);
+                    target.send(message, timeStamp);
+                }
+
+                @Override
+                public void close() {
+                    target.close();
+                }
+            };
+            final int frameSize = source.getFormat().getFrameSize();
+            this.stream = new AudioInputStream(new InputStream() {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = source.read(b, off, len);
+                    if (read > 0)
+                        framesRead += read / frameSize;
+                    return read;
+                }
+
+                @Override
+                public int read() throws IOException {
+                    throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+                }
+            }, source.getFormat(), AudioSystem.NOT_SPECIFIED);
+        }
+
+        /**
+         * @param synth  The opened synthesizer
+         * @param format The format of the rendered audio
+         * @return The least amount of frames, which is a multiple of the block size and a whole microsecond
+         */
+        private static int getAlignFrames(AudioSynthesizer synth, AudioFormat format) {
+            int blockFrames = 1;
+            for (AudioSynthesizerPropertyInfo property : synth.getPropertyInfo(null))
+                if (property.name.equals("control rate") && property.value instanceof Float)
+                    blockFrames = Math.max(1, (int) (format.getFrameRate() / (Float) property.value));
+            int rate = Math.round(format.getFrameRate());
+            int microsecondFrames = rate / gcd(rate, 1000000);
+            return blockFrames / gcd(blockFrames, microsecondFrames) * microsecondFrames;
+        }
+
+        private static int gcd(int a, int b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+
+        /**
+         * @param synth The opened synthesizer
+         * @return True if the synthesizer adds reverb
+         */
+        private static boolean isReverbOn(AudioSynthesizer synth) {
+            for (AudioSynthesizerPropertyInfo property : synth.getPropertyInfo(null))
+                if (property.name.equals("reverb"))
+                    return Boolean.TRUE.equals(property.value);
+            return false;
+        }
+
+        /**
+         * Loads the instrument needed for a message, before it is sent to the synthesizer
+         *
+         * @param message A message sent to the synthesizer
+         */
+        private void loadFor(ShortMessage message) {
+            int command = message.getCommand(), channel = message.getChannel();
+            if (command == ShortMessage.PROGRAM_CHANGE)
+                channelPrograms[channel] = message.getData1();
+            else if (command != ShortMessage.NOTE_ON)
+                return;
+            int program = channel == 9 ? SoundbankSubset.DRUMS : channelPrograms[channel];
+            if (!loaded[index(program)])
+                load(program);
+        }
+
+        /**
+         * Loads the instruments of the programs from the default soundbank, if they are not loaded yet
+         *
+         * @param programs The MIDI programs (0 to 127) or {@link SoundbankSubset#DRUMS}
+         */
+        private void load(int... programs) {
+            int[] missing = Arrays.stream(programs).filter(p -> !loaded[index(p)]).toArray();
+            if (missing.length == 0)
+                return;
+            for (Instrument instrument : SoundbankSubset.Extract(synth, missing))
+                synth.loadInstrument(instrument);
+            for (int program : missing)
+                loaded[index(program)] = true;
+        }
+
+        /**
+         * @param program A MIDI program or {@link SoundbankSubset#DRUMS}
+         * @return The index of the program in {@link PooledSynthesizer#loaded}
+         */
+        private static int index(int program) {
+            return program == SoundbankSubset.DRUMS ? 128 : program;
+        }
+
+        /**
+         * @return The time of the audio read so far in microseconds
+         */
+        long getMicrosecondPosition() {
+            return (long) (framesRead * 1000000.0 / stream.getFormat().getFrameRate());
+        }
+
+        /**
+         * Stops all sounds, resets the controllers, the pitch bend, the programs and the reverb and chorus sends
+         * of all channels and reads the audio until the effects are silent.
+         * The stream ends at the start of a block, so the next rendering gets the same audio as on a new synthesizer.
+         *
+         * @throws IOException If the audio could not be read
+         */
+        private void reset() throws IOException {
+            reset(silentTenths);
+        }
+
+        /**
+         * Stops all sounds and resets all channels like {@link PooledSynthesizer#reset()}, but only reads the audio
+         * until a tenth of a second is silent, e.g. between short renderings like single notes.
+         * The effects may keep a remainder, which is below the smallest sample.
+         *
+         * @throws IOException If the audio could not be read
+         */
+        void clear() throws IOException {
+            reset(1);
+        }
+
+        /**
+         * @param silentTenths The amount of silent tenths of a second read after the reset
+         * @throws IOException If the audio could not be read
+         */
+        private void reset(int silentTenths) throws IOException {
+            for (MidiChannel channel : synth.getChannels()) {
+                channel.allSoundOff();
+                channel.resetAllControllers();
+                for (int[] controller : CONTROLLER_DEFAULTS)
+                    channel.controlChange(controller[0], controller[1]);
+                channel.setPitchBend(8192);
+                channel.setMono(false);
+                channel.programChange(0, 0);
+            }
+            Arrays.fill(channelPrograms, 0);
+            AudioFormat format = stream.getFormat();
+            byte[] buffer = new byte[(int) (format.getFrameRate() / 10) * format.getFrameSize()];
+            for (int i = 0, silent = 0; i < MAX_DRAIN_SECONDS * 10 && silent < silentTenths; i++) {
+                int read = stream.read(buffer);
+                if (read < 0)
+                    return;
+                silent = isSilent(buffer, read) ? silent + 1 : 0;
+            }
+            long frames = (alignFrames - framesRead % alignFrames) % alignFrames;
+            while (frames > 0) {
+                int read = stream.read(buffer, 0, (int) Math.min(buffer.length, frames * format.getFrameSize()));
+                if (read < 0)
+                    return;
+                frames -= read / format.getFrameSize();
+            }
+        }
+
+        /**
+         * @param buffer The audio
+         * @param length The amount of bytes to check
+         * @return True if all samples are zero
+         */
+        private static boolean isSilent(byte[] buffer, int length) {
+            for (int i = 0; i < length; i++)
+                if (buffer[i] != 0)
+                    return false;
+            return true;
+        }
+    }
+}
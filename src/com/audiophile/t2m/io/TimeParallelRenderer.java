@@ -0,0 +1,367 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders a music split into time segments on several synthesizers at once.
+ * <p>
+ * Every segment renders the notes starting in it, with the controller and program state of all channels at its
+ * beginning. It continues until all its notes are released plus a tail for the release and reverb, so the audio of a
+ * segment overlaps the following ones. As every note is rendered by exactly one segment, the overlapping audio is
+ * added up sample by sample.
+ * </p>
+ */
+class TimeParallelRenderer implements RenderEngine {
+    /**
+     * The minimum and maximum length of a segment in seconds
+     */
+    private static final int MIN_SEGMENT_SECONDS = 5, MAX_SEGMENT_SECONDS = 30;
+    /**
+     * The time in microseconds a segment is rendered after its last note is released
+     */
+    private static final long TAIL = 2000000;
+    /**
+     * Index of the program, channel pressure and pitch bend in the state of a channel, after the controllers
+     */
+    static final int PROGRAM = 120, PRESSURE = 121, PITCH_BEND = 122;
+    /**
+     * The synthesizers to render the segments
+     */
+    private final SynthesizerPool pool;
+    /**
+     * The amount of segments rendered at once
+     */
+    private final int threads;
+
+    /**
+     * @param pool    The synthesizers to render the segments
+     * @param threads The amount of segments rendered at once
+     */
+    TimeParallelRenderer(SynthesizerPool pool, int threads) {
+        this.pool = pool;
+        this.threads = threads;
+    }
+
+    /**
+     * Renders a Sequence split into segments.
+     * All segments are collected first, so the music can be split at any time.
+     *
+     * @param segments The segments of the sequence in time order with ticks relative to the beginning of the music
+     * @param sink     Receives the audio while it is rendered
+     * @return The time it took and the metrics of the synthesizer pool
+     * @throws IOException Could not render or write the audio
+     */
+    @Override
+    public String render(final Iterator<Sequence> segments, final AudioSink sink) throws IOException {
+        long start = System.currentTimeMillis();
+        EventTimeline timeline = EventTimeline.of(segments);
+        AudioFormat format = pool.getFormat();
+        long totalTime = timeline.endTime + 1000000; // Add extra second for smooth ending
+        long totalFrames = (long) (format.getFrameRate() * (totalTime / 1000000.0));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            StitchStream stream = new StitchStream(createSegments(timeline, totalTime), executor, format, totalFrames);
+            sink.write(new AudioInputStream(stream, format, totalFrames));
+        } finally {
+            executor.shutdownNow();
+        }
+        long end = System.currentTimeMillis();
+        return "Rendering on " + threads + " threads took: " + (end - start) + "ms\n" + pool.getMetrics();
+    }
+
+    /**
+     * Splits the timeline into segments of whole seconds, so every segment starts on an exact frame
+     *
+     * @param timeline  The events of the music
+     * @param totalTime The length of the audio in microseconds
+     * @return The segments in time order
+     */
+    private ArrayList<Segment> createSegments(EventTimeline timeline, long totalTime) {
+        long seconds = totalTime / 1000000 / threads + 1;
+        long length = Math.max(MIN_SEGMENT_SECONDS, Math.min(MAX_SEGMENT_SECONDS, seconds)) * 1000000;
+        long[] releases = timeline.releaseTimes();
+        int[][] state = new int[16][PITCH_BEND + 1];
+        for (int[] channel : state)
+            Arrays.fill(channel, -1);
+
+        ArrayList<Segment> result = new ArrayList<>();
+        int index = 0;
+        for (long startTime = 0; startTime < totalTime; startTime += length) {
+            long endTime = Math.min(startTime + length, totalTime);
+            // Pre-roll the state of the channels before the segment
+            for (; index < timeline.size() && timeline.times[index] < startTime; index++)
+                updateState(state, timeline.messages[index]);
+            long renderEnd = endTime;
+            for (int i = index; i < timeline.size() && timeline.times[i] < endTime; i++)
+                renderEnd = Math.max(renderEnd, releases[i]);
+            renderEnd = Math.min(totalTime, renderEnd + TAIL);
+            result.add(new Segment(timeline, index, startTime, endTime, renderEnd, createSnapshot(state)));
+        }
+        return result;
+    }
+
+    /**
+     * Applies a message to the state of the channels
+     *
+     * @param state   The controllers, program, pressure and pitch bend of every channel
+     * @param message The message to apply
+     */
+    static void updateState(int[][] state, MidiMessage message) {
+        if (!(message instanceof ShortMessage))
+            return;
+        ShortMessage m = (ShortMessage) message;
+        if (m.getChannel() >= state.length)
+            return;
+        switch (m.getCommand()) {
+            case ShortMessage.CONTROL_CHANGE:
+                if (m.getData1() < PROGRAM) // Channel mode messages are not part of the state
+                    state[m.getChannel()][m.getData1()] = m.getData2();
+                break;
+            case ShortMessage.PROGRAM_CHANGE:
+                state[m.getChannel()][PROGRAM] = m.getData1();
+                break;
+            case ShortMessage.CHANNEL_PRESSURE:
+                state[m.getChannel()][PRESSURE] = m.getData1();
+                break;
+            case ShortMessage.PITCH_BEND:
+                state[m.getChannel()][PITCH_BEND] = m.getData1() | m.getData2() << 7;
+                break;
+        }
+    }
+
+    /**
+     * Creates the messages which restore the state of the channels
+     *
+     * @param state The controllers, program, pressure and pitch bend of every channel
+     * @return The messages setting all known values
+     */
+    private static ArrayList<MidiMessage> createSnapshot(int[][] state) {
+        ArrayList<MidiMessage> messages = new ArrayList<>();
+        for (int channel = 0; channel < state.length; channel++)
+            addSnapshot(channel, state[channel], messages);
+        return messages;
+    }
+
+    /**
+     * Creates the messages which restore the state of one channel
+     *
+     * @param channel  The channel
+     * @param s        The controllers, program, pressure and pitch bend of the channel
+     * @param messages The list to add the messages setting all known values to
+     */
+    static void addSnapshot(int channel, int[] s, List<MidiMessage> messages) {
+        try {
+            if (s[PROGRAM] >= 0)
+                messages.add(new ShortMessage(ShortMessage.PROGRAM_CHANGE, channel, s[PROGRAM], 0));
+            for (int controller = 0; controller < PROGRAM; controller++)
+                if (s[controller] >= 0)
+                    messages.add(new ShortMessage(ShortMessage.CONTROL_CHANGE, channel, controller, s[controller]));
+            if (s[PRESSURE] >= 0)
+                messages.add(new ShortMessage(ShortMessage.CHANNEL_PRESSURE, channel, s[PRESSURE], 0));
+            if (s[PITCH_BEND] >= 0)
+                messages.add(new ShortMessage(ShortMessage.PITCH_BEND, channel, s[PITCH_BEND] & 0x7F, s[PITCH_BEND] >> 7));
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A time segment of the music, which is rendered on its own synthesizer
+     */
+    private class Segment implements Callable<int[]> {
+        /**
+         * The events of the music
+         */
+        private final EventTimeline timeline;
+        /**
+         * The index of the first event in the segment
+         */
+        private final int firstEvent;
+        /**
+         * The start and end of the segment and the end of its audio in microseconds
+         */
+        private final long startTime, endTime, renderEnd;
+        /**
+         * The messages restoring the state of the channels at the start
+         */
+        private final ArrayList<MidiMessage> snapshot;
+
+        private Segment(EventTimeline timeline, int firstEvent, long startTime, long endTime, long renderEnd,
+                        ArrayList<MidiMessage> snapshot) {
+            this.timeline = timeline;
+            this.firstEvent = firstEvent;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.renderEnd = renderEnd;
+            this.snapshot = snapshot;
+        }
+
+        /**
+         * @param format The format of the audio
+         * @return The first frame of the segment
+         */
+        private long startFrame(AudioFormat format) {
+            return (long) (format.getFrameRate() * (startTime / 1000000.0));
+        }
+
+        /**
+         * Renders all notes starting in the segment and the events changing them
+         *
+         * @return The samples of the audio from the start of the segment
+         * @throws Exception If the audio could not be rendered
+         */
+        @Override
+        public int[] call() throws Exception {
+            SynthesizerPool.PooledSynthesizer synth = pool.acquire();
+            try {
+                long offset = synth.getMicrosecondPosition();
+                for (MidiMessage message : snapshot)
+                    synth.receiver.send(message, offset);
+                for (int i = firstEvent; i < timeline.size() && timeline.times[i] < renderEnd; i++)
+                    if (timeline.times[i] < endTime || !timeline.isNoteOn(i))
+                        synth.receiver.send(timeline.messages[i], offset + timeline.times[i] - startTime);
+
+                AudioFormat format = synth.stream.getFormat();
+                long frames = (long) (format.getFrameRate() * (renderEnd / 1000000.0)) - startFrame(format);
+                int channels = format.getChannels(), frameSize = format.getFrameSize();
+                int[] samples = new int[(int) frames * channels];
+                byte[] buffer = new byte[4096 * frameSize];
+                int position = 0;
+                while (position < samples.length) {
+                    int read = synth.stream.read(buffer, 0, Math.min(buffer.length, (samples.length - position) / channels * frameSize));
+                    if (read < 0)
+                        break;
+                    PcmUtils.ToSamples(buffer, read, format, samples, position);
+                    position += read / frameSize * channels;
+                }
+                return samples;
+            } finally {
+                pool.release(synth);
+            }
+        }
+    }
+
+    /**
+     * Adds up the audio of the segments in time order.
+     * The audio up to the start of the next segment is complete once all earlier segments are rendered.
+     * Only a limited amount of segments is rendered ahead, so the memory usage does not depend on the length of the
+     * music.
+     */
+    private class StitchStream extends InputStream {
+        /**
+         * All segments in time order
+         */
+        private final ArrayList<Segment> segments;
+        /**
+         * The threads rendering the segments
+         */
+        private final ExecutorService executor;
+        /**
+         * The format of the audio
+         */
+        private final AudioFormat format;
+        /**
+         * The length of the audio in frames
+         */
+        private final long totalFrames;
+        /**
+         * The segments which are rendering
+         */
+        private final ArrayDeque<Future<int[]>> rendering = new ArrayDeque<>();
+        /**
+         * The rendered segments, which still overlap the following audio, and their first frame
+         */
+        private final ArrayList<int[]> rendered = new ArrayList<>();
+        private final ArrayList<Long> renderedStarts = new ArrayList<>();
+        /**
+         * The index of the next segment to submit and to stitch
+         */
+        private int nextSubmit, nextStitch;
+        /**
+         * The stitched audio up to the start of the next segment and the read position in it
+         */
+        private byte[] region = new byte[0];
+        private int regionPosition;
+
+        StitchStream(ArrayList<Segment> segments, ExecutorService executor, AudioFormat format, long totalFrames) {
+            this.segments = segments;
+            this.executor = executor;
+            this.format = format;
+            this.totalFrames = totalFrames;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (regionPosition >= region.length) {
+                if (nextStitch >= segments.size())
+                    return -1;
+                stitchNext();
+            }
+            int read = Math.min(len, region.length - regionPosition);
+            System.arraycopy(region, regionPosition, b, off, read);
+            regionPosition += read;
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+        }
+
+        /**
+         * Waits for the next segment and adds up the audio of all segments up to the start of the following one
+         *
+         * @throws IOException If the segment could not be rendered
+         */
+        private void stitchNext() throws IOException {
+            while (nextSubmit < segments.size() && nextSubmit < nextStitch + 2 * threads)
+                rendering.add(executor.submit(segments.get(nextSubmit++)));
+            try {
+                rendered.add(rendering.poll().get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rendering", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not render segment", e.getCause());
+            }
+            renderedStarts.add(segments.get(nextStitch).startFrame(format));
+
+            long start = segments.get(nextStitch).startFrame(format);
+            nextStitch++;
+            long end = nextStitch < segments.size() ? segments.get(nextStitch).startFrame(format) : totalFrames;
+            int channels = format.getChannels();
+            int[] mix = new int[(int) (end - start) * channels];
+            for (int i = rendered.size() - 1; i >= 0; i--) {
+                int[] samples = rendered.get(i);
+                int from = (int) (start - renderedStarts.get(i)) * channels;
+                for (int n = 0; n < mix.length && from + n < samples.length; n++)
+                    mix[n] += samples[from + n];
+                if (samples.length <= (end - renderedStarts.get(i)) * channels) { // No overlap with later audio
+                    rendered.remove(i);
+                    renderedStarts.remove(i);
+                }
+            }
+            region = new byte[(int) (end - start) * format.getFrameSize()];
+            regionPosition = 0;
+            PcmUtils.ToBytes(mix, format, region);
+        }
+    }
+}
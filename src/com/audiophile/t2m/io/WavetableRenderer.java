@@ -0,0 +1,686 @@
+package com.audiophile.t2m.io;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A small synthesizer, which plays every General MIDI instrument family with one band limited wavetable and an
+ * envelope, and the drums with tuned noise and sine sweeps.
+ * <p>
+ * It needs no soundbank and keeps all voices in primitive arrays. Every MIDI channel is synthesized on its own
+ * thread block by block and the channels are mixed afterwards. The sound is much simpler than the one of Gervill,
+ * but rendering is fast and uses little memory.
+ * </p>
+ */
+class WavetableRenderer implements RenderEngine {
+    /**
+     * The amount of samples of a wavetable, which is a power of two
+     */
+    private static final int TABLE_SIZE = 2048;
+    /**
+     * The amount of octaves with their own wavetable, so high notes have fewer harmonics and do not alias
+     */
+    private static final int OCTAVES = 11;
+    /**
+     * The frequency of the lowest MIDI key
+     */
+    private static final double LOWEST_FREQUENCY = 440 * Math.pow(2, -69 / 12.0);
+    /**
+     * The maximum amount of notes played at once on a channel
+     */
+    private static final int MAX_VOICES = 32;
+    /**
+     * The amount of MIDI channels and the drum channel
+     */
+    private static final int CHANNELS = 16, DRUMS = 9;
+    /**
+     * The length of the blocks rendered at once in seconds
+     */
+    private static final float BLOCK_SECONDS = 1;
+    /**
+     * The gain of the mixdown, so several loud notes do not clip
+     */
+    private static final float MASTER_GAIN = 0.25f;
+    /**
+     * The range of the pitch bend in semitones
+     */
+    private static final double PITCH_BEND_RANGE = 2;
+    /**
+     * A voice is stopped when its envelope falls below this level
+     */
+    private static final float SILENCE = 1e-4f;
+    /**
+     * The sound of the 16 instrument families of General MIDI, each with eight programs
+     */
+    private static final Instrument[] FAMILIES = {
+            new Instrument(0.002f, 1.5f, 0, 0.3f, 1, 0.5f, 0.3f, 0.2f, 0.12f, 0.08f, 0.05f, 0.03f), // Piano
+            new Instrument(0.001f, 0.8f, 0, 0.4f, 1, 0, 0.3f, 0, 0.1f, 0, 0.05f), // Chromatic percussion
+            new Instrument(0.01f, 0.1f, 1, 0.08f, 1, 0.8f, 0.6f, 0, 0.4f, 0, 0.3f, 0.2f), // Organ
+            new Instrument(0.002f, 1, 0, 0.2f, 1, 0.6f, 0.4f, 0.3f, 0.2f, 0.15f, 0.1f), // Guitar
+            new Instrument(0.005f, 0.8f, 0.3f, 0.1f, 1, 0.5f, 0.2f, 0.1f), // Bass
+            new Instrument(0.08f, 0.3f, 0.85f, 0.25f, saw(16)), // Strings
+            new Instrument(0.12f, 0.3f, 0.85f, 0.4f, saw(12)), // Ensemble
+            new Instrument(0.03f, 0.2f, 0.8f, 0.15f, 1, 0.8f, 0.7f, 0.6f, 0.5f, 0.4f, 0.3f, 0.25f, 0.2f), // Brass
+            new Instrument(0.03f, 0.2f, 0.8f, 0.12f, 1, 0.1f, 0.5f, 0.1f, 0.3f, 0.1f, 0.2f), // Reed
+            new Instrument(0.05f, 0.2f, 0.9f, 0.15f, 1, 0.15f, 0.05f), // Pipe
+            new Instrument(0.01f, 0.2f, 0.8f, 0.1f, 1, 0, 1 / 3f, 0, 1 / 5f, 0, 1 / 7f, 0, 1 / 9f), // Synth lead
+            new Instrument(0.3f, 0.5f, 0.8f, 0.8f, 1, 0.5f, 0.33f, 0.25f), // Synth pad
+            new Instrument(0.2f, 0.5f, 0.7f, 1, 1, 0.3f, 0.6f, 0.2f), // Synth effects
+            new Instrument(0.002f, 0.7f, 0, 0.2f, 1, 0.7f, 0.3f, 0.2f, 0.1f), // Ethnic
+            new Instrument(0.001f, 0.3f, 0, 0.2f, 1, 0.2f, 0.1f), // Percussive
+            new Instrument(0.01f, 0.3f, 0.5f, 0.3f, 1, 0, 0.5f), // Sound effects
+    };
+    /**
+     * The wavetables of every sample rate, which are created once and only read afterwards
+     */
+    private static final Map<Float, float[][][]> tablesByRate = new HashMap<>();
+    /**
+     * The format of the rendered audio
+     */
+    private final AudioFormat format;
+    /**
+     * The amount of channels rendered at once
+     */
+    private final int threads;
+    /**
+     * The wavetables of every instrument family and octave for the sample rate of the format
+     */
+    private float[][][] tables;
+
+    /**
+     * @param format  The format of the rendered audio
+     * @param threads The amount of channels rendered at once
+     */
+    WavetableRenderer(AudioFormat format, int threads) {
+        this.format = format;
+        this.threads = threads;
+    }
+
+    /**
+     * @param harmonics The amount of harmonics
+     * @return The amplitudes of the harmonics of a sawtooth wave
+     */
+    private static float[] saw(int harmonics) {
+        float[] amplitudes = new float[harmonics];
+        for (int i = 0; i < harmonics; i++)
+            amplitudes[i] = 1f / (i + 1);
+        return amplitudes;
+    }
+
+    /**
+     * Renders a Sequence split into segments.
+     * All segments are collected first, so the events can be split by channel.
+     *
+     * @param segments The segments of the sequence in time order with ticks relative to the beginning of the music
+     * @param sink     Receives the audio while it is rendered
+     * @return The time it took
+     * @throws IOException Could not render or write the audio
+     */
+    @Override
+    public String render(final Iterator<Sequence> segments, final AudioSink sink) throws IOException {
+        long start = System.currentTimeMillis();
+        EventTimeline timeline = EventTimeline.of(segments);
+        long totalFrames = (long) (format.getFrameRate() * (timeline.endTime / 1000000.0 + 1)); // Add extra second for smooth ending
+        tables = getTables(format.getSampleRate());
+
+        // Split the events by channel
+        int[] counts = new int[CHANNELS];
+        for (MidiMessage message : timeline.messages)
+            if (message instanceof ShortMessage && message.getStatus() < 0xF0)
+                counts[((ShortMessage) message).getChannel()]++;
+        ArrayList<ChannelSynth> synths = new ArrayList<>();
+        for (int channel = 0; channel < CHANNELS; channel++)
+            if (counts[channel] > 0)
+                synths.add(new ChannelSynth(channel, timeline, counts[channel]));
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            MixStream stream = new MixStream(synths, executor, totalFrames);
+            sink.write(new AudioInputStream(stream, format, totalFrames));
+        } finally {
+            executor.shutdownNow();
+        }
+        long end = System.currentTimeMillis();
+        return "Rendering " + synths.size() + " channels with the wavetable synthesizer on " + threads
+                + " threads took: " + (end - start) + "ms";
+    }
+
+    /**
+     * @param sampleRate The sample rate of the audio
+     * @return The wavetables of every instrument family and octave, which may be cached from an earlier rendering
+     */
+    private static synchronized float[][][] getTables(float sampleRate) {
+        return tablesByRate.computeIfAbsent(sampleRate, WavetableRenderer::createTables);
+    }
+
+    /**
+     * Creates the wavetables of all instrument families.
+     * The table of an octave only contains the harmonics below the Nyquist frequency for the highest note of the octave.
+     *
+     * @param sampleRate The sample rate of the audio
+     * @return The wavetables of every instrument family and octave
+     */
+    private static float[][][] createTables(float sampleRate) {
+        float[] sine = new float[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++)
+            sine[i] = (float) Math.sin(2 * Math.PI * i / TABLE_SIZE);
+        float[][][] tables = new float[FAMILIES.length][OCTAVES][];
+        for (int family = 0; family < FAMILIES.length; family++) {
+            float[] harmonics = FAMILIES[family].harmonics;
+            for (int octave = 0; octave < OCTAVES; octave++) {
+                double highest = LOWEST_FREQUENCY * Math.pow(2, octave + 1);
+                int count = (int) Math.max(1, Math.min(harmonics.length, sampleRate / 2 / highest));
+                float[] table = new float[TABLE_SIZE + 1]; // The extra sample allows interpolating without wrapping
+                float peak = 0;
+                for (int i = 0; i < TABLE_SIZE; i++) {
+                    float sample = 0;
+                    for (int h = 0; h < count; h++)
+                        sample += harmonics[h] * sine[(i * (h + 1)) & (TABLE_SIZE - 1)];
+                    table[i] = sample;
+                    peak = Math.max(peak, Math.abs(sample));
+                }
+                for (int i = 0; i < TABLE_SIZE; i++)
+                    table[i] /= peak;
+                table[TABLE_SIZE] = table[0];
+                tables[family][octave] = table;
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * The sound of an instrument family
+     */
+    private static class Instrument {
+        /**
+         * The attack time in seconds, the decay and release time constants in seconds and the sustain level
+         */
+        final float attack, decay, sustain, release;
+        /**
+         * The amplitudes of the harmonics
+         */
+        final float[] harmonics;
+
+        Instrument(float attack, float decay, float sustain, float release, float... harmonics) {
+            this.attack = attack;
+            this.decay = decay;
+            this.sustain = sustain;
+            this.release = release;
+            this.harmonics = harmonics;
+        }
+    }
+
+    /**
+     * Synthesizes the events of one MIDI channel block by block
+     */
+    private class ChannelSynth implements Callable<float[]> {
+        /**
+         * The stages of a voice
+         */
+        private static final int OFF = 0, ATTACK = 1, DECAY = 2, HELD = 3, RELEASE = 4, DRUM = 5;
+        private final int channel;
+        /**
+         * The messages of the channel and their frame in the audio
+         */
+        private final ShortMessage[] messages;
+        private final long[] frames;
+        /**
+         * The index of the next message
+         */
+        private int next;
+        /**
+         * The first frame and the amount of frames of the next block
+         */
+        private long blockStart;
+        private int blockFrames;
+
+        /**
+         * The state of the channel
+         */
+        private int program, volume = 100, expression = 127, pan = 64;
+        private boolean sustainPedal;
+        private double pitchBend = 1;
+        private float leftGain, rightGain;
+
+        /**
+         * The voices: their key, stage, envelope, gain, wavetable position and increment per frame
+         */
+        private final int[] keys = new int[MAX_VOICES], stages = new int[MAX_VOICES];
+        private final float[] envelopes = new float[MAX_VOICES], gains = new float[MAX_VOICES];
+        private final double[] phases = new double[MAX_VOICES], increments = new double[MAX_VOICES];
+        private final float[][] voiceTables = new float[MAX_VOICES][];
+        /**
+         * The envelope of every voice: attack step per frame and decay, sustain and release per frame
+         */
+        private final float[] attackSteps = new float[MAX_VOICES], decayFactors = new float[MAX_VOICES],
+                sustainLevels = new float[MAX_VOICES], releaseFactors = new float[MAX_VOICES];
+        /**
+         * True if the note of a voice was stopped while the sustain pedal was pressed
+         */
+        private final boolean[] pending = new boolean[MAX_VOICES];
+        /**
+         * The drum voices: the start and end frequency of the tone, the factor per frame of the pitch sweep,
+         * the share of the noise, if the noise is high passed and the previous noise sample
+         */
+        private final float[] toneEnd = new float[MAX_VOICES], sweepFactors = new float[MAX_VOICES],
+                noiseMix = new float[MAX_VOICES], lastNoise = new float[MAX_VOICES];
+        private final boolean[] highPass = new boolean[MAX_VOICES];
+        private final double[] toneFrequencies = new double[MAX_VOICES];
+        /**
+         * The state of the noise generator
+         */
+        private int noise = 0x2545F491;
+
+        ChannelSynth(int channel, EventTimeline timeline, int count) {
+            this.channel = channel;
+            messages = new ShortMessage[count];
+            frames = new long[count];
+            for (int i = 0, n = 0; i < timeline.size(); i++) {
+                MidiMessage message = timeline.messages[i];
+                if (message instanceof ShortMessage && message.getStatus() < 0xF0
+                        && ((ShortMessage) message).getChannel() == channel) {
+                    messages[n] = (ShortMessage) message;
+                    frames[n++] = (long) (format.getFrameRate() * (timeline.times[i] / 1000000.0));
+                }
+            }
+            updatePan();
+        }
+
+        /**
+         * Synthesizes the next block
+         *
+         * @return The stereo samples of the block
+         */
+        @Override
+        public float[] call() {
+            float[] samples = new float[blockFrames * 2];
+            int position = 0;
+            long end = blockStart + blockFrames;
+            for (; next < messages.length && frames[next] < end; next++) {
+                int frame = (int) Math.max(position, frames[next] - blockStart);
+                synthesize(samples, position, frame);
+                position = frame;
+                apply(messages[next]);
+            }
+            synthesize(samples, position, blockFrames);
+            return samples;
+        }
+
+        /**
+         * Changes the state of the channel with a message
+         *
+         * @param message The message of the channel
+         */
+        private void apply(ShortMessage message) {
+            int command = message.getCommand();
+            // A note on with velocity 0 ends the note
+            boolean off = command == ShortMessage.NOTE_OFF
+                    || command == ShortMessage.NOTE_ON && message.getData2() == 0;
+            if (off) {
+                noteOff(message.getData1());
+                return;
+            }
+            switch (command) {
+                case ShortMessage.NOTE_ON:
+                    noteOn(message.getData1(), message.getData2());
+                    break;
+                case ShortMessage.PROGRAM_CHANGE:
+                    program = message.getData1();
+                    break;
+                case ShortMessage.PITCH_BEND:
+                    double bend = Math.pow(2, ((message.getData1() | message.getData2() << 7) - 8192) / 8192.0
+                            * PITCH_BEND_RANGE / 12);
+                    for (int v = 0; v < MAX_VOICES; v++)
+                        if (stages[v] != OFF && stages[v] != DRUM)
+                            increments[v] *= bend / pitchBend;
+                    pitchBend = bend;
+                    break;
+                case ShortMessage.CONTROL_CHANGE:
+                    control(message.getData1(), message.getData2());
+                    break;
+            }
+        }
+
+        /**
+         * Applies a controller change
+         *
+         * @param controller The controller
+         * @param value      The new value
+         */
+        private void control(int controller, int value) {
+            switch (controller) {
+                case 7:
+                    volume = value;
+                    break;
+                case 10:
+                    pan = value;
+                    break;
+                case 11:
+                    expression = value;
+                    break;
+                case 64:
+                    sustainPedal = value >= 64;
+                    if (!sustainPedal)
+                        for (int v = 0; v < MAX_VOICES; v++)
+                            if (pending[v])
+                                release(v);
+                    break;
+                case 120: // All sound off
+                    Arrays.fill(stages, OFF);
+                    Arrays.fill(pending, false);
+                    break;
+                case 121: // Reset all controllers
+                    expression = 127;
+                    pan = 64;
+                    sustainPedal = false;
+                    pitchBend = 1;
+                    break;
+                case 123: // All notes off
+                    for (int v = 0; v < MAX_VOICES; v++)
+                        if (stages[v] != OFF && stages[v] != DRUM)
+                            release(v);
+                    break;
+            }
+            updatePan();
+        }
+
+        /**
+         * Calculates the gain of the left and right side from the pan, volume and expression
+         */
+        private void updatePan() {
+            double angle = Math.max(0, pan - 1) / 126.0 * Math.PI / 2;
+            float gain = MASTER_GAIN * (volume / 127f) * (volume / 127f) * (expression / 127f);
+            leftGain = (float) (Math.cos(angle) * gain);
+            rightGain = (float) (Math.sin(angle) * gain);
+        }
+
+        /**
+         * Starts a note on a free voice or on the quietest voice if all voices are playing
+         *
+         * @param key      The key of the note
+         * @param velocity The velocity of the note
+         */
+        private void noteOn(int key, int velocity) {
+            int voice = 0;
+            for (int v = 0; v < MAX_VOICES; v++) {
+                if (stages[v] == OFF) {
+                    voice = v;
+                    break;
+                }
+                if (envelopes[v] < envelopes[voice])
+                    voice = v;
+            }
+            float rate = format.getSampleRate();
+            keys[voice] = key;
+            gains[voice] = (velocity / 127f) * (velocity / 127f);
+            pending[voice] = false;
+            phases[voice] = 0;
+            if (channel == DRUMS) {
+                startDrum(voice, key, rate);
+                return;
+            }
+            double frequency = LOWEST_FREQUENCY * Math.pow(2, key / 12.0);
+            int octave = (int) Math.max(0, Math.min(OCTAVES - 1, Math.floor(Math.log(frequency / LOWEST_FREQUENCY) / Math.log(2))));
+            Instrument instrument = FAMILIES[program / 8];
+            voiceTables[voice] = tables[program / 8][octave];
+            increments[voice] = frequency * pitchBend * TABLE_SIZE / rate;
+            stages[voice] = ATTACK;
+            envelopes[voice] = 0;
+            attackSteps[voice] = 1 / Math.max(1, instrument.attack * rate);
+            decayFactors[voice] = (float) Math.exp(-1 / (instrument.decay * rate));
+            sustainLevels[voice] = instrument.sustain;
+            releaseFactors[voice] = (float) Math.exp(-1 / (instrument.release * rate));
+        }
+
+        /**
+         * Starts a drum sound
+         *
+         * @param voice The voice
+         * @param key   The drum key
+         * @param rate  The sample rate
+         */
+        private void startDrum(int voice, int key, float rate) {
+            double start, end, sweep;
+            float noiseShare, length;
+            boolean highPassed = false;
+            switch (key) {
+                case 35:
+                case 36: // Bass drum
+                    start = 150; end = 50; sweep = 0.03; noiseShare = 0.05f; length = 0.25f;
+                    break;
+                case 38:
+                case 40: // Snare
+                    start = 220; end = 180; sweep = 0.02; noiseShare = 0.6f; length = 0.12f;
+                    break;
+                case 42:
+                case 44: // Closed hi-hat
+                    start = end = 0; sweep = 1; noiseShare = 1; length = 0.03f; highPassed = true;
+                    break;
+                case 46: // Open hi-hat
+                    start = end = 0; sweep = 1; noiseShare = 1; length = 0.25f; highPassed = true;
+                    break;
+                case 49:
+                case 51:
+                case 52:
+                case 55:
+                case 57:
+                case 59: // Cymbals
+                    start = end = 0; sweep = 1; noiseShare = 1; length = 0.8f; highPassed = true;
+                    break;
+                case 41:
+                case 43:
+                case 45:
+                case 47:
+                case 48:
+                case 50: // Toms
+                    start = 80 + (key - 41) * 20; end = start * 0.7; sweep = 0.1; noiseShare = 0.1f; length = 0.3f;
+                    break;
+                default:
+                    start = 400; end = 300; sweep = 0.05; noiseShare = 0.7f; length = 0.1f;
+            }
+            stages[voice] = DRUM;
+            envelopes[voice] = 1;
+            toneFrequencies[voice] = start;
+            toneEnd[voice] = (float) end;
+            sweepFactors[voice] = (float) Math.exp(-1 / (sweep * rate));
+            noiseMix[voice] = noiseShare;
+            highPass[voice] = highPassed;
+            lastNoise[voice] = 0;
+            voiceTables[voice] = tables[0][0]; // A sine wave, the lowest octave has only the fundamental
+            decayFactors[voice] = (float) Math.exp(-1 / (length * rate));
+        }
+
+        /**
+         * Stops all voices playing the key, unless the sustain pedal is pressed
+         *
+         * @param key The key of the note
+         */
+        private void noteOff(int key) {
+            for (int v = 0; v < MAX_VOICES; v++)
+                if (keys[v] == key && (stages[v] == ATTACK || stages[v] == DECAY || stages[v] == HELD)) {
+                    if (sustainPedal)
+                        pending[v] = true;
+                    else release(v);
+                }
+        }
+
+        /**
+         * @param voice The voice to release
+         */
+        private void release(int voice) {
+            stages[voice] = RELEASE;
+            pending[voice] = false;
+        }
+
+        /**
+         * Adds all playing voices to the samples
+         *
+         * @param samples The stereo samples of the block
+         * @param from    The first frame
+         * @param to      The frame after the last frame
+         */
+        private void synthesize(float[] samples, int from, int to) {
+            if (from >= to)
+                return;
+            float rate = format.getSampleRate();
+            for (int v = 0; v < MAX_VOICES; v++) {
+                int stage = stages[v];
+                if (stage == OFF)
+                    continue;
+                float[] table = voiceTables[v];
+                double phase = phases[v], increment = increments[v];
+                float envelope = envelopes[v], left = leftGain * gains[v], right = rightGain * gains[v];
+                if (stage == DRUM) {
+                    double frequency = toneFrequencies[v];
+                    float end = toneEnd[v], sweep = sweepFactors[v], mix = noiseMix[v], last = lastNoise[v];
+                    float decay = decayFactors[v];
+                    boolean high = highPass[v];
+                    for (int i = from; i < to && envelope > SILENCE; i++) {
+                        noise ^= noise << 13;
+                        noise ^= noise >>> 17;
+                        noise ^= noise << 5;
+                        float white = noise * (1f / Integer.MAX_VALUE);
+                        float noiseSample = high ? (white - last) * 0.5f : white;
+                        last = white;
+                        int index = (int) phase;
+                        float tone = table[index] + (float) (phase - index) * (table[index + 1] - table[index]);
+                        phase += frequency * TABLE_SIZE / rate;
+                        if (phase >= TABLE_SIZE)
+                            phase -= TABLE_SIZE;
+                        frequency = end + (frequency - end) * sweep;
+                        float sample = envelope * ((1 - mix) * tone + mix * noiseSample);
+                        samples[2 * i] += left * sample;
+                        samples[2 * i + 1] += right * sample;
+                        envelope *= decay;
+                    }
+                    toneFrequencies[v] = frequency;
+                    lastNoise[v] = last;
+                } else {
+                    float attack = attackSteps[v], decay = decayFactors[v], sustain = sustainLevels[v];
+                    float release = releaseFactors[v];
+                    for (int i = from; i < to; i++) {
+                        if (stage == ATTACK) {
+                            envelope += attack;
+                            if (envelope >= 1) {
+                                envelope = 1;
+                                stage = DECAY;
+                            }
+                        } else if (stage == RELEASE) {
+                            envelope *= release;
+                            if (envelope < SILENCE) {
+                                stage = OFF;
+                                break;
+                            }
+                        } else envelope = sustain + (envelope - sustain) * decay;
+                        int index = (int) phase;
+                        float sample = envelope * (table[index] + (float) (phase - index) * (table[index + 1] - table[index]));
+                        phase += increment;
+                        if (phase >= TABLE_SIZE)
+                            phase -= TABLE_SIZE;
+                        samples[2 * i] += left * sample;
+                        samples[2 * i + 1] += right * sample;
+                    }
+                    if (stage == DECAY && sustain == 0 && envelope < SILENCE)
+                        stage = OFF;
+                    stages[v] = stage;
+                }
+                if (stage == DRUM && envelope <= SILENCE)
+                    stages[v] = OFF;
+                phases[v] = phase;
+                envelopes[v] = envelope;
+            }
+        }
+    }
+
+    /**
+     * Synthesizes the next block of all channels at once and mixes them down
+     */
+    private class MixStream extends InputStream {
+        private final ArrayList<ChannelSynth> synths;
+        private final ExecutorService executor;
+        /**
+         * The length of the audio in frames and the amount of frames mixed so far
+         */
+        private final long totalFrames;
+        private long position;
+        /**
+         * The mixed audio of the current block and the read position in it
+         */
+        private byte[] block = new byte[0];
+        private int blockPosition;
+
+        MixStream(ArrayList<ChannelSynth> synths, ExecutorService executor, long totalFrames) {
+            this.synths = synths;
+            this.executor = executor;
+            this.totalFrames = totalFrames;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (blockPosition >= block.length) {
+                if (position >= totalFrames)
+                    return -1;
+                mixNext();
+            }
+            int read = Math.min(len, block.length - blockPosition);
+            System.arraycopy(block, blockPosition, b, off, read);
+            blockPosition += read;
+            return read;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException("Cannot read a single byte if the frame size is bigger than one byte");
+        }
+
+        /**
+         * Synthesizes the next block of all channels and adds them up
+         *
+         * @throws IOException If a channel could not be synthesized
+         */
+        private void mixNext() throws IOException {
+            int frames = (int) Math.min(totalFrames - position, (long) (format.getFrameRate() * BLOCK_SECONDS));
+            ArrayList<Future<float[]>> futures = new ArrayList<>(synths.size());
+            for (ChannelSynth synth : synths) {
+                synth.blockStart = position;
+                synth.blockFrames = frames;
+                futures.add(executor.submit(synth));
+            }
+            float[] mix = new float[frames * 2];
+            try {
+                for (Future<float[]> future : futures) {
+                    float[] samples = future.get();
+                    for (int n = 0; n < mix.length; n++)
+                        mix[n] += samples[n];
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while rendering", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not render channel", e.getCause());
+            }
+            position += frames;
+            if (format.getChannels() == 1)
+                for (int i = 0; i < frames; i++)
+                    mix[i] = (mix[2 * i] + mix[2 * i + 1]) / 2;
+            block = new byte[frames * format.getFrameSize()];
+            blockPosition = 0;
+            PcmUtils.ToBytes(format.getChannels() == 1 ? Arrays.copyOf(mix, frames) : mix, format, block);
+        }
+    }
+}
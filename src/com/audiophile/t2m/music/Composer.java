@@ -5,13 +5,33 @@ import com.audiophile.t2m.text.Sentence;
 import com.audiophile.t2m.text.TextAnalyser;
 import com.audiophile.t2m.text.Word;
 
-import javax.sound.midi.InvalidMidiDataException;
-import javax.sound.midi.Sequence;
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.audiophile.t2m.music.MidiUtils.SecsInTicks;
 
 /**
  * This class puts together all tracks and composes them to one sequence, which can be exported and played.
  */
 public class Composer {
+    /**
+     * The length of the music in seconds, if no other length is given
+     */
+    public static final int DEFAULT_DURATION = 15;
+    /**
+     * The length of a segment in seconds
+     *
+     * @see Composer#getSegments()
+     */
+    private static final int SEGMENT_DURATION = 10;
+    /**
+     * Type of the meta message marking the end of a track
+     */
+    private static final int END_OF_TRACK = 0x2F;
     /**
      * List of music generators (e.g. melody,rhythm)
      */
@@ -26,6 +46,17 @@ public class Composer {
      */
     private boolean noEffects;
 
+    /**
+     * The length of the music in seconds
+     */
+    private int duration;
+
+    /**
+     * Events of every track, which were generated for a segment but start after its end.
+     * They are added to the following segment.
+     */
+    private ArrayList<ArrayList<MidiEvent>> carryOver;
+
     /**
      * The title name of the generated music.
      * Holds various music about the music like ensemble,key and article names
@@ -34,10 +65,23 @@ public class Composer {
 
     /**
      * This class merges the different MIDI channels of rhythm, melody and sound effects
-     * it also calculates the meta data of the music (dynamic, tempo, key)
+     * it also calculates the meta data of the music (dynamic, tempo, key).
+     * The music is {@value #DEFAULT_DURATION} seconds long.
      */
     public Composer(Sentence[] sentences, boolean noEffects, Ensemble ensemble) {
+        this(sentences, noEffects, ensemble, DEFAULT_DURATION);
+    }
+
+    /**
+     * This class merges the different MIDI channels of rhythm, melody and sound effects
+     * it also calculates the meta data of the music (dynamic, tempo, key)
+     *
+     * @param duration The length of the music in seconds
+     * @see TextAnalyser#getReadingTime(Sentence[])
+     */
+    public Composer(Sentence[] sentences, boolean noEffects, Ensemble ensemble, int duration) {
         this.noEffects = noEffects;
+        this.duration = duration;
         float[] avgWordLen = TextAnalyser.getAvgWordLength(sentences);
         Word.Tendency avgTendency = TextAnalyser.getAvgWordTendency(sentences);
 
@@ -45,33 +89,145 @@ public class Composer {
         Dynamic dynamic = new Dynamic(avgTendency.ordinal() * 32, Utils.BlurData(avgWordLen, 10));
         this.tempo = new Tempo(avgWordLen);
 
-        MusicData musicData = new MusicData(tempo, dynamic, key);
-        System.out.println("Tempo: " + tempo.averageBpm + " BPM");
-        System.out.println("Resolution: " + tempo.resolution + " PPQ");
+        MusicData musicData = new MusicData(tempo, dynamic, key, duration);
         this.trackGenerators = new TrackGenerator[noEffects ? 2 : 3];
+        if (!noEffects) // Created first, so the effects are loaded while the other tracks are generated
+            this.trackGenerators[2] = new EffectTrack(sentences, tempo, duration);
         this.trackGenerators[0] = new MelodyTrack(musicData, sentences, "noteMapping.csv", ensemble);
         this.trackGenerators[1] = new RhythmTrack(musicData, avgWordLen);
-        if (!noEffects)
-            this.trackGenerators[2] = new EffectTrack(sentences, tempo);
         this.title = "in " + Harmony.quintCycle.get(key.baseNoteMidi % 12 + 60) + "-" + key.mode.toString() + ", played by a " + ensemble.toString() + "-Ensemble";
     }
 
+    /**
+     * @return The average tempo of the music in beats per minute
+     */
+    public int getTempo() {
+        return tempo.averageBpm;
+    }
+
+    /**
+     * @return The resolution of the music in ticks per quarter note
+     */
+    public int getResolution() {
+        return tempo.resolution;
+    }
+
+    /**
+     * @return The words of the text, which have an effect, as "word : effect" in text order.
+     * Empty if effects are disabled.
+     */
+    public List<String> getEffects() {
+        if (noEffects)
+            return Collections.emptyList();
+        return ((EffectTrack) trackGenerators[2]).getFoundEffects();
+    }
+
     /**
      * Merges the tracks of all music generators into one sequence
      *
      * @return A Sequence with all tracks
      */
     public Sequence getSequence() {
+        restart();
+        return createSegment(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Generates the music piece by piece. Every segment is a sequence with the events in the next
+     * {@value #SEGMENT_DURATION} seconds of the music. The ticks are relative to the beginning of the music, so the
+     * segments can be played or rendered one after the other without holding the whole music in memory.
+     * <p>
+     * The segments are generated when they are requested. Only one iteration over the segments can be active at once.
+     * </p>
+     *
+     * @return The segments in time order
+     */
+    public Iterator<Sequence> getSegments() {
+        restart();
+        final int segmentTicks = SecsInTicks(SEGMENT_DURATION, tempo.resolution);
+        final int lastTick = SecsInTicks(duration, tempo.resolution);
+        return new Iterator<Sequence>() {
+            private int start = 0;
+
+            @Override
+            public boolean hasNext() {
+                return start >= 0;
+            }
+
+            @Override
+            public Sequence next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                int end = start + segmentTicks;
+                if (end > lastTick) // The last segment takes all remaining notes
+                    end = Integer.MAX_VALUE;
+                Sequence segment = createSegment(start, end);
+                start = end == Integer.MAX_VALUE ? -1 : end;
+                return segment;
+            }
+        };
+    }
+
+    /**
+     * Resets all music generators to the beginning of the music
+     */
+    private void restart() {
+        carryOver = new ArrayList<>(trackGenerators.length);
+        for (TrackGenerator generator : trackGenerators) {
+            generator.restart();
+            carryOver.add(new ArrayList<>());
+        }
+    }
+
+    /**
+     * Creates a sequence with all events within the given range
+     *
+     * @param startTick The first tick of the segment
+     * @param endTick   The tick after the segment
+     * @return A Sequence with all tracks
+     */
+    private Sequence createSegment(int startTick, int endTick) {
         Sequence sequence = null;
         try {
             sequence = new Sequence(Sequence.PPQ, tempo.resolution);
-            trackGenerators[0].writeToTrack(sequence.createTrack(), 0);
-            trackGenerators[1].writeToTrack(sequence.createTrack(), 9); // Channel 10 are drums
+            Track[] tracks = new Track[trackGenerators.length];
+            for (int i = 0; i < tracks.length; i++) {
+                tracks[i] = sequence.createTrack();
+                for (MidiEvent event : carryOver.get(i))
+                    tracks[i].add(event);
+                carryOver.get(i).clear();
+            }
+            trackGenerators[0].writeToTrack(tracks[0], 0, startTick, endTick);
+            trackGenerators[1].writeToTrack(tracks[1], 9, startTick, endTick); // Channel 10 are drums
             if (!noEffects)
-                trackGenerators[2].writeToTrack(sequence.createTrack(), 2);
+                trackGenerators[2].writeToTrack(tracks[2], 2, startTick, endTick);
+            if (endTick != Integer.MAX_VALUE)
+                for (int i = 0; i < tracks.length; i++)
+                    moveEventsAfter(tracks[i], endTick, carryOver.get(i));
         } catch (InvalidMidiDataException e) {
             e.printStackTrace();
         }
         return sequence;
     }
+
+    /**
+     * Removes all events at or after the given tick from the track, except the end of track event.
+     *
+     * @param track   The track to remove the events from
+     * @param tick    The first tick to remove
+     * @param removed The list the removed events are added to in their original order
+     */
+    private static void moveEventsAfter(Track track, int tick, ArrayList<MidiEvent> removed) {
+        int first = track.size();
+        while (first > 0 && track.get(first - 1).getTick() >= tick)
+            first--;
+        for (int i = first; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            MidiMessage message = event.getMessage();
+            if (!(message instanceof MetaMessage && ((MetaMessage) message).getType() == END_OF_TRACK))
+                removed.add(event);
+        }
+        for (MidiEvent event : removed)
+            track.remove(event);
+    }
 }
@@ -18,6 +18,7 @@ class Dynamic {
 
     /**
      * The extrema of the average word length are calculated. They will be later used for getting the dynamic to change.
+     * The values are rounded to two decimals while they are searched, so the data is only passed once.
      *
      * @param avgWordLength The average word length of the input text
      * @return Returns at maximum 5 extrema in the word length averages
@@ -26,20 +27,29 @@ class Dynamic {
         float[] extrema = new float[5];
         int j = 0;
         float pref = 0, next = 0;
+        float current = avgWordLength.length > 0 ? roundLength(avgWordLength[0]) : 0;
         for (int i = 0; i < avgWordLength.length; i++) {
-            avgWordLength[i] = Math.round(avgWordLength[i] * 100.0) / 100.0F;
-        }
-        for (int i = 0; i < avgWordLength.length; i++) {
-            if (i > 0) pref = avgWordLength[i - 1];
-            if (i < avgWordLength.length - 1) next = avgWordLength[i + 1];
-            if (((avgWordLength[i] <= pref && avgWordLength[i] < next) || (avgWordLength[i] >= pref && avgWordLength[i] > next))) {
-                extrema[j++] = avgWordLength[i];
+            if (i < avgWordLength.length - 1) next = roundLength(avgWordLength[i + 1]);
+            if (((current <= pref && current < next) || (current >= pref && current > next))) {
+                extrema[j++] = current;
             }
             if (j > extrema.length - 1) return extrema;
+            pref = current;
+            current = next;
         }
         return extrema;
     }
 
+    /**
+     * Rounds an average word length to two decimals
+     *
+     * @param length The average word length
+     * @return The rounded length
+     */
+    private static float roundLength(float length) {
+        return Math.round(length * 100.0) / 100.0F;
+    }
+
     /**
      * indicates how much the dynamic will in- or decrease
      *
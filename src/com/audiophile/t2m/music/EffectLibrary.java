@@ -0,0 +1,193 @@
+package com.audiophile.t2m.music;
+
+import com.audiophile.t2m.io.FileUtils;
+
+import javax.sound.midi.*;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide cache of the sound effects in the {@value #EFFECTS_FOLDER} folder.
+ * Every effect is loaded from its midi file only once and stored as plain arrays of ticks and messages.
+ * The ticks are rescaled once for every resolution they are requested for.
+ * Effects can be prefetched, so they are loaded in the background while the rest of the music is generated.
+ *
+ * @see EffectTrack
+ */
+class EffectLibrary {
+    /**
+     * The folder containing the effect midi files
+     */
+    private static final String EFFECTS_FOLDER = "effects/";
+    /**
+     * The threads loading the effects in the background.
+     * They are daemon threads, so they do not keep the program running.
+     */
+    private static final ExecutorService loader = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "effect-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * All loaded or loading effects by their name.
+     * Effects which could not be loaded are stored as {@link Effect#MISSING}, so they are not loaded again.
+     */
+    private static final Map<String, CompletableFuture<Effect>> effects = new ConcurrentHashMap<>();
+
+    /**
+     * Starts loading the effect with the given name in the background, if it is not loaded yet
+     *
+     * @param name The name of the effect
+     */
+    static void prefetch(String name) {
+        request(name);
+    }
+
+    /**
+     * Returns the effect with the given name and loads it, if it is requested for the first time.
+     * If the effect is still loading in the background, this waits until it is loaded.
+     *
+     * @param name The name of the effect
+     * @return The effect or null if it could not be loaded
+     */
+    static Effect get(String name) {
+        Effect effect = request(name).join();
+        return effect == Effect.MISSING ? null : effect;
+    }
+
+    /**
+     * Returns the loading of the effect with the given name and starts it, if it is requested for the first time
+     *
+     * @param name The name of the effect
+     * @return The effect once it is loaded
+     */
+    private static CompletableFuture<Effect> request(String name) {
+        return effects.computeIfAbsent(name, n -> CompletableFuture.supplyAsync(() -> load(n), loader));
+    }
+
+    /**
+     * Loads an effect from its midi file.
+     * Only channel messages are kept, meta and system exclusive messages are not part of the music.
+     *
+     * @param name The name of the effect
+     * @return The loaded effect or {@link Effect#MISSING}
+     */
+    private static Effect load(String name) {
+        Sequence sequence = FileUtils.LoadMidiFile(EFFECTS_FOLDER + name + ".mid");
+        if (sequence == null)
+            return Effect.MISSING;
+        ArrayList<MidiEvent> events = new ArrayList<>();
+        for (Track t : sequence.getTracks())
+            for (int i = 0; i < t.size(); i++)
+                if (t.get(i).getMessage() instanceof ShortMessage)
+                    events.add(t.get(i));
+        events.sort((a, b) -> Long.compare(a.getTick(), b.getTick())); // Stable, so the track order is kept
+        long[] ticks = new long[events.size()];
+        int[] messages = new int[events.size()];
+        for (int i = 0; i < ticks.length; i++) {
+            ShortMessage message = (ShortMessage) events.get(i).getMessage();
+            ticks[i] = events.get(i).getTick();
+            messages[i] = message.getStatus() | message.getData1() << 8 | message.getData2() << 16;
+        }
+        return new Effect(sequence.getResolution(), sequence.getMicrosecondLength(), sequence.getTickLength(), ticks, messages);
+    }
+
+    /**
+     * A loaded effect.
+     * The events are stored in time order as ticks and messages packed to integers
+     * (status | data1 &lt;&lt; 8 | data2 &lt;&lt; 16).
+     */
+    static class Effect {
+        /**
+         * Marker for effects which could not be loaded
+         */
+        private static final Effect MISSING = new Effect(1, 0, 0, new long[0], new int[0]);
+        /**
+         * The resolution of the midi file
+         */
+        private final int resolution;
+        /**
+         * The length of the effect in microseconds
+         */
+        final long microsecondLength;
+        /**
+         * The length of the effect in ticks in the resolution of the midi file, including meta events
+         */
+        private final long tickLength;
+        /**
+         * The ticks of all events in the resolution of the midi file
+         */
+        private final long[] ticks;
+        /**
+         * The packed messages of all events
+         */
+        private final int[] messages;
+        /**
+         * The ticks of all events for every requested resolution
+         */
+        private final Map<Integer, long[]> scaledTicks = new ConcurrentHashMap<>();
+
+        private Effect(int resolution, long microsecondLength, long tickLength, long[] ticks, int[] messages) {
+            this.resolution = resolution;
+            this.microsecondLength = microsecondLength;
+            this.tickLength = tickLength;
+            this.ticks = ticks;
+            this.messages = messages;
+        }
+
+        /**
+         * @return The amount of events
+         */
+        int size() {
+            return messages.length;
+        }
+
+        /**
+         * Returns the ticks of all events in the given resolution
+         *
+         * @param resolution The resolution of the track the effect is added to
+         * @return The scaled ticks, which must not be changed
+         */
+        long[] getTicks(int resolution) {
+            return scaledTicks.computeIfAbsent(resolution, r -> {
+                long[] scaled = new long[ticks.length];
+                for (int i = 0; i < ticks.length; i++)
+                    scaled[i] = scale(ticks[i], r);
+                return scaled;
+            });
+        }
+
+        /**
+         * Returns the length of the effect in the given resolution
+         *
+         * @param resolution The resolution of the track the effect is added to
+         * @return The length in ticks
+         */
+        long getTickLength(int resolution) {
+            return scale(tickLength, resolution);
+        }
+
+        /**
+         * Converts a tick to another resolution
+         *
+         * @param tick       The tick in the resolution of the midi file
+         * @param resolution The target resolution
+         * @return The tick in the target resolution
+         */
+        private long scale(long tick, int resolution) {
+            float scale = resolution / (float) this.resolution; // Make the tempo fit
+            return (long) (tick * scale);
+        }
+
+        /**
+         * @return The packed messages of all events, which must not be changed
+         */
+        int[] getMessages() {
+            return messages;
+        }
+    }
+}
@@ -1,15 +1,16 @@
 package com.audiophile.t2m.music;
 
-import com.audiophile.t2m.io.FileUtils;
 import com.audiophile.t2m.text.Sentence;
 import com.audiophile.t2m.text.Word;
 
+import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiEvent;
-import javax.sound.midi.MidiMessage;
-import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import static com.audiophile.t2m.music.MidiUtils.*;
 
@@ -26,77 +27,170 @@ public class EffectTrack implements TrackGenerator {
      * The key is the name of the effect and the value the position in the track as percentage
      */
     private HashMap<String, Float> effects;
+    /**
+     * The words with an effect and their effect
+     */
+    private final ArrayList<String> found = new ArrayList<>();
     /**
      * The tempo of the music
      */
     private Tempo tempo;
+    /**
+     * The length of the music in seconds
+     */
+    private int duration;
+    /**
+     * The ticks of all effect events of the track in time order
+     */
+    private long[] ticks;
+    /**
+     * The messages of all effect events packed to integers
+     *
+     * @see EffectLibrary.Effect#getMessages()
+     */
+    private int[] messages;
+    /**
+     * The index of the next event to write
+     */
+    private int nextEvent;
 
     /**
-     * Creates a new instance which can generate effects based on the given text
+     * Creates a new instance which can generate effects based on the given text.
+     * The needed effects start loading in the background right away.
      *
      * @param sentences The analysed text split into sentences
      * @param tempo     The tempo of the generated music
+     * @param duration  The length of the music in seconds
      */
-    EffectTrack(Sentence[] sentences, Tempo tempo) {
-        ArrayList<String> strings = new ArrayList<>();
+    EffectTrack(Sentence[] sentences, Tempo tempo, int duration) {
         this.tempo = tempo;
+        this.duration = duration;
         effects = new HashMap<>();
         int index = 0;
         for (Sentence s : sentences)
             for (Word w : s.getWords()) {
                 if (w.getEntry() != null && w.getEntry().getEffect() != null) {
+                    EffectLibrary.prefetch(w.getEntry().getEffect());
                     effects.put(w.getEntry().getEffect(), (float) index);
-                    strings.add(w.getName() + " : " + w.getEntry().getEffect() + "; ");
+                    found.add(w.getName() + " : " + w.getEntry().getEffect());
                 }
                 index++;
             }
         final int i = index;
         effects.forEach((k, v) -> effects.put(k, v / (float) i));
-        System.out.println("Effects:" + strings.toString());
     }
 
     /**
-     * Loads and adds the effects to the given midi track
+     * @return The words of the text, which have an effect, as "word : effect" in text order
+     */
+    List<String> getFoundEffects() {
+        return Collections.unmodifiableList(found);
+    }
+
+    /**
+     * Loads the effects and places them in the track.
+     * The effects are loaded only once.
+     */
+    @Override
+    public void restart() {
+        nextEvent = 0;
+        if (ticks == null)
+            placeEffects();
+    }
+
+    /**
+     * Adds the loaded effects to the given midi track
      *
-     * @param track   The track to write to
-     * @param channel The channel to write to
+     * @param track     The track to write to
+     * @param channel   The channel to write to
+     * @param startTick The first tick of the range
+     * @param endTick   The tick after the range
      */
     @Override
-    public void writeToTrack(Track track, int channel) {
+    public void writeToTrack(Track track, int channel, int startTick, int endTick) {
+        try {
+            for (; nextEvent < ticks.length && ticks[nextEvent] < endTick; nextEvent++) {
+                int message = messages[nextEvent];
+                track.add(new MidiEvent(new ShortMessage(message & 0xFF, (message >> 8) & 0xFF, (message >> 16) & 0xFF), ticks[nextEvent]));
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Places all effects in the track and copies their events to the track events
+     *
+     * @see EffectLibrary
+     */
+    private void placeEffects() {
+        ArrayList<EffectLibrary.Effect> placed = new ArrayList<>(effects.size());
+        ArrayList<Long> starts = new ArrayList<>(effects.size());
+        int size = 0;
         long lastEnd = 0;
         for (String name : effects.keySet()) {
-            Sequence sequence = FileUtils.LoadMidiFile("effects/" + name + ".mid");
-            if (sequence != null) {
+            EffectLibrary.Effect effect = EffectLibrary.get(name);
+            if (effect != null) {
                 int start =// Position effect in track
                         (int) (QUARTER * tempo.averageBpm / 60.0 *  //beats per second
-                                15 * //because 15 seconds
+                                duration * //length of the music in seconds
                                 effects.get(name)  //i-th word in text
                         );
                 if (start < lastEnd)
                     start = (int) lastEnd;
-                if (sequence.getMicrosecondLength() / 1000000.0 + TicksInSecs(start, tempo.resolution) > 15.0) {
-                    start -= SecsInTicks(TicksInSecs(start, tempo.resolution) + sequence.getMicrosecondLength() / 1000000.0 - 15, tempo.resolution);
+                if (effect.microsecondLength / 1000000.0 + TicksInSecs(start, tempo.resolution) > duration) {
+                    start -= SecsInTicks(TicksInSecs(start, tempo.resolution) + effect.microsecondLength / 1000000.0 - duration, tempo.resolution);
                 }
+                if (effect.getTickLength(tempo.resolution) + start > lastEnd)
+                    lastEnd = effect.getTickLength(tempo.resolution) + start;
+                placed.add(effect);
+                starts.add((long) start);
+                size += effect.size();
+            }
+        }
 
-                float scale = tempo.resolution / (float) sequence.getResolution(); // Make the tempo fit
-                for (Track t : sequence.getTracks()) {
-                    for (int i = 0; i < t.size(); i++) {
-                        MidiEvent event = t.get(i);
-                        byte[] data = event.getMessage().getMessage();//(command & 0xF0) | (channel & 0x0F)
-                        data[0] += 2; // Keep channel 1 and 2 free
-                        long tick = (long) (event.getTick() * scale) + start;
-                        MidiEvent ev = new MidiEvent(new MidiMessage(data) {
-                            @Override
-                            public Object clone() {
-                                return null;
-                            }
-                        }, tick);
-                        track.add(ev);
-                        if (tick > lastEnd)
-                            lastEnd = tick;
-                    }
-                }
+        // Copy the events of all effects with their offset
+        ticks = new long[size];
+        messages = new int[size];
+        int n = 0;
+        for (int i = 0; i < placed.size(); i++) {
+            long[] effectTicks = placed.get(i).getTicks(tempo.resolution);
+            int[] effectMessages = placed.get(i).getMessages();
+            long start = starts.get(i);
+            for (int j = 0; j < effectTicks.length; j++, n++) {
+                ticks[n] = effectTicks[j] + start;
+                messages[n] = shiftChannel(effectMessages[j]);
+            }
+        }
+        sortEvents();
+    }
+
+    /**
+     * Moves the message to another channel to keep channel 1 and 2 free for the melody
+     *
+     * @param message The packed message
+     * @return The packed message on the new channel
+     */
+    private static int shiftChannel(int message) {
+        int status = message & 0xFF;
+        return (message & ~0xFF) | (status & 0xF0) | ((status + 2) & 0x0F);
+    }
+
+    /**
+     * Sorts the events by their tick.
+     * The effects are already sorted and hardly overlap, so a stable insertion sort is used.
+     */
+    private void sortEvents() {
+        for (int i = 1; i < ticks.length; i++) {
+            long tick = ticks[i];
+            int message = messages[i];
+            int j = i - 1;
+            for (; j >= 0 && ticks[j] > tick; j--) {
+                ticks[j + 1] = ticks[j];
+                messages[j + 1] = messages[j];
             }
+            ticks[j + 1] = tick;
+            messages[j + 1] = message;
         }
     }
 }
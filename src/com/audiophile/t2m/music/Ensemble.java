@@ -1,5 +1,7 @@
 package com.audiophile.t2m.music;
 
+import java.util.Arrays;
+
 public enum Ensemble {
     Brass("brass", MyInstrument.Trumpet, MyInstrument.Trombone, MyInstrument.Horn, MyInstrument.Tuba),
     Saxs("saxs", MyInstrument.SopranoSax, MyInstrument.AltoSax, MyInstrument.TenorSax, MyInstrument.BaritoneSax),
@@ -36,6 +38,18 @@ public enum Ensemble {
         return fallback;
     }
 
+    /**
+     * Returns the MIDI programs of the instruments, so a synthesizer can load them in advance
+     *
+     * @return The distinct programs of all instruments
+     */
+    public int[] getPrograms() {
+        int[] programs = new int[instruments.length];
+        for (int i = 0; i < programs.length; i++)
+            programs[i] = instruments[i].midiValue;
+        return Arrays.stream(programs).distinct().toArray();
+    }
+
     /**
      * Returns all available ensemble as array
      *
@@ -1,62 +1,98 @@
 package com.audiophile.t2m.music;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
 
 public class Harmony {
+    /**
+     * Number of midi notes covered by the scale tables
+     */
+    private static final int NUM_OF_NOTES = 128;
+    /**
+     * Interned harmonies indexed by {@link Harmony#internIndex(int, Mode, boolean)}.
+     * Harmonies are immutable, so they can be shared between all tracks.
+     */
+    private static final Harmony[] interned = new Harmony[NUM_OF_NOTES * 4];
+    /**
+     * For every mode and midi note the note itself, if it is in the scale, or the note above.
+     *
+     * @see Harmony#snapToScale(int)
+     */
+    private static final int[][] scaleTables = new int[Mode.values().length][];
+
+    static {
+        for (Mode m : Mode.values()) {
+            // min: 0,2,3,5,7,8,10,12 ; maj : 0,2,4,5,7,9,11,12
+            int[] scale = {0, 2, m.third, 5, 7, (m == Mode.Minor ? 8 : 9), (m == Mode.Minor ? 10 : 11)};
+            boolean[] inScale = new boolean[12];
+            for (int i : scale)
+                inScale[i] = true;
+            int[] table = new int[NUM_OF_NOTES];
+            for (int tone = 0; tone < table.length; tone++)
+                table[tone] = inScale[tone % 12] ? tone : tone + 1;
+            scaleTables[m.ordinal()] = table;
+        }
+    }
+
     /**
      * values of the chords in midi
      */
-    private ArrayList<Integer> notesNumber;
+    private final int[] notesNumber;
     /**
      * the base note as an integer value, ready to use
      */
-    int baseNoteMidi;
+    final int baseNoteMidi;
     /**
      * if true, the chord is a seventh chord
      */
-    private boolean sept;
+    private final boolean sept;
     /**
      * The mode of the piece.
      * It is either Major or Minor
      */
-    Mode mode;
+    final Mode mode;
+    /**
+     * The scale table of the {@link Harmony#mode}
+     */
+    private final int[] scaleTable;
     /**
      * Mapping from MidiValue to corresponding value.
      */
-    static final Map<Integer, String> quintCycle = Collections.unmodifiableMap(
-            new HashMap<Integer, String>() {{
-                put(60, "C");
-                put(61, "C#");// Db
-                put(62, "D");
-                put(63, "D#"); //Eb
-                put(64, "E"); //Fb
-                put(65, "F");
-                put(66, "F#");// Gb
-                put(67, "G");
-                put(68, "G#");//Ab
-                put(69, "A");
-                put(70, "A#");// B
-                put(71, "H");
-            }}
-    );
+    static final Map<Integer, String> quintCycle;
     /**
      * Mapping from Letter to MidiValue.
      */
-    private static final Map<String, Integer> chords = Collections.unmodifiableMap(
-            new HashMap<String, Integer>() {{
-                put("C", 60);
-                put("D", 62);
-                put("E", 64);
-                put("F", 65);
-                put("G", 67);
-                put("A", 69);
-                put("B", 70);
-                put("H", 71);
-            }});
+    private static final Map<String, Integer> chords;
+
+    static {
+        Map<Integer, String> names = new HashMap<>();
+        names.put(60, "C");
+        names.put(61, "C#");// Db
+        names.put(62, "D");
+        names.put(63, "D#"); //Eb
+        names.put(64, "E"); //Fb
+        names.put(65, "F");
+        names.put(66, "F#");// Gb
+        names.put(67, "G");
+        names.put(68, "G#");//Ab
+        names.put(69, "A");
+        names.put(70, "A#");// B
+        names.put(71, "H");
+        quintCycle = Collections.unmodifiableMap(names);
+
+        Map<String, Integer> notes = new HashMap<>();
+        notes.put("C", 60);
+        notes.put("D", 62);
+        notes.put("E", 64);
+        notes.put("F", 65);
+        notes.put("G", 67);
+        notes.put("A", 69);
+        notes.put("B", 70);
+        notes.put("H", 71);
+        chords = Collections.unmodifiableMap(notes);
+    }
 
     /**
      * Create a harmony by chord name and mode
@@ -68,45 +104,81 @@ public class Harmony {
      * @param sept     sets if it is a sept chord or not
      */
     Harmony(String baseNote, Mode mode, boolean sept) {
+        this(maskNote(baseNote), mode, sept);
+    }
+
+    /**
+     * Creates a harmony from its midi base note
+     *
+     * @param baseNoteMidi tonic of the chord as midi value
+     * @param mode         mode of the harmony
+     * @param sept         sets if it is a sept chord or not
+     */
+    private Harmony(int baseNoteMidi, Mode mode, boolean sept) {
         this.sept = sept;
         this.mode = mode;
-        this.notesNumber = new ArrayList<>();
-        this.baseNoteMidi = maskNote(baseNote);
-        buildChord();
+        this.baseNoteMidi = baseNoteMidi;
+        this.notesNumber = buildChord();
+        this.scaleTable = scaleTables[mode.ordinal()];
     }
 
     /**
+     * Returns the harmony pitched by the given amount of halftone steps.
+     * The harmonies are interned, so no new object is created for known harmonies.
+     *
      * @param harmony the preceding harmony
      * @param pitch   pitching the harmony to dominant,
+     * @return The pitched harmony
      */
-    Harmony(Harmony harmony, int pitch) {
-        this.sept = harmony.sept;
-        this.mode = harmony.mode;
-        this.notesNumber = new ArrayList<>();
-        this.baseNoteMidi = harmony.baseNoteMidi + pitch;
-        buildChord();
+    static Harmony transpose(Harmony harmony, int pitch) {
+        int note = harmony.baseNoteMidi + pitch;
+        if (note < 0 || note >= NUM_OF_NOTES)
+            return new Harmony(note, harmony.mode, harmony.sept);
+        int index = internIndex(note, harmony.mode, harmony.sept);
+        Harmony h = interned[index];
+        if (h == null) // Races only create equal objects, so no synchronisation is needed
+            interned[index] = h = new Harmony(note, harmony.mode, harmony.sept);
+        return h;
     }
 
     /**
-     * builds a chord in numbers ready for direct usage in midi
+     * Calculates the index of a harmony in {@link Harmony#interned}
+     *
+     * @param note The base note in midi
+     * @param mode The mode of the harmony
+     * @param sept If it is a sept chord
+     * @return The index in the interned harmonies
      */
+    private static int internIndex(int note, Mode mode, boolean sept) {
+        return note * 4 + mode.ordinal() * 2 + (sept ? 1 : 0);
+    }
 
-    private void buildChord() {
-        this.notesNumber.add(0, baseNoteMidi);
-        int n = this.sept ? 4 : 3;
-        for (int i = 1; i < n; i++) {
-            switch (i) {
-                case 1:
-                    this.notesNumber.add(i, this.baseNoteMidi + this.mode.third);
-                    break;
-                case 2:
-                    this.notesNumber.add(i, this.baseNoteMidi + 7);
-                    break;
-                case 3:
-                    this.notesNumber.add(i, this.baseNoteMidi + 10);
-                default:
-            }
-        }
+    /**
+     * First the method checks if a tone is in the scale of the harmonies mode.
+     * Second it adjusts the tone upwards to fit in the scale
+     *
+     * @param tone the tone which should be adjusted
+     * @return the adjusted tone as an integer value
+     */
+    int snapToScale(int tone) {
+        if (tone >= 0 && tone < scaleTable.length)
+            return scaleTable[tone];
+        return tone + 1; // Negative tones are never in the scale
+    }
+
+    /**
+     * builds a chord in numbers ready for direct usage in midi
+     *
+     * @return the notes of the chord
+     */
+    private int[] buildChord() {
+        int[] chord = new int[this.sept ? 4 : 3];
+        chord[0] = this.baseNoteMidi;
+        chord[1] = this.baseNoteMidi + this.mode.third;
+        chord[2] = this.baseNoteMidi + 7;
+        if (this.sept)
+            chord[3] = this.baseNoteMidi + 10;
+        return chord;
     }
 
     /**
@@ -116,7 +188,7 @@ public class Harmony {
      * @param baseNote tonic of the chord
      * @return the masked basenote
      */
-    private int maskNote(String baseNote) {
+    private static int maskNote(String baseNote) {
         String note = "CDEFGAHBC";
         if (!note.contains(baseNote))
             baseNote = String.valueOf(note.toCharArray()[baseNote.toCharArray()[0] % note.length()]);
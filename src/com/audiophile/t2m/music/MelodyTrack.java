@@ -6,9 +6,13 @@ import com.audiophile.t2m.text.Sentence;
 import com.audiophile.t2m.text.Word;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import static com.audiophile.t2m.music.MidiUtils.*;
 
@@ -17,6 +21,52 @@ public class MelodyTrack implements TrackGenerator {
      *
      */
     private static final int numOfChars = 255, numOfNotes = 128;
+
+    /**
+     * Note lengths for the rest of the division of a character value by twelve.
+     *
+     * @see MelodyTrack#setRhythm(int, int)
+     */
+    private static final int[] rhythmPattern = {
+            HALF, HALF,
+            QUARTER + QUAVER,
+            QUARTER, QUARTER,
+            QUAVER, QUAVER, QUAVER,
+            QUAVER + SEMIQUAVER,
+            SEMIQUAVER, SEMIQUAVER, SEMIQUAVER
+    };
+    /**
+     * Halftone steps a note has to be raised by, to build a consonant interval (third, fourth or fifth) with a
+     * single sounding note. Indexed by the pitch class of the sounding note and the pitch class of the new note.
+     *
+     * @see MelodyTrack#isConsonant(int, int)
+     */
+    private static final int[][] consonanceSteps = new int[12][12];
+    /**
+     * The pitch class which completes a chord for every mode and every interval between the two lowest sounding
+     * pitch classes. -1 marks intervals which can not be completed.
+     *
+     * @see MelodyTrack#isConsonant(int, int)
+     */
+    private static final int[][] chordCompletion = new int[Mode.values().length][12];
+
+    static {
+        for (int filled = 0; filled < 12; filled++)
+            for (int note = 0; note < 12; note++) {
+                int steps = 0;
+                while (!isConsonantInterval(Math.abs((note + steps) % 12 - filled)))
+                    steps++;
+                consonanceSteps[filled][note] = steps;
+            }
+        for (Mode mode : Mode.values()) {
+            int[] completion = chordCompletion[mode.ordinal()];
+            Arrays.fill(completion, -1);
+            completion[3] = mode == Mode.Minor ? 7 : 8; // small third
+            completion[4] = mode == Mode.Minor ? 9 : 7; // big third
+            completion[5] = mode == Mode.Minor ? 8 : 9; // clean fourth
+            completion[7] = mode.third; // clean fifth
+        }
+    }
     /**
      * The basic key of the whole music piece
      */
@@ -25,23 +75,54 @@ public class MelodyTrack implements TrackGenerator {
      * Maps each letter to a corresponding MidiValue
      */
     private int[] toneMapping;
+    /**
+     * The playable tone for every character below {@link MelodyTrack#numOfChars}
+     */
+    private int[] charTones;
+    /**
+     * The playable tone for characters above {@link MelodyTrack#numOfChars}, indexed by the character modulo numOfChars
+     *
+     * @see MelodyTrack#getClosestTone(char)
+     */
+    private int[] foreignCharTones;
+    /**
+     * The note length for every voice and every character below {@link MelodyTrack#numOfChars}
+     *
+     * @see MelodyTrack#setRhythm(int, int)
+     */
+    private int[][] charRhythms;
+    /**
+     * The normalized characters of every word in every sentence.
+     * Filler words have no characters, because they are skipped.
+     */
+    private char[][][] sentenceChars;
+    /**
+     * The harmonies the melody switches to every two and every four bars
+     */
+    private final Harmony subdominantKey, dominantKey;
     /**
      * Array of sentences of the analyzed text.
      */
     private Sentence[] sentences;
     /**
-     * The current key during the melody track
+     * The state of every voice during the generation
+     *
+     * @see MelodyTrack#restart()
      */
-    private Harmony currentKey;
+    private Voice[] cursors;
     /**
      * The tempo object containing the BPM and the resolution of the track.
      */
     private Tempo tempo;
     /**
-     * An array storing the notes on every whole quarter.
+     * The length of every voice in seconds
+     */
+    private int duration;
+    /**
+     * The pitch classes sounding on every quaver.
      * It is used to check for dissonances across the different voices.
      */
-    private boolean[][] notes; // initialize in multiples of 64
+    private PitchTimeline notes;
     /**
      * The dynamic and its gradient during the track
      */
@@ -60,83 +141,75 @@ public class MelodyTrack implements TrackGenerator {
         loadToneMapping(noteMappingFile);
         this.baseKey = musicData.baseKey;
         this.tempo = musicData.tempo;
-        this.currentKey = new Harmony(baseKey, 0);
+        this.duration = musicData.duration;
+        this.subdominantKey = Harmony.transpose(baseKey, 5);
+        this.dominantKey = Harmony.transpose(baseKey, 7);
         this.voices = ensemble.instruments.length;
-        this.notes = new boolean[127][12];
+        buildCharTables();
+        normalizeSentences();
+        this.notes = new PitchTimeline(voices + 1, SecsInTicks(Math.min(duration, Composer.DEFAULT_DURATION), tempo.resolution));
         this.dynamic = musicData.dynamic;
         this.ensemble = ensemble;
     }
 
+    /**
+     * Calculates the state every voice starts with.
+     * Every voice continues the text where the previous voice stopped, so all voices except the first one are found
+     * by running through the previous voice without writing notes.
+     */
+    @Override
+    public void restart() {
+        notes.clear();
+        ArrayList<Voice> starts = new ArrayList<>(voices + 1);
+        Voice start = new Voice();
+        try {
+            while (true) {
+                starts.add(start);
+                if (start.pass >= voices)
+                    break;
+                Voice run = new Voice(start);
+                while (run.step(null, 0))
+                    ;
+                if (run.textEnded) // No text left for the next voice
+                    break;
+                start = run.nextPass();
+            }
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace(); // Does not happen without a track
+        }
+        cursors = starts.toArray(new Voice[starts.size()]);
+    }
+
     /**
      * Creates a track based on the calculated {@link MusicData} and the input {@link MelodyTrack#sentences}.
+     * Every voice plays on its own channel, beginning with the given one.
      *
-     * @param track   The track to write to
-     * @param channel The channel to write to
+     * @param track     The track to write to
+     * @param channel   The channel to write to
+     * @param startTick The first tick of the range
+     * @param endTick   The tick after the range
      */
     @Override
-    public void writeToTrack(Track track, int channel) {
-        int dynamicIndex = 0, n = 0, currentVoice = 0; // Marks position an track
-        int pitch;
-        int len = QUARTER, prevLen = len; // Length of the notes in 128th per beat
-        int playable, previous = baseKey.baseNoteMidi;
+    public void writeToTrack(Track track, int channel, int startTick, int endTick) {
+        notes.release(startTick);
+        // A voice checks the consonance against all notes of the previous voices in the same quaver slot,
+        // so every voice runs to the end of the slot to see the same notes as in a single pass
+        int slotEnd = endTick;
+        if (endTick % PitchTimeline.SLOT_TICKS != 0 && endTick <= Integer.MAX_VALUE - PitchTimeline.SLOT_TICKS)
+            slotEnd = (endTick / PitchTimeline.SLOT_TICKS + 1) * PitchTimeline.SLOT_TICKS;
+        ArrayList<MidiEvent> events = new ArrayList<>();
         try {
-            MidiUtils.ChangeInstrument(ensemble.instruments[currentVoice], track, channel, 0);
-            for (int i = 0; i < sentences.length; i++) {
-                Sentence s = sentences[i];
-                if (s.getSentenceType() == Sentence.SentenceType.Exclamation)       // Increase loudness for exclamation sentences
-                    dynamic.initDynamic = 127;
-                else dynamic.initDynamic = 64;
-                for (Word w : s.getWords()) {
-                    if (w.isFiller()) // Skip filler words
-                        continue;
-                    for (char c : Utils.normalizeText(w.getName()).toCharArray()) {
-                        int tone = c >= toneMapping.length ? getClosestTone(c) : c;
-                        if (n % (4 * WHOLE) == 0) currentKey = new Harmony(baseKey, 7);
-                        else if (n % (2 * WHOLE) == 0) currentKey = new Harmony(baseKey, 5);
-
-                        playable = toneMapping[tone];
-                        playable = catchOutliers(playable, previous); // prevents notes jumping around or going too high or low
-                        playable = inScale(playable); //ensures note is in scale
-
-                        //handling punctuated notes
-                        if (prevLen == SEMIQUAVER + QUAVER || prevLen == QUARTER + QUAVER) len = prevLen / 3;
-                        else if (prevLen == SEMIQUAVER) len = SEMIQUAVER;
-                        else len = setRhythm(c, currentVoice + 1);
-                        prevLen = len;
-                        //chord on the first beat of every bar
-                        if (n % WHOLE <= QUAVER) { //beginning of every bar
-                            if (dynamic.dynamicGradient.length > dynamicIndex && n > QUARTER) dynamicIndex++;
-                            MidiUtils.addNote(track, n + 64 * ((playable % 4) + 1), len, playable, dynamic.initDynamic, channel);
-                            notes[(n + 64 * ((playable % 4) + 1)) / 64][playable % 12] = true;
-                            MidiUtils.addNote(track, n, len, isConsonant(playable, n), dynamic.initDynamic, channel);
-                            notes[n / 64][playable % 12] = true;
-                        } else {
-                            if (dynamic.dynamicGradient.length > dynamicIndex)
-                                if (Dynamic.isValidDynamic(dynamic.initDynamic + dynamic.dynamicGradient[dynamicIndex]))
-                                    dynamic.initDynamic += dynamic.dynamicGradient[dynamicIndex];
-                            MidiUtils.addNote(track, n, len, isConsonant(playable, n), dynamic.initDynamic, channel);
-                            notes[n / 64][playable % 12] = true;
-                        }
-                        n += len;
-                        previous = playable; //save previous to prevent going of the scale
-                        if (i == sentences.length - 1) {
-                            i = 0;
-                        }
-                        if (TicksInSecs(n, this.tempo.resolution) >= 15) {                        //finishing part
-                            if (currentVoice >= this.voices) // Sets fixed track length of 15sec
-                                return;
-                            n = 0;
-                            pitch = -12 * ((currentVoice <= 1) ? 0 : (currentVoice - 1));
-                            this.currentKey = new Harmony(this.baseKey, pitch);
-                            MidiUtils.ChangeInstrument(ensemble.instruments[currentVoice++], track, ++channel, 0);
-                            dynamic.initDynamic -= 5;
-                        }
-                    }
-                }
+            for (Voice voice : cursors) {
+                if (startTick == 0) // Each voice plays its own instrument on its own channel
+                    MidiUtils.ChangeInstrument(voice.instrument, events, channel + voice.pass, 0);
+                while (voice.n < slotEnd && voice.step(events, channel + voice.pass))
+                    ;
             }
         } catch (InvalidMidiDataException e) {
             e.printStackTrace();
         }
+        // Every voice plays on its own channel
+        MidiUtils.addInPartOrder(track, events, event -> ((ShortMessage) event.getMessage()).getChannel());
     }
 
     /**
@@ -144,111 +217,45 @@ public class MelodyTrack implements TrackGenerator {
      *
      * @param note      the note which is played
      * @param startTick the point in time when the note is play
+     * @param voice     the voice playing the note
      * @return returns the adjusted note
      */
 
-    private int isConsonant(int note, int startTick) {
-        int size, newNote = note % 12;
-        ArrayList<Integer> filled = new ArrayList<>();
-        startTick /= 64;
-        for (int i = 0; i < notes[startTick].length/*12*/; i++)
-            if (notes[startTick][i]) {
-                filled.add(i);
-                if (i == newNote) {
-                    // System.out.println("note was already used");
-                    return note;
-                }
-            }
-
-        size = filled.size();
-        if (size == 0) {
+    private int isConsonant(int note, int startTick, Voice voice) {
+        int newNote = note % 12;
+        int filled = notes.mask(voice.pass, startTick);
+        if (filled == 0 || (filled & (1 << newNote)) != 0) // nothing played or note was already used
             return note;
-        } else if (size == 1) { //one note existing; add note for consonant interval
-            while (!"3457".contains(String.valueOf(Math.abs(newNote - filled.get(0))))) { //check if already good
-                newNote = ++note % 12;
-            }
-            return note;
-        } else { //chord should be completed
-            switch (filled.get(1) - filled.get(0)) { //existing interval
-                case 3: //small third
-                    if (currentKey.mode == Mode.Minor) //minor key
-                        return note + 7 - newNote;
-                    else
-                        return note + 8 - newNote;
-                case 4: //big third
-                    if (currentKey.mode == Mode.Minor) //minor key
-                        return note + 9 - newNote;
-                    else
-                        return note + 7 - newNote;
-                case 5: // clean fourth
-                    if (currentKey.mode == Mode.Minor) //minor key
-                        return note + 8 - newNote;
-                    else
-                        return note + 9 - newNote;
-                case 7: //clean fifth
-                    return note + this.currentKey.mode.third - newNote;
-                default:
-                    return note; //should not happen
-            }
-        }
+        int lowest = Integer.numberOfTrailingZeros(filled);
+        int others = filled & (filled - 1); // Remove lowest pitch class
+        if (others == 0) //one note existing; add note for consonant interval
+            return note + consonanceSteps[lowest][newNote];
+        //chord should be completed
+        int completion = chordCompletion[voice.currentKey.mode.ordinal()][Integer.numberOfTrailingZeros(others) - lowest];
+        if (completion < 0)
+            return note; //should not happen
+        return note + completion - newNote;
     }
 
     /**
-     * calculates note length based on the character value of the character in the text
+     * Checks if the given halftone steps are a third, fourth or fifth
      *
-     * @param c           character value
-     * @param inTwoVoices indicates for which voice the rhythm should be
-     * @return calculated length of the note
+     * @param interval The halftone steps between two notes
+     * @return True if the interval is consonant
      */
-    private int setRhythm(int c, int inTwoVoices) {
-        int len;
-        switch (c % (12 / inTwoVoices)) {
-            case 0:
-            case 1:
-                len = HALF;
-                break;
-            case 2:
-                len = QUARTER + QUAVER;
-                break;
-            case 3:
-            case 4:
-                len = QUARTER;
-                break;
-            case 5:
-            case 6:
-            case 7:
-                len = QUAVER;
-                break;
-            case 8:
-                len = QUAVER + SEMIQUAVER;
-                break;
-            case 9:
-            case 10:
-            case 11:
-                len = SEMIQUAVER;
-                break;
-            default:
-                len = QUARTER;
-        }
-        return len;
+    private static boolean isConsonantInterval(int interval) {
+        return interval == 3 || interval == 4 || interval == 5 || interval == 7;
     }
 
     /**
-     * First the method checks if a tone is in the current scale
-     * Second it adjusts the tone upwards to fit in the scale
+     * calculates note length based on the character value of the character in the text
      *
-     * @param tone the tone which should be adjusted
-     * @return the adjusted tone as an integer value
+     * @param c           character value
+     * @param inTwoVoices indicates for which voice the rhythm should be
+     * @return calculated length of the note
      */
-    private int inScale(int tone) {
-        int toneToCalc = tone % 12; // get tone to one octave
-        int[] compNotes = {0, 2, currentKey.mode.third, 5, 7, (currentKey.mode == Mode.Minor ? 8 : 9), (currentKey.mode == Mode.Minor ? 10 : 11)};
-        // min: 0,2,3,5,7,8,10,12 ; maj : 0,2,4,5,7,9,11,12
-        for (int i : compNotes)
-            if (i == toneToCalc) { //tone is in the scale
-                return tone;
-            }
-        return ++tone;
+    private static int setRhythm(int c, int inTwoVoices) {
+        return rhythmPattern[c % (12 / inTwoVoices)];
     }
 
     /**
@@ -296,6 +303,39 @@ public class MelodyTrack implements TrackGenerator {
         return toneMapping[ch];
     }
 
+    /**
+     * Builds the character to tone and character to rhythm tables from the loaded {@link MelodyTrack#toneMapping}.
+     * The rhythm table has an entry for every voice including the finishing part.
+     */
+    private void buildCharTables() {
+        charTones = new int[numOfChars];
+        foreignCharTones = new int[numOfChars];
+        for (int c = 0; c < numOfChars; c++) {
+            charTones[c] = toneMapping[c];
+            foreignCharTones[c] = toneMapping[getClosestTone((char) c)];
+        }
+        charRhythms = new int[voices + 1][numOfChars];
+        for (int v = 0; v < charRhythms.length; v++)
+            for (int c = 0; c < numOfChars; c++)
+                charRhythms[v][c] = setRhythm(c, v + 1);
+    }
+
+    /**
+     * Normalizes every word of the {@link MelodyTrack#sentences} once, so the melody generation only has to read the
+     * characters.
+     *
+     * @see Utils#normalizeText(String)
+     */
+    private void normalizeSentences() {
+        sentenceChars = new char[sentences.length][][];
+        for (int i = 0; i < sentences.length; i++) {
+            Word[] words = sentences[i].getWords();
+            sentenceChars[i] = new char[words.length][];
+            for (int j = 0; j < words.length; j++)
+                sentenceChars[i][j] = words[j].isFiller() ? new char[0] : Utils.normalizeText(words[j].getName()).toCharArray();
+        }
+    }
+
     /**
      * <p>
      * Loads the character to tone mapping from the given csv file.
@@ -315,7 +355,7 @@ public class MelodyTrack implements TrackGenerator {
         for (int i = 0; i < toneMapping.length; i++)
             toneMapping[i] = -1;
         try {
-            String mapping[][] = CSVTools.ReadFile(file);
+            String mapping[][] = CSVTools.ReadCachedFile(file);
             for (int i = 0; i < mapping.length; i++) {
                 String[] entry = mapping[i];
                 try {
@@ -345,4 +385,185 @@ public class MelodyTrack implements TrackGenerator {
         }
     }
 
-}
\ No newline at end of file
+
+    /**
+     * The state of a single voice of the melody.
+     * Each voice reads the text from its own position, so the voices can be generated side by side.
+     */
+    private class Voice {
+        /**
+         * The index of the voice. The first voice has index 0
+         */
+        int pass;
+        /**
+         * The instrument playing the voice
+         */
+        MyInstrument instrument;
+        /**
+         * Position of the voice in the text.
+         * The sentence is the one which is read next after the current words.
+         */
+        int sentence, word, character;
+        /**
+         * The words of the sentence which is currently read
+         */
+        char[][] words;
+        /**
+         * Current position in ticks
+         */
+        int n;
+        /**
+         * Length of the previous note in 128th per beat
+         */
+        int prevLen = QUARTER;
+        /**
+         * The previous note, used to prevent going of the scale
+         */
+        int previous;
+        /**
+         * The current loudness and the position in the dynamic gradient
+         */
+        int initDynamic, dynamicIndex;
+        /**
+         * The current key of the voice
+         */
+        Harmony currentKey;
+        /**
+         * Marks if the voice reached its end or if there is no text left
+         */
+        boolean finished, textEnded;
+
+        /**
+         * Creates the first voice
+         */
+        Voice() {
+            this.instrument = ensemble.instruments[0];
+            this.previous = baseKey.baseNoteMidi;
+            this.initDynamic = dynamic.initDynamic;
+            this.currentKey = Harmony.transpose(baseKey, 0);
+        }
+
+        /**
+         * Copies the state of a voice
+         *
+         * @param voice The voice to copy
+         */
+        Voice(Voice voice) {
+            this.pass = voice.pass;
+            this.instrument = voice.instrument;
+            this.sentence = voice.sentence;
+            this.word = voice.word;
+            this.character = voice.character;
+            this.words = voice.words;
+            this.n = voice.n;
+            this.prevLen = voice.prevLen;
+            this.previous = voice.previous;
+            this.initDynamic = voice.initDynamic;
+            this.dynamicIndex = voice.dynamicIndex;
+            this.currentKey = voice.currentKey;
+            this.finished = voice.finished;
+            this.textEnded = voice.textEnded;
+        }
+
+        /**
+         * Creates the following voice, which continues the text where this voice stopped
+         *
+         * @return The next voice
+         */
+        Voice nextPass() {
+            Voice next = new Voice(this);
+            int pitch = -12 * ((pass <= 1) ? 0 : (pass - 1));
+            next.currentKey = Harmony.transpose(baseKey, pitch);
+            next.instrument = ensemble.instruments[pass];
+            next.pass = pass + 1;
+            next.n = 0;
+            next.initDynamic -= 5;
+            next.finished = false;
+            return next;
+        }
+
+        /**
+         * Plays the next character of the text
+         *
+         * @param events  The events to add the notes to or null to only advance the voice
+         * @param channel The channel to write to
+         * @return False if the voice is finished
+         * @throws InvalidMidiDataException If a note could not be added to the track
+         */
+        boolean step(List<MidiEvent> events, int channel) throws InvalidMidiDataException {
+            if (finished)
+                return false;
+            int c = nextChar();
+            if (c < 0) {
+                textEnded = finished = true;
+                return false;
+            }
+            if (n % (4 * WHOLE) == 0) currentKey = dominantKey;
+            else if (n % (2 * WHOLE) == 0) currentKey = subdominantKey;
+
+            int playable = c < numOfChars ? charTones[c] : foreignCharTones[c % numOfChars];
+            playable = catchOutliers(playable, previous); // prevents notes jumping around or going too high or low
+            playable = currentKey.snapToScale(playable); //ensures note is in scale
+
+            //handling punctuated notes
+            int len;
+            if (prevLen == SEMIQUAVER + QUAVER || prevLen == QUARTER + QUAVER) len = prevLen / 3;
+            else if (prevLen == SEMIQUAVER) len = SEMIQUAVER;
+            else len = c < numOfChars ? charRhythms[pass][c] : setRhythm(c, pass + 1);
+            prevLen = len;
+            //chord on the first beat of every bar
+            if (n % WHOLE <= QUAVER) { //beginning of every bar
+                if (dynamic.dynamicGradient.length > dynamicIndex && n > QUARTER) dynamicIndex++;
+                if (events != null) {
+                    int chordTick = n + 64 * ((playable % 4) + 1);
+                    MidiUtils.addNote(events, chordTick, len, playable, initDynamic, channel);
+                    notes.mark(pass, chordTick, playable);
+                    MidiUtils.addNote(events, n, len, isConsonant(playable, n, this), initDynamic, channel);
+                    notes.mark(pass, n, playable);
+                }
+            } else {
+                if (dynamic.dynamicGradient.length > dynamicIndex)
+                    if (Dynamic.isValidDynamic(initDynamic + dynamic.dynamicGradient[dynamicIndex]))
+                        initDynamic += dynamic.dynamicGradient[dynamicIndex];
+                if (events != null) {
+                    MidiUtils.addNote(events, n, len, isConsonant(playable, n, this), initDynamic, channel);
+                    notes.mark(pass, n, playable);
+                }
+            }
+            n += len;
+            previous = playable;
+            if (TicksInSecs(n, tempo.resolution) >= duration) //finishing part
+                finished = true;
+            return !finished;
+        }
+
+        /**
+         * Reads the next character of the text.
+         * If the end of the text is reached, the text starts again with the second sentence.
+         *
+         * @return The next character or -1 if there is no text left
+         */
+        private int nextChar() {
+            while (true) {
+                if (words != null) {
+                    for (; word < words.length; word++, character = 0)
+                        if (character < words[word].length) {
+                            char c = words[word][character++];
+                            if (sentence == sentences.length - 1)
+                                sentence = 0;
+                            return c;
+                        }
+                    sentence++;
+                }
+                if (sentence >= sentences.length)
+                    return -1;
+                words = sentenceChars[sentence];
+                word = 0;
+                character = 0;
+                if (sentences[sentence].getSentenceType() == Sentence.SentenceType.Exclamation) // Increase loudness for exclamation sentences
+                    initDynamic = 127;
+                else initDynamic = 64;
+            }
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package com.audiophile.t2m.music;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiEvent;
+import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToIntFunction;
 
 /**
  * A class that holds a collection of static methods for creating midi sequences
@@ -13,38 +19,67 @@ class MidiUtils {
      * Fixed note lengths for music
      */
     static final int WHOLE = 512, HALF = 256, QUARTER = 128, QUAVER = 64, SEMIQUAVER = 32, DREISEMQUAVER = 16;
+    /**
+     * Type of the meta message marking the end of a track
+     */
+    private static final int END_OF_TRACK = 0x2F;
 
     /**
-     * Adds a note to a track at the given time
-     * @param track The track to write to
+     * Adds a note at the given time
+     * @param events The events of the part to add to
      * @param startTick The tick when the note should start playing
      * @param tickLength The length of the note
      * @param key The note as int
      * @param velocity The loudness of the note
      * @param channel The channel on which the note is played
-     * @throws InvalidMidiDataException If note could not be added to track
+     * @throws InvalidMidiDataException If the note is not valid
      */
-    static void addNote(Track track, int startTick, int tickLength, int key, int velocity, int channel) throws InvalidMidiDataException {
+    static void addNote(List<MidiEvent> events, int startTick, int tickLength, int key, int velocity, int channel) throws InvalidMidiDataException {
         ShortMessage on = new ShortMessage();
         on.setMessage(ShortMessage.NOTE_ON, channel, key, velocity);
         ShortMessage off = new ShortMessage();
         off.setMessage(ShortMessage.NOTE_OFF, channel, key, velocity);
-        track.add(new MidiEvent(on, startTick));
-        track.add(new MidiEvent(off, startTick + tickLength));
+        events.add(new MidiEvent(on, startTick));
+        events.add(new MidiEvent(off, startTick + tickLength));
     }
 
     /**
      * Changes the instrument in a given channel on a specific tick
      * @param instrument The new instrument
-     * @param track The track to change the instrument for
+     * @param events The events of the part to add the change to
      * @param channel The channel to change the instrument on
      * @param tick The time as tick when the instrument should change
      * @throws InvalidMidiDataException If instrument could not change
      */
-    static void ChangeInstrument(MyInstrument instrument, Track track, int channel, int tick) throws InvalidMidiDataException {
+    static void ChangeInstrument(MyInstrument instrument, List<MidiEvent> events, int channel, int tick) throws InvalidMidiDataException {
         ShortMessage sm = new ShortMessage();
         sm.setMessage(ShortMessage.PROGRAM_CHANGE, channel, instrument.midiValue, 0); //9 ==> is the channel 10.
-        track.add(new MidiEvent(sm, tick));
+        events.add(new MidiEvent(sm, tick));
+    }
+
+    /**
+     * Adds the events of a range to a track, which holds the events carried over from the previous range.
+     * A generator writes its parts (e.g. voices or drums) one after the other over the whole track, but part by part
+     * within each range. So the events at the same tick are ordered by their part and then by the order they were
+     * added, which gives the same events in the same order for the whole track and for the ranges one after another.
+     *
+     * @param track  The track with the carried over events
+     * @param events The new events of all parts in the order they were generated
+     * @param part   The part of an event, parts are written in ascending order
+     */
+    static void addInPartOrder(Track track, List<MidiEvent> events, ToIntFunction<MidiEvent> part) {
+        ArrayList<MidiEvent> merged = new ArrayList<>(track.size() + events.size());
+        for (int i = 0; i < track.size(); i++) {
+            MidiMessage message = track.get(i).getMessage();
+            if (!(message instanceof MetaMessage && ((MetaMessage) message).getType() == END_OF_TRACK))
+                merged.add(track.get(i));
+        }
+        for (MidiEvent event : merged)
+            track.remove(event);
+        merged.addAll(events);
+        merged.sort(Comparator.comparingLong(MidiEvent::getTick).thenComparingInt(part)); // Stable
+        for (MidiEvent event : merged)
+            track.add(event);
     }
 
     /**
@@ -16,10 +16,15 @@ public class MusicData {
      * The basic Key of the whole track
      */
     Harmony baseKey;
+    /**
+     * The length of the track in seconds
+     */
+    int duration;
 
-    public MusicData(Tempo tempo, Dynamic dynamic, Harmony baseKey) {
+    public MusicData(Tempo tempo, Dynamic dynamic, Harmony baseKey, int duration) {
         this.tempo = tempo;
         this.dynamic = dynamic;
         this.baseKey = baseKey;
+        this.duration = duration;
     }
 }
@@ -0,0 +1,106 @@
+package com.audiophile.t2m.music;
+
+import java.util.Arrays;
+
+import static com.audiophile.t2m.music.MidiUtils.QUAVER;
+
+/**
+ * Stores which pitch classes are sounding on every quaver of a track.
+ * Every slot is a 12 bit mask, where bit <code>i</code> is set if the pitch class <code>i</code> (C = 0) is played.
+ * The notes of every voice are stored in a separate layer, so a voice only sees the voices written before it.
+ * The timeline grows with the track and slots which are not needed anymore can be released, so it does not limit
+ * the length of the music.
+ */
+class PitchTimeline {
+    /**
+     * The amount of ticks covered by one slot
+     */
+    static final int SLOT_TICKS = QUAVER;
+    /**
+     * The pitch class masks of every layer, beginning with {@link PitchTimeline#firstSlot}
+     */
+    private short[][] masks;
+    /**
+     * The slot stored at index 0 of the masks
+     */
+    private int firstSlot;
+
+    /**
+     * Creates a timeline with space for the given amount of ticks
+     *
+     * @param layers       The amount of layers (voices)
+     * @param initialTicks The expected length of the track in ticks
+     */
+    PitchTimeline(int layers, int initialTicks) {
+        this.masks = new short[layers][Math.max(16, initialTicks / SLOT_TICKS + 1)];
+    }
+
+    /**
+     * Marks a note as sounding at the given tick
+     *
+     * @param layer The layer of the voice playing the note
+     * @param tick  The tick when the note is played
+     * @param note  The note as midi value
+     */
+    void mark(int layer, int tick, int note) {
+        int index = tick / SLOT_TICKS - firstSlot;
+        if (index < 0)
+            return; // Already released
+        if (index >= masks[layer].length)
+            grow(index + 1);
+        masks[layer][index] |= 1 << Math.floorMod(note, 12);
+    }
+
+    /**
+     * Returns all pitch classes sounding at the given tick in the given layer and all layers below
+     *
+     * @param maxLayer The highest layer to include
+     * @param tick     The tick to look up
+     * @return A 12 bit mask of the pitch classes
+     */
+    int mask(int maxLayer, int tick) {
+        int index = tick / SLOT_TICKS - firstSlot;
+        int mask = 0;
+        if (index >= 0 && index < masks[0].length)
+            for (int layer = 0; layer <= maxLayer; layer++)
+                mask |= masks[layer][index];
+        return mask;
+    }
+
+    /**
+     * Removes all slots before the given tick
+     *
+     * @param tick The first tick which is still needed
+     */
+    void release(int tick) {
+        int count = tick / SLOT_TICKS - firstSlot;
+        if (count <= 0)
+            return;
+        for (short[] layer : masks) {
+            int keep = Math.max(0, layer.length - count);
+            System.arraycopy(layer, layer.length - keep, layer, 0, keep);
+            Arrays.fill(layer, keep, layer.length, (short) 0);
+        }
+        firstSlot += count;
+    }
+
+    /**
+     * Clears the timeline
+     */
+    void clear() {
+        for (short[] layer : masks)
+            Arrays.fill(layer, (short) 0);
+        firstSlot = 0;
+    }
+
+    /**
+     * Increases the capacity of all layers
+     *
+     * @param slots The minimum amount of slots
+     */
+    private void grow(int slots) {
+        int capacity = Math.max(slots, masks[0].length * 2);
+        for (int layer = 0; layer < masks.length; layer++)
+            masks[layer] = Arrays.copyOf(masks[layer], capacity);
+    }
+}
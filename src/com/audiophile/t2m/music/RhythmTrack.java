@@ -3,12 +3,19 @@ package com.audiophile.t2m.music;
 import com.audiophile.t2m.Utils;
 
 import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.ShortMessage;
 import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 
 import static com.audiophile.t2m.music.MidiUtils.*;
 
 /**
  * A class that generates a rhythm based on the given text.s
+ * The hits of every drum are compiled into bar patterns once. Equal bars share one pattern,
+ * so writing the track only copies the patterns to the position of their bars.
  */
 public class RhythmTrack implements TrackGenerator {
     /**
@@ -19,6 +26,14 @@ public class RhythmTrack implements TrackGenerator {
      * The average word length per sentence in the text
      */
     private float[] avgWordLen;
+    /**
+     * The length of the rhythm in ticks
+     */
+    private int length;
+    /**
+     * The bass, snare and hi-hat
+     */
+    private Drum[] drums;
 
     /**
      * Creates a new rhythm generator, which can generate music based on the given music data
@@ -29,16 +44,11 @@ public class RhythmTrack implements TrackGenerator {
     RhythmTrack(MusicData musicData, float[] avgWordLen) {
         this.tempo = musicData.tempo;
         this.avgWordLen = Utils.BlurData(avgWordLen, 3);
+        this.length = SecsInTicks(musicData.duration, tempo.resolution);
 
-        // Find min and max avg word length in the text
-        float max = 0,
-                min = 100;
-        for (float anAvgWordLen : avgWordLen) {
-            if (anAvgWordLen > max)
-                max = anAvgWordLen;
-            if (anAvgWordLen < min)
-                min = anAvgWordLen;
-        }
+        // The min and max avg word length in the text are already known from the tempo
+        float max = tempo.maxLength,
+                min = tempo.minLength;
         // Decrease all values by minimum and normalize them between 0 and 3
         max -= min;
         if (max > 0)
@@ -46,6 +56,21 @@ public class RhythmTrack implements TrackGenerator {
                 avgWordLen[i] -= min; // Decrease
                 avgWordLen[i] = 3 * avgWordLen[i] / max; // Normalize
             }
+
+        // The distance to the next hit for every average word length
+        int[] bassSteps = new int[this.avgWordLen.length],
+                snareSteps = new int[this.avgWordLen.length],
+                hiHatSteps = new int[this.avgWordLen.length];
+        for (int i = 0; i < this.avgWordLen.length; i++) {
+            bassSteps[i] = roundToQuaver(QUARTER * this.avgWordLen[i]);
+            snareSteps[i] = roundToQuaver(QUAVER * this.avgWordLen[i]);
+            hiHatSteps[i] = roundToSemiQuaver(SEMIQUAVER * this.avgWordLen[i]) % QUAVER != 0 ? SEMIQUAVER : QUAVER;
+        }
+        this.drums = new Drum[]{
+                new Drum(36, QUARTER, bassSteps, 3),
+                new Drum(38, QUARTER, snareSteps, 3 + 1),
+                new Drum(42, SEMIQUAVER, hiHatSteps, 3 + 2)
+        };
     }
 
     /**
@@ -68,41 +93,141 @@ public class RhythmTrack implements TrackGenerator {
         return (((int) val) / SEMIQUAVER) * SEMIQUAVER;
     }
 
+    /**
+     * Starts all instruments at the beginning of the track
+     */
+    @Override
+    public void restart() {
+        for (Drum drum : drums)
+            drum.restart();
+    }
+
     /**
      * Generates the rhythm and writes it to the given track on the given channel
      *
-     * @param track   The track to write to
-     * @param channel The channel to write to
+     * @param track     The track to write to
+     * @param channel   The channel to write to
+     * @param startTick The first tick of the range
+     * @param endTick   The tick after the range
      */
     @Override
-    public void writeToTrack(Track track, int channel) {
-
-        int length = SecsInTicks(15, tempo.resolution);
-        int bass, snare, hiHat;
+    public void writeToTrack(Track track, int channel, int startTick, int endTick) {
+        int end = Math.min(endTick, length);
         int vel = 64;
+        ArrayList<MidiEvent> events = new ArrayList<>();
         try {
-            // Add bass
-            int i = 0;
-            for (int n = 0; n < length; n += bass) {
-                addNote(track, n, QUARTER, 36, vel, channel);
-                bass = roundToQuaver(QUARTER * avgWordLen[(i += 3) % avgWordLen.length]);
-            }
+            for (Drum drum : drums)
+                drum.writeToList(events, channel, vel, end);
+        } catch (InvalidMidiDataException e) {
+            e.printStackTrace();
+        }
+        // The drums are written in the order of their keys
+        MidiUtils.addInPartOrder(track, events, event -> ((ShortMessage) event.getMessage()).getData1());
+    }
 
-            //Add snare
-            i = 0;
-            for (int n = 0; n < length; n += snare) {
-                addNote(track, n, QUARTER, 38, vel, channel);
-                snare = roundToQuaver(QUAVER * avgWordLen[(i += 3 + 1) % avgWordLen.length]);
+    /**
+     * A drum of the rhythm with its hits compiled into bar patterns.
+     * All hits are on semiquavers, so a bar of the drum is a bit mask with one bit per semiquaver.
+     */
+    private class Drum {
+        /**
+         * The note of the drum
+         */
+        private final int key;
+        /**
+         * The length of a hit in ticks
+         */
+        private final int noteLength;
+        /**
+         * The distinct bar patterns as offsets of the hits from the beginning of the bar
+         */
+        private final int[][] patterns;
+        /**
+         * The index of the pattern of every bar
+         */
+        private final int[] bars;
+        /**
+         * The messages of a hit, which are shared by all hits
+         */
+        private ShortMessage on, off;
+        /**
+         * The next bar and the next hit in it to write
+         */
+        private int bar, hit;
+
+        /**
+         * Compiles the hits of the drum into bar patterns
+         *
+         * @param key        The note of the drum
+         * @param noteLength The length of a hit in ticks
+         * @param steps      The distance to the next hit for every average word length
+         * @param stride     The amount of average word lengths skipped by every hit
+         */
+        private Drum(int key, int noteLength, int[] steps, int stride) {
+            this.key = key;
+            this.noteLength = noteLength;
+            this.bars = new int[(length + WHOLE - 1) / WHOLE];
+            HashMap<Integer, Integer> ids = new HashMap<>();
+            ArrayList<int[]> patterns = new ArrayList<>();
+            int tick = 0, index = 0;
+            for (int b = 0; b < bars.length; b++) {
+                int barStart = b * WHOLE, barEnd = Math.min(barStart + WHOLE, length);
+                int mask = 0;
+                for (; tick < barEnd; tick += steps[index = (index + stride) % steps.length])
+                    mask |= 1 << (tick - barStart) / SEMIQUAVER;
+                bars[b] = ids.computeIfAbsent(mask, m -> {
+                    patterns.add(toOffsets(m));
+                    return patterns.size() - 1;
+                });
             }
+            this.patterns = patterns.toArray(new int[patterns.size()][]);
+        }
 
-            //Add hi-hat
-            i = 0;
-            for (int n = 0; n < length; n += hiHat % QUAVER != 0 ? SEMIQUAVER : QUAVER) {
-                hiHat = roundToSemiQuaver(SEMIQUAVER * avgWordLen[(i += 3 + 2) % avgWordLen.length]);
-                addNote(track, n, SEMIQUAVER, 42, vel, channel);
+        /**
+         * Converts a bar mask to the offsets of its hits
+         *
+         * @param mask The bar with one bit per semiquaver
+         * @return The offsets in ticks in time order
+         */
+        private int[] toOffsets(int mask) {
+            int[] offsets = new int[Integer.bitCount(mask)];
+            for (int i = 0, n = 0; n < offsets.length; i++)
+                if ((mask & 1 << i) != 0)
+                    offsets[n++] = i * SEMIQUAVER;
+            return offsets;
+        }
+
+        /**
+         * Starts the drum at the beginning of the track
+         */
+        private void restart() {
+            bar = hit = 0;
+        }
+
+        /**
+         * Copies the patterns of the bars to the events up to the given tick
+         *
+         * @param events   The events to add the hits to
+         * @param channel  The channel to write to
+         * @param velocity The loudness of the hits
+         * @param end      The tick after the last hit to write
+         * @throws InvalidMidiDataException If a hit is not valid
+         */
+        private void writeToList(List<MidiEvent> events, int channel, int velocity, int end) throws InvalidMidiDataException {
+            if (on == null || on.getChannel() != channel || on.getData2() != velocity) {
+                on = new ShortMessage(ShortMessage.NOTE_ON, channel, key, velocity);
+                off = new ShortMessage(ShortMessage.NOTE_OFF, channel, key, velocity);
+            }
+            for (; bar < bars.length; bar++, hit = 0) {
+                int[] offsets = patterns[bars[bar]];
+                for (; hit < offsets.length; hit++) {
+                    int tick = bar * WHOLE + offsets[hit];
+                    if (tick >= end)
+                        return;
+                    events.add(new MidiEvent(on, tick));
+                    events.add(new MidiEvent(off, tick + noteLength));
+                }
             }
-        } catch (InvalidMidiDataException e) {
-            e.printStackTrace();
         }
     }
 }
@@ -7,10 +7,28 @@ import javax.sound.midi.Track;
  * @author Simon
  */
 public interface TrackGenerator {
+    /**
+     * Resets the generator to the beginning of the music
+     */
+    void restart();
+
+    /**
+     * All notes starting within the given range of ticks are written to the given track on the given channel.
+     * After {@link TrackGenerator#restart()} the ranges have to be requested in time order without gaps.
+     * @param track The track to write to
+     * @param channel The channel to write to
+     * @param startTick The first tick of the range
+     * @param endTick The tick after the range
+     */
+    void writeToTrack(Track track, int channel, int startTick, int endTick);
+
     /**
      * The music should be written to the given track on the given channel
      * @param track The track to write to
      * @param channel The channel to write to
      */
-    void writeToTrack(Track track, int channel);
+    default void writeToTrack(Track track, int channel) {
+        restart();
+        writeToTrack(track, channel, 0, Integer.MAX_VALUE);
+    }
 }
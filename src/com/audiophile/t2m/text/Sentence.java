@@ -3,6 +3,7 @@ package com.audiophile.t2m.text;
 import java.io.IOException;
 import java.text.BreakIterator;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 /**
@@ -29,10 +30,33 @@ public class Sentence {
      * Creates a <code>Sentence</code> and analyses it.
      *
      * @param text sentence as text
-     * @see #analyse(String, double)
+     * @see #analyse(String, double, boolean, List)
      */
     Sentence(String text) {
-        analyse(text, DatabaseHandler.DEFAULT_MIN_SIMILARITY);
+        this(text, DatabaseHandler.PRECISE_SEARCH);
+    }
+
+    /**
+     * Creates a <code>Sentence</code> and analyses it with the given search mode.
+     *
+     * @param text    sentence as text
+     * @param precise True to link every word with the closest database entry
+     * @see DatabaseHandler#FindWord(String, double, boolean)
+     */
+    Sentence(String text, boolean precise) {
+        this(text, precise, DatabaseHandler.getDatabase());
+    }
+
+    /**
+     * Creates a <code>Sentence</code> and analyses it with the given search mode and database.
+     *
+     * @param text     sentence as text
+     * @param precise  True to link every word with the closest database entry
+     * @param database The entries of the word database
+     * @see DatabaseHandler#FindWord(String, double, boolean, List)
+     */
+    Sentence(String text, boolean precise, List<DatabaseHandler.Entry> database) {
+        analyse(text, DatabaseHandler.DEFAULT_MIN_SIMILARITY, precise, database);
     }
 
     /**
@@ -47,8 +71,11 @@ public class Sentence {
      * </ul>
      *
      * @param text The sentence as plain text
+     * @param minWordSimilarity The minimum similarity of a word and its database entry
+     * @param precise True to link every word with the closest database entry
+     * @param database The entries of the word database
      */
-    private void analyse(String text, double minWordSimilarity) {
+    private void analyse(String text, double minWordSimilarity, boolean precise, List<DatabaseHandler.Entry> database) {
         // Breaking sentence into words
         BreakIterator iterator = BreakIterator.getWordInstance(Locale.GERMAN);
         iterator.setText(text);
@@ -73,7 +100,7 @@ public class Sentence {
             // Only search for words with more than three characters in database
             if (w.length() > 3)
                 try {
-                    entry = DatabaseHandler.FindWord(w, minWordSimilarity);
+                    entry = DatabaseHandler.FindWord(w, minWordSimilarity, precise, database);
 
                 } catch (IOException e) {
                     e.printStackTrace();
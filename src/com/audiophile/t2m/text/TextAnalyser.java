@@ -2,6 +2,7 @@ package com.audiophile.t2m.text;
 
 import java.text.BreakIterator;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.stream.Stream;
 
@@ -11,6 +12,10 @@ import java.util.stream.Stream;
  * @author Simon Niedermayr
  */
 public class TextAnalyser {
+    /**
+     * Average reading speed of german texts in words per minute
+     */
+    private static final int WORDS_PER_MINUTE = 200;
 
     /**
      * This function splits the text into {@link Sentence}s and {@link Word}s.
@@ -23,10 +28,37 @@ public class TextAnalyser {
      * @see TextAnalyser#splitSentences(String)
      */
     public static Sentence[] analyseSentences(String text) {
+        return analyseSentences(text, DatabaseHandler.PRECISE_SEARCH);
+    }
+
+    /**
+     * Splits and analyses the text like {@link TextAnalyser#analyseSentences(String)}, but with its own search mode,
+     * so several articles can be analysed at once with different modes.
+     *
+     * @param text    The plain text as {@link String}
+     * @param precise True to link every word with the closest database entry
+     * @return The text split into sentences
+     * @see DatabaseHandler#FindWord(String, double, boolean)
+     */
+    public static Sentence[] analyseSentences(String text, boolean precise) {
+        return analyseSentences(text, precise, DatabaseHandler.getDatabase());
+    }
+
+    /**
+     * Splits and analyses the text like {@link TextAnalyser#analyseSentences(String, boolean)}, but with its own
+     * word database, which is only read, e.g. the database of an engine.
+     *
+     * @param text     The plain text as {@link String}
+     * @param precise  True to link every word with the closest database entry
+     * @param database The entries of the word database
+     * @return The text split into sentences
+     * @see DatabaseHandler#ReadDB(String)
+     */
+    public static Sentence[] analyseSentences(String text, boolean precise, List<DatabaseHandler.Entry> database) {
         String[] sentencesList = splitSentences(text);
         Sentence[] sentences = new Sentence[sentencesList.length];
         for (int i = 0; i < sentences.length; i++) {
-            sentences[i] = new Sentence(sentencesList[i]);
+            sentences[i] = new Sentence(sentencesList[i], precise, database);
         }
         WordFilter filter = new WordFilter("fillwords.csv");
         filter.markFillers(sentences);
@@ -67,6 +99,20 @@ public class TextAnalyser {
         return Word.Tendency.map((int) (sum / (float) count));
     }
 
+    /**
+     * Estimates how long it takes to read the text.
+     *
+     * @param sentences The text split into sentences
+     * @return The reading time in seconds
+     * @see TextAnalyser#WORDS_PER_MINUTE
+     */
+    public static int getReadingTime(Sentence[] sentences) {
+        int words = 0;
+        for (Sentence s : sentences)
+            words += s.getWordCount();
+        return (int) Math.ceil(words * 60.0 / WORDS_PER_MINUTE);
+    }
+
     /**
      * Splits string into sentences by line breaks and punctuation marks.
      *
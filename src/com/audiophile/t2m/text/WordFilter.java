@@ -24,7 +24,7 @@ public class WordFilter {
      */
     WordFilter(String file) {
         try {
-            String content[][] = CSVTools.ReadFile(file);
+            String content[][] = CSVTools.ReadCachedFile(file);
             if (content.length > 0)
                 fillWords = content[0];
             else {
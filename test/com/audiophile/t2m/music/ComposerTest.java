@@ -0,0 +1,92 @@
+package com.audiophile.t2m.music;
+
+import com.audiophile.t2m.io.FileUtils;
+import com.audiophile.t2m.text.DatabaseHandler;
+import com.audiophile.t2m.text.Sentence;
+import com.audiophile.t2m.text.TextAnalyser;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiEvent;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.Track;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Checks that the music generated segment by segment equals the music generated as one sequence.
+ * Run from the project directory, so the database, the mappings and the articles are found:
+ * <code>java -cp out com.audiophile.t2m.music.ComposerTest</code>
+ */
+public class ComposerTest {
+    /**
+     * Type of the meta message marking the end of a track
+     */
+    private static final int END_OF_TRACK = 0x2F;
+
+    public static void main(String[] args) throws Exception {
+        DatabaseHandler.LoadDB("wordsDB.csv");
+        int failed = 0;
+        for (String article : new String[]{"articles/article.txt", "articles/poetry.txt"})
+            for (Ensemble ensemble : new Ensemble[]{Ensemble.Piano, Ensemble.Strings, Ensemble.Brass})
+                for (int duration : new int[]{Composer.DEFAULT_DURATION, 47, 120})
+                    for (boolean noEffects : new boolean[]{false, true}) {
+                        String name = article + " " + ensemble + " " + duration + "s" + (noEffects ? " noeffects" : "");
+                        String error = compare(TextAnalyser.analyseSentences(FileUtils.ReadPlainFile(article)),
+                                noEffects, ensemble, duration);
+                        if (error != null) {
+                            failed++;
+                            System.err.println("FAILED " + name + ": " + error);
+                        } else System.out.println("ok " + name);
+                    }
+        if (failed > 0) {
+            System.err.println(failed + " cases failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Generates the music of the sentences once as whole sequence and once in segments
+     *
+     * @return null if the events of every track are equal, otherwise the first difference
+     */
+    private static String compare(Sentence[] sentences, boolean noEffects, Ensemble ensemble, int duration) {
+        Composer composer = new Composer(sentences, noEffects, ensemble, duration);
+        Track[] full = composer.getSequence().getTracks();
+        List<List<String>> segmented = new ArrayList<>();
+        for (Iterator<Sequence> segments = composer.getSegments(); segments.hasNext(); ) {
+            Track[] tracks = segments.next().getTracks();
+            for (int i = 0; i < tracks.length; i++) {
+                if (segmented.size() <= i)
+                    segmented.add(new ArrayList<>());
+                segmented.get(i).addAll(events(tracks[i]));
+            }
+        }
+        if (segmented.size() != full.length)
+            return "segments have " + segmented.size() + " tracks instead of " + full.length;
+        for (int i = 0; i < full.length; i++) {
+            List<String> expected = events(full[i]), actual = segmented.get(i);
+            for (int e = 0; e < Math.min(expected.size(), actual.size()); e++)
+                if (!expected.get(e).equals(actual.get(e)))
+                    return "track " + i + " differs at event " + e + ": " + expected.get(e) + " vs " + actual.get(e);
+            if (expected.size() != actual.size())
+                return "track " + i + " has " + actual.size() + " events instead of " + expected.size();
+        }
+        return null;
+    }
+
+    /**
+     * @return The tick and the bytes of every event of the track except the end of track
+     */
+    private static List<String> events(Track track) {
+        List<String> events = new ArrayList<>(track.size());
+        for (int i = 0; i < track.size(); i++) {
+            MidiEvent event = track.get(i);
+            if (event.getMessage() instanceof MetaMessage && ((MetaMessage) event.getMessage()).getType() == END_OF_TRACK)
+                continue;
+            events.add(event.getTick() + ":" + Arrays.toString(event.getMessage().getMessage()));
+        }
+        return events;
+    }
+}